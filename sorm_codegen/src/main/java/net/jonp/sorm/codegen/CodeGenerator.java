@@ -2,14 +2,22 @@ package net.jonp.sorm.codegen;
 
 import java.io.PrintWriter;
 import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.jonp.sorm.codegen.model.Field;
 import net.jonp.sorm.codegen.model.IDGenerator;
 import net.jonp.sorm.codegen.model.NamedQuery;
+import net.jonp.sorm.codegen.model.Projection;
 import net.jonp.sorm.codegen.model.Query;
 import net.jonp.sorm.codegen.model.QueryParam;
 import net.jonp.sorm.codegen.model.Sorm;
@@ -27,6 +35,11 @@ public class CodeGenerator
 
     private static final String INDENT = "    ";
 
+    // Field types whose values can be changed in place
+    private static final Set<String> MUTABLE_VALUE_TYPES = new HashSet<String>(Arrays.asList(
+        "Date", "java.util.Date", "java.sql.Date", "java.sql.Time", "java.sql.Timestamp", "Calendar", "java.util.Calendar",
+        "java.util.GregorianCalendar"));
+
     private static final Pattern P_RHSMAP = Pattern.compile("^%\\{2\\.(\\w|_)((?:\\w|\\d)*)\\(\\):(nullable )?(\\w+)\\}.*",
                                                             Pattern.DOTALL);
 
@@ -103,6 +116,7 @@ public class CodeGenerator
         writeln("import java.sql.PreparedStatement;");
         writeln("import java.sql.ResultSet;");
         writeln("import java.sql.SQLException;");
+        writeln("import java.sql.SQLFeatureNotSupportedException;");
         writeln("import java.sql.Statement;");
         writeln("import java.sql.Types;");
         writeln("import java.util.ArrayList;");
@@ -111,16 +125,29 @@ public class CodeGenerator
         writeln("import java.util.Collections;");
         writeln("import java.util.Iterator;");
         writeln("import java.util.LinkedHashMap;");
+        writeln("import java.util.LinkedHashSet;");
         writeln("import java.util.LinkedList;");
+        writeln("import java.util.List;");
         writeln("import java.util.Map;");
         writeln("import java.util.NoSuchElementException;");
+        writeln("import java.util.concurrent.ConcurrentHashMap;");
+        writeln("import java.util.concurrent.ConcurrentMap;");
+        writeln("import java.util.concurrent.Future;");
         writeln();
 
+        writeln("import net.jonp.sorm.CacheMode;");
+        writeln("import net.jonp.sorm.DelayedWriter;");
+        writeln("import net.jonp.sorm.Dialect;");
+        writeln("import net.jonp.sorm.KeyAllocator;");
+        writeln("import net.jonp.sorm.SessionTask;");
         writeln("import net.jonp.sorm.SormBase;");
+        writeln("import net.jonp.sorm.SormContext;");
         writeln("import net.jonp.sorm.SormIterable;");
         writeln("import net.jonp.sorm.SormIterator;");
         writeln("import net.jonp.sorm.SormObject;");
+        writeln("import net.jonp.sorm.SormPair;");
         writeln("import net.jonp.sorm.SormSession;");
+        writeln("import net.jonp.sorm.SormSiblings;");
         writeln("import net.jonp.sorm.SormSQLException;");
         writeln("import net.jonp.sorm.UnknownDialectException;");
         writeln();
@@ -141,6 +168,9 @@ public class CodeGenerator
         dumpOrm();
         writeln();
 
+        dumpAsyncOrm();
+        writeln();
+
         dumpFields();
         writeln();
 
@@ -153,19 +183,110 @@ public class CodeGenerator
         writeln("}");
         writeln();
 
+        if (!sorm.getProjections().isEmpty()) {
+            writeln("/**");
+            writeln(" * Test whether this %s was read by a projection, so only some of its", sorm.getName());
+            writeln(" * fields were loaded.");
+            writeln(" */");
+            writeln("public boolean isPartiallyLoaded()");
+            writeln("{");
+            writeln("return _sormPartial;");
+            writeln("}");
+            writeln();
+        }
+
+        dumpCopy();
+        writeln();
+
         dumpAccessors();
         writeln("}");
     }
 
-    private void dumpOrm()
+    /**
+     * Dump the function that copies an object for the
+     * {@link net.jonp.sorm.SharedCache}. Only the row is copied: links are
+     * left unloaded, as they are by a read, and groups and mutable values are
+     * copied so the copy shares nothing that can be changed in place.
+     */
+    private void dumpCopy()
     {
-        final Field primary = sorm.getPrimaryField();
+        writeln("@Override");
+        writeln("public %s sormCopy()", sorm.getName());
+        writeln("{");
+        writeln("final %s copy = new %s();", sorm.getName(), sorm.getName());
+
+        for (final Field field : sorm.getFields()) {
+            if (field.isFromSuper() || null != field.getParent()) {
+                continue;
+            }
+            else if (LinkMode.OneToMany == field.getLink().getMode() || LinkMode.ManyToMany == field.getLink().getMode()) {
+                continue;
+            }
+
+            final String fieldName = getSafeFieldName(field);
+            if (field.isGroup()) {
+                // Rebuilt from its subfields, the same way a read builds it
+                writeln("if (null != _%s)", fieldName);
+                writeln("{");
+                writeln("%s;", compileCopiedGroup(field));
+                writeln("}");
+            }
+            else if (isMutableValue(field.getType())) {
+                writeln("copy._%s = (null == _%s ? null : (%s)_%s.clone());", fieldName, fieldName, field.getType(), fieldName);
+            }
+            else {
+                writeln("copy._%s = _%s;", fieldName, fieldName);
+            }
+        }
+
+        // Setting groups marks them dirty, so this comes last
+        if (sorm.isDirtyTracking()) {
+            writeln("copy._sormDirty = _sormDirty;");
+        }
+        if (!sorm.getProjections().isEmpty()) {
+            writeln("copy._sormPartial = _sormPartial;");
+        }
+        writeln();
+
+        writeln("return copy;");
+        writeln("}");
+    }
+
+    /**
+     * Compile the set expression of a group so it builds a new group on
+     * <code>copy</code> from the subfields of the group on <code>this</code>.
+     */
+    private String compileCopiedGroup(final Field group)
+    {
+        String s = group.getSet().getContent();
+        s = s.replaceAll("%\\{\\}", "copy");
+        for (final Field field : sorm.getFields()) {
+            final String fieldName = getFieldName(field);
+            if (s.contains("%{" + fieldName + "}")) {
+                final String get = compileAccessor(field, field.getGet().getContent(), "this");
+                s = s.replaceAll("%\\{" + fieldName + "\\}", Matcher.quoteReplacement("(" + get + ")"));
+            }
+        }
+
+        return s;
+    }
+
+    /**
+     * Test whether values of a type can be changed in place, and so must be
+     * cloned when copied.
+     */
+    private static boolean isMutableValue(final String type)
+    {
+        return type.endsWith("[]") || MUTABLE_VALUE_TYPES.contains(type);
+    }
 
+    private void dumpOrm()
+    {
         writeln("/**");
         writeln(" * Maps between the %s class and a database.", sorm.getName());
         writeln(" */");
         writeln("%s static class Orm", sorm.getOrm_accessor());
-        writeln("extends SormBase<%s, %s>", primary.getType(), sorm.getName());
+        writeln("extends SormBase<%s, %s>", getKeyType(), sorm.getName());
         writeln("{");
         writeln("static final Logger LOG = Logger.getLogger(Orm.class);");
         writeln();
@@ -186,6 +307,11 @@ public class CodeGenerator
             if (!sorm.getPk().isEmpty()) {
                 writeln();
                 dumpOrmPk();
+
+                if (isAllocatable()) {
+                    writeln();
+                    dumpOrmNextKey();
+                }
             }
         }
 
@@ -194,11 +320,21 @@ public class CodeGenerator
             dumpOrmRead();
         }
 
+        if (!sorm.getRead().isEmpty() || hasFullRowQuery()) {
+            writeln();
+            dumpOrmHydrate();
+        }
+
         if (!sorm.getUpdate().isEmpty()) {
             writeln();
             dumpOrmUpdate();
         }
 
+        if (!getUpsert().isEmpty()) {
+            writeln();
+            dumpOrmUpsert();
+        }
+
         if (!sorm.getDelete().isEmpty()) {
             writeln();
             dumpOrmDelete();
@@ -209,6 +345,13 @@ public class CodeGenerator
                 if (field.getLink().getMode() == LinkMode.OneToMany || field.getLink().getMode() == LinkMode.ManyToMany) {
                     writeln();
                     dumpOrmMapRead(field);
+                    writeln();
+                    dumpOrmMapReadSet(field);
+
+                    if (!field.getLink().getCollection().getReadMany().isEmpty()) {
+                        writeln();
+                        dumpOrmMapReadKeys(field);
+                    }
                 }
 
                 if (field.getLink().getMode() == LinkMode.ManyToMany) {
@@ -225,18 +368,178 @@ public class CodeGenerator
             }
         }
 
+        if (hasLinks()) {
+            writeln();
+            dumpOrmLink();
+        }
+
+        if (hasLazyLinks()) {
+            writeln();
+            dumpOrmAttach();
+
+            for (final Field field : sorm.getFields()) {
+                if (isLazy(field)) {
+                    writeln();
+                    dumpOrmLoad(field);
+                }
+            }
+        }
+
         for (final NamedQuery nq : sorm.getQueries()) {
             writeln();
             dumpOrmQuery(nq);
+
+            if (nq.isStream()) {
+                writeln();
+                dumpOrmQueryIterable(nq);
+            }
+        }
+
+        for (final Projection projection : sorm.getProjections()) {
+            writeln();
+            dumpOrmProjection(projection);
+        }
+
+        writeln("}");
+    }
+
+    /**
+     * Dump the AsyncOrm static inner-class, which runs the basic functions and
+     * named queries of Orm in the background.
+     */
+    private void dumpAsyncOrm()
+    {
+        writeln("/**");
+        writeln(" * Runs the functions of {@link Orm} in the background, each with a session of");
+        writeln(" * its own, through {@link SormContext#submit(CacheMode, SessionTask)}. The");
+        writeln(" * sessions are closed as soon as the functions return, so lazy links of the");
+        writeln(" * objects read cannot be loaded afterward.");
+        writeln(" */");
+        writeln("%s static class AsyncOrm", sorm.getOrm_accessor());
+        writeln("{");
+        writeln("private final SormContext _context;");
+        writeln("private final CacheMode _cacheMode;");
+        writeln();
+
+        writeln("/**");
+        writeln(" * Instantiate an AsyncOrm object whose sessions use {@link CacheMode#Immediate}.");
+        writeln(" *");
+        writeln(" * @param context The context whose executor and sessions to use.");
+        writeln(" */");
+        writeln("public AsyncOrm(final SormContext context)");
+        writeln("{");
+        writeln("this(context, CacheMode.Immediate);");
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * Instantiate an AsyncOrm object.");
+        writeln(" *");
+        writeln(" * @param context The context whose executor and sessions to use.");
+        writeln(" * @param cacheMode The cache mode of the sessions.");
+        writeln(" */");
+        writeln("public AsyncOrm(final SormContext context, final CacheMode cacheMode)");
+        writeln("{");
+        writeln("_context = context;");
+        writeln("_cacheMode = cacheMode;");
+        writeln("}");
+
+        final String objs = String.format("final Collection<%s> %ss", sorm.getName(), OBJ);
+        final String obj = String.format("final %s %s", sorm.getName(), OBJ);
+        if (!sorm.getCreate().isEmpty()) {
+            dumpAsyncCall("public", "Void", "create", objs, "Orm.create(session, %ss);", OBJ);
+            dumpAsyncCall("public", "Void", "create", obj, "Orm.create(session, %s);", OBJ);
+        }
+
+        if (!sorm.getRead().isEmpty()) {
+            final String keys = String.format("final Collection<%s> %ss", getKeyType(), KEY);
+            final String key = String.format("final %s %s", getKeyType(), KEY);
+            dumpAsyncCall("public", String.format("Collection<%s>", sorm.getName()), "read", keys, "return Orm.read(session, %ss);",
+                          KEY);
+            dumpAsyncCall("public", sorm.getName(), "read", key, "return Orm.read(session, %s);", KEY);
+        }
+
+        if (!sorm.getUpdate().isEmpty()) {
+            dumpAsyncCall("public", "Void", "update", objs, "Orm.update(session, %ss);", OBJ);
+            dumpAsyncCall("public", "Void", "update", obj, "Orm.update(session, %s);", OBJ);
+        }
+
+        if (!getUpsert().isEmpty()) {
+            dumpAsyncCall("public", "Void", "upsert", objs, "Orm.upsert(session, %ss);", OBJ);
+            dumpAsyncCall("public", "Void", "upsert", obj, "Orm.upsert(session, %s);", OBJ);
+        }
+
+        if (!sorm.getDelete().isEmpty()) {
+            dumpAsyncCall("public", "Void", "delete", objs, "Orm.delete(session, %ss);", OBJ);
+            dumpAsyncCall("public", "Void", "delete", obj, "Orm.delete(session, %s);", OBJ);
+        }
+
+        for (final NamedQuery nq : sorm.getQueries()) {
+            final StringBuilder args = new StringBuilder();
+            final StringBuilder argNames = new StringBuilder("session");
+            for (final QueryParam param : nq.getParams()) {
+                if (args.length() > 0) {
+                    args.append(", ");
+                }
+
+                args.append(String.format("final %s %s", param.getType(), param.getName()));
+                argNames.append(", ").append(param.getName());
+            }
+
+            final String resultType = (nq.isFullRows() ? sorm.getName() : getKeyType());
+            dumpAsyncCall(nq.getAccessor(), String.format("Collection<%s>", resultType), nq.getName(), args.toString(),
+                          "return Orm.%s(%s);", nq.getName(), argNames);
+        }
+
+        for (final Projection projection : sorm.getProjections()) {
+            final String keys = String.format("final Collection<%s> %ss", getKeyType(), KEY);
+            dumpAsyncCall(projection.getAccessor(), String.format("Collection<%s>", sorm.getName()), getProjectionRead(projection),
+                          keys, "return Orm.%s(session, %ss);", getProjectionRead(projection), KEY);
         }
 
         writeln("}");
     }
 
+    /**
+     * Dump a function of AsyncOrm that submits a call to Orm.
+     * 
+     * @param accessor The accessor of the function.
+     * @param resultType The type of the result of the call, or
+     *            <code>Void</code>.
+     * @param name The name of the function.
+     * @param args The declaration of the arguments of the function.
+     * @param call The format of the statement that makes the call, which
+     *            returns the result unless it is <code>Void</code>.
+     * @param callArgs Arguments to the call format.
+     */
+    private void dumpAsyncCall(final String accessor, final String resultType, final String name, final String args,
+                               final String call, final Object... callArgs)
+    {
+        writeln();
+        writeln("%s Future<%s> %s(%s)", accessor, resultType, name, args);
+        writeln("{");
+        writeln("return _context.submit(_cacheMode, new SessionTask<%s>()", resultType);
+        writeln("{");
+        writeln("@Override");
+        writeln("public %s run(final SormSession session)", resultType);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln(call, callArgs);
+        if ("Void".equals(resultType)) {
+            writeln("return null;");
+        }
+        writeln("}");
+        writeln("});");
+        writeln("}");
+    }
+
     private void dumpOrmCreate()
     {
         final Field primary = sorm.getPrimaryField();
 
+        dumpDelayedWriter("DELAYED_CREATE", sorm.getName(), "creates", "create(session, %ss);", OBJ);
+        writeln();
+
         writeln("@Override");
         writeln("public void create(final %s... %ss)", sorm.getName(), OBJ);
         writeln("throws SQLException");
@@ -261,10 +564,23 @@ public class CodeGenerator
         writeln("}");
         writeln();
 
+        // A post-generated key must be read back after each insert, so those
+        // cannot be batched; keys returned by the insert can be, if the
+        // driver returns every key of a batch
+        final boolean generated = (IDGenerator.Generated == primary.getGenerator());
+        final boolean batch = (!generated && (IDGenerator.Post != primary.getGenerator() || sorm.getPk().isEmpty()));
+
         writeln("/**");
         writeln(" * Insert a number of %s objects into the database.", sorm.getName());
         writeln(" * Each object will have its primary field set to the value created during");
         writeln(" * the insert.");
+        if (batch) {
+            writeln(" * The inserts are sent in batches of {@link SormSession#getBatchSize()}.");
+        }
+        else if (generated) {
+            writeln(" * The inserts are sent in batches of {@link SormSession#getBatchSize()} if the");
+            writeln(" * session's dialect returns the keys generated by a batch, otherwise one at a time.");
+        }
         writeln(" *");
         writeln(" * @param session The session to use for the inserts.");
         writeln(" * @param %ss The objects to insert.", OBJ);
@@ -273,10 +589,109 @@ public class CodeGenerator
         writeln("public static void create(final SormSession session, final Collection<%s> %ss)", sorm.getName(), OBJ);
         writeln("throws SQLException");
         writeln("{");
-        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
-        writeln("{");
-        writeln("create(session, %s);", OBJ);
-        writeln("}");
+        dumpTransactionalWrite("create");
+        if (batch || generated) {
+            writeln("if (session.isDelayingWrites())");
+            writeln("{");
+            writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+            writeln("{");
+            writeln("session.delayCreate(%s, DELAYED_CREATE);", OBJ);
+            writeln("}");
+            writeln();
+            writeln("return;");
+            writeln("}");
+            writeln();
+        }
+
+        if (batch) {
+            writeln("final PreparedStatement ps;");
+            buildPreparedStatement(sorm.getCreate(), null);
+            writeln();
+
+            writeln("try");
+            writeln("{");
+            if (IDGenerator.Pre == primary.getGenerator() && !sorm.getPk().isEmpty()) {
+                // Objects are only cached once their batch has been inserted
+                writeln("final int batchSize = session.getBatchSize();");
+                writeln("final List<%s> batched = new ArrayList<%s>();", sorm.getName(), sorm.getName());
+                writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+                writeln("{");
+                writeln("%s.%s(%s(session));", OBJ, primary.getSet().getName(), isAllocatable() ? "nextKey" : "getPk");
+                writeln("batchCreate(session, ps, %s);", OBJ);
+                writeln("batched.add(%s);", OBJ);
+                writeln("if (batched.size() == batchSize)");
+                writeln("{");
+                writeln("ps.executeBatch();");
+                writeln("cacheCreated(session, batched);");
+                writeln("batched.clear();");
+                writeln("}");
+                writeln("}");
+                writeln();
+                writeln("if (!batched.isEmpty())");
+                writeln("{");
+                writeln("ps.executeBatch();");
+                writeln("cacheCreated(session, batched);");
+                writeln("}");
+            }
+            else {
+                dumpBatchLoopStart();
+                dumpBatchLoopEnd("batchCreate");
+            }
+            writeln("}");
+            writeln("finally");
+            writeln("{");
+            writeln("session.releaseStatement(ps);");
+            writeln("}");
+        }
+        else if (generated) {
+            writeln("if (Dialect.GeneratedKeys.Batch != session.getContext().getDialect().getGeneratedKeys())");
+            writeln("{");
+            writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+            writeln("{");
+            writeln("create(session, %s);", OBJ);
+            writeln("}");
+            writeln();
+            writeln("return;");
+            writeln("}");
+            writeln();
+
+            writeln("final PreparedStatement ps;");
+            buildPreparedStatement(sorm.getCreate(), null, null, "Statement.RETURN_GENERATED_KEYS");
+            writeln();
+
+            writeln("try");
+            writeln("{");
+            writeln("final int batchSize = session.getBatchSize();");
+            writeln("final List<%s> batched = new ArrayList<%s>();", sorm.getName(), sorm.getName());
+            writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+            writeln("{");
+            writeln("batchCreate(session, ps, %s);", OBJ);
+            writeln("batched.add(%s);", OBJ);
+            writeln("if (batched.size() == batchSize)");
+            writeln("{");
+            writeln("ps.executeBatch();");
+            writeln("readGeneratedKeys(session, ps, batched);");
+            writeln("batched.clear();");
+            writeln("}");
+            writeln("}");
+            writeln();
+            writeln("if (!batched.isEmpty())");
+            writeln("{");
+            writeln("ps.executeBatch();");
+            writeln("readGeneratedKeys(session, ps, batched);");
+            writeln("}");
+            writeln("}");
+            writeln("finally");
+            writeln("{");
+            writeln("session.releaseStatement(ps);");
+            writeln("}");
+        }
+        else {
+            writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+            writeln("{");
+            writeln("create(session, %s);", OBJ);
+            writeln("}");
+        }
         writeln("}");
         writeln();
 
@@ -292,61 +707,213 @@ public class CodeGenerator
         writeln("public static void create(final SormSession session, final %s %s)", sorm.getName(), OBJ);
         writeln("throws SQLException");
         writeln("{");
-
-        if (IDGenerator.Pre == primary.getGenerator() && sorm.getPk().size() > 0) {
+        if (batch) {
+            writeln("create(session, Collections.singleton(%s));", OBJ);
+            writeln("}");
             writeln();
-            writeln("final %s %s = getPk(session);", primary.getType(), KEY);
-            writeln("%s.%s(%s);", OBJ, primary.getSet().getName(), KEY);
+
+            dumpBatchBinder("batchCreate", sorm.getCreate(), true);
+            if (IDGenerator.Pre == primary.getGenerator() && !sorm.getPk().isEmpty()) {
+                writeln();
+                writeln("/** Cache objects whose batch of inserts has been sent. */");
+                writeln("private static void cacheCreated(final SormSession session, final Collection<%s> %ss)", sorm.getName(),
+                        OBJ);
+                writeln("{");
+                writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+                writeln("{");
+                writeln("session.cacheAdd(%s.class, %s.%s(), %s);", sorm.getName(), OBJ, primary.getGet().getName(), OBJ);
+                writeln("}");
+                writeln("}");
+            }
+            return;
+        }
+
+        writeln("if (session.isDelayingWrites())");
+        writeln("{");
+        writeln("session.delayCreate(%s, DELAYED_CREATE);", OBJ);
+        writeln("return;");
+        writeln("}");
+
+        if (generated) {
             writeln();
-            writeln("session.cacheAdd(%s.class, %s, %s);", sorm.getName(), KEY, OBJ);
+            dumpOrmCreateGenerated();
+            return;
         }
 
         dumpPreparedStatement(sorm.getCreate(), OBJ);
 
         writeln("ps.executeUpdate();");
+        if (sorm.isDirtyTracking()) {
+            writeln("%s._sormDirty = 0;", OBJ);
+        }
         writeln("}");
         writeln("finally");
         writeln("{");
-        writeln("ps.close();");
+        writeln("session.releaseStatement(ps);");
         writeln("}");
+        writeln();
 
-        if (IDGenerator.Post == primary.getGenerator() && sorm.getPk().size() > 0) {
-            writeln();
-            writeln("final %s %s = getPk(session);", primary.getType(), KEY);
-            writeln("%s.%s(%s);", OBJ, primary.getSet().getName(), KEY);
-            writeln();
-            writeln("session.cacheAdd(%s.class, %s, %s);", sorm.getName(), KEY, OBJ);
-        }
-
+        writeln("final %s %s = getPk(session);", getKeyType(), KEY);
+        writeln("%s.%s(%s);", OBJ, primary.getSet().getName(), KEY);
+        writeln();
+        writeln("session.cacheAdd(%s.class, %s, %s);", sorm.getName(), KEY, OBJ);
         writeln("}");
     }
 
-    private void dumpOrmPk()
+    /**
+     * Dump the rest of the single-object create function for a primary key
+     * generated by the insert, and the functions it uses. Keys are read back
+     * through JDBC generated keys, falling back to the <code>pk</code> query
+     * for dialects whose driver cannot return them.
+     */
+    private void dumpOrmCreateGenerated()
     {
         final Field primary = sorm.getPrimaryField();
 
-        writeln("/** Get the last assigned primary key. */");
-        writeln("private static %s getPk(final SormSession session)", primary.getType());
-        writeln("throws SQLException");
-        writeln("{");
-
-        dumpPreparedStatement(sorm.getPk(), null);
+        writeln("final boolean returnKeys = (Dialect.GeneratedKeys.None != session.getContext().getDialect().getGeneratedKeys());");
+        if (sorm.getPk().isEmpty()) {
+            writeln("if (!returnKeys)");
+            writeln("{");
+            writeln("throw new SQLFeatureNotSupportedException(\"Dialect \" + session.getDialect() + \" cannot return generated keys\");");
+            writeln("}");
+        }
         writeln();
 
-        writeln("final ResultSet rs = ps.executeQuery();");
-        writeln("try");
+        dumpPreparedStatement(sorm.getCreate(), OBJ, "(returnKeys ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS)");
+
+        writeln("ps.executeUpdate();");
+        if (sorm.isDirtyTracking()) {
+            writeln("%s._sormDirty = 0;", OBJ);
+        }
+        writeln("if (returnKeys)");
         writeln("{");
-        writeln("rs.next();");
-        writeln("return rs.%s(\"id\");", primary.getSql_type().getter);
+        writeln("readGeneratedKeys(session, ps, Collections.singletonList(%s));", OBJ);
+        if (!sorm.getPk().isEmpty()) {
+            writeln("return;");
+        }
+        writeln("}");
         writeln("}");
         writeln("finally");
         writeln("{");
-        writeln("rs.close();");
-        writeln("}");
+        writeln("session.releaseStatement(ps);");
+        writeln("}");
+
+        if (!sorm.getPk().isEmpty()) {
+            writeln();
+            writeln("final %s %s = getPk(session);", getKeyType(), KEY);
+            writeln("%s.%s(%s);", OBJ, primary.getSet().getName(), KEY);
+            writeln();
+            writeln("session.cacheAdd(%s.class, %s, %s);", sorm.getName(), KEY, OBJ);
+        }
+        writeln("}");
+        writeln();
+
+        dumpBatchBinder("batchCreate", sorm.getCreate(), true);
+        writeln();
+
+        writeln("/**");
+        writeln(" * Set the keys generated by the last execution of a create statement on the");
+        writeln(" * objects it inserted, in order.");
+        writeln(" */");
+        writeln("private static void readGeneratedKeys(final SormSession session, final PreparedStatement ps, final Collection<%s> %ss)",
+                sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("final ResultSet rs = ps.getGeneratedKeys();");
+        writeln("try");
+        writeln("{");
+        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+        writeln("{");
+        writeln("if (!rs.next())");
+        writeln("{");
+        writeln("throw new SQLException(\"Fewer keys were generated than %s objects inserted\");", sorm.getName());
+        writeln("}");
+        writeln();
+        writeln("final %s %s = rs.%s(1);", getKeyType(), KEY, primary.getSql_type().getter);
+        writeln("%s.%s(%s);", OBJ, primary.getSet().getName(), KEY);
+        writeln("session.cacheAdd(%s.class, %s, %s);", sorm.getName(), KEY, OBJ);
+        writeln("}");
+        writeln("}");
+        writeln("finally");
+        writeln("{");
+        writeln("rs.close();");
+        writeln("}");
+        writeln("}");
+    }
+
+    /**
+     * Dump a function that gets the key for a new object from the context's
+     * {@link net.jonp.sorm.KeyAllocator}, if the type is configured there, or
+     * from the <code>pk</code> query otherwise.
+     */
+    private void dumpOrmNextKey()
+    {
+        final Field primary = sorm.getPrimaryField();
+        final String cast = (SQLType.Integer == primary.getSql_type() ? "(int)" : "");
+
+        writeln("/**");
+        writeln(" * Get the key for a new object, from the context's {@link KeyAllocator} if");
+        writeln(" * %s is configured there, otherwise from the database.", sorm.getName());
+        writeln(" */");
+        writeln("private static %s nextKey(final SormSession session)", primary.getType());
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("final KeyAllocator allocator = session.getContext().getKeyAllocator();");
+        writeln("if (!allocator.isEnabled(%s.class))", sorm.getName());
+        writeln("{");
+        writeln("return getPk(session);");
+        writeln("}");
+        writeln();
+        writeln("return %sallocator.next(%s.class, new KeyAllocator.BlockSource()", cast, sorm.getName());
+        writeln("{");
+        writeln("@Override");
+        writeln("public long reserve()");
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("return getPk(session);");
+        writeln("}");
+        writeln("});");
+        writeln("}");
+    }
+
+    /**
+     * Test whether keys of this type can come from a
+     * {@link net.jonp.sorm.KeyAllocator}, which needs a pre-generated integer
+     * key.
+     */
+    private boolean isAllocatable()
+    {
+        final Field primary = sorm.getPrimaryField();
+        return (IDGenerator.Pre == primary.getGenerator() && !sorm.getPk().isEmpty() &&
+                (SQLType.Integer == primary.getSql_type() || SQLType.Long == primary.getSql_type()));
+    }
+
+    private void dumpOrmPk()
+    {
+        final Field primary = sorm.getPrimaryField();
+
+        writeln("/** Get the last assigned primary key. */");
+        writeln("private static %s getPk(final SormSession session)", primary.getType());
+        writeln("throws SQLException");
+        writeln("{");
+
+        dumpPreparedStatement(sorm.getPk(), null);
+        writeln();
+
+        writeln("final ResultSet rs = ps.executeQuery();");
+        writeln("try");
+        writeln("{");
+        writeln("rs.next();");
+        writeln("return rs.%s(\"id\");", primary.getSql_type().getter);
+        writeln("}");
+        writeln("finally");
+        writeln("{");
+        writeln("rs.close();");
+        writeln("}");
         writeln("}");
         writeln("finally");
         writeln("{");
-        writeln("ps.close();");
+        writeln("session.releaseStatement(ps);");
         writeln("}");
         writeln("}");
     }
@@ -356,7 +923,7 @@ public class CodeGenerator
         final Field primary = sorm.getPrimaryField();
 
         writeln("@Override");
-        writeln("public Collection<%s> read(final %s... %ss)", sorm.getName(), primary.getType(), KEY);
+        writeln("public Collection<%s> read(final %s... %ss)", sorm.getName(), getKeyType(), KEY);
         writeln("throws SQLException");
         writeln("{");
         writeln("return read(getSession(), %ss);", KEY);
@@ -364,7 +931,7 @@ public class CodeGenerator
         writeln();
 
         writeln("/** Convenience wrapper around {@link #read(SormSession, Collection)}. */");
-        writeln("public static Collection<%s> read(final SormSession session, final %s... %ss)", sorm.getName(), primary.getType(),
+        writeln("public static Collection<%s> read(final SormSession session, final %s... %ss)", sorm.getName(), getKeyType(),
                 KEY);
         writeln("throws SQLException");
         writeln("{");
@@ -373,7 +940,7 @@ public class CodeGenerator
         writeln();
 
         writeln("@Override");
-        writeln("public Collection<%s> read(final Collection<%s> %ss)", sorm.getName(), primary.getType(), KEY);
+        writeln("public Collection<%s> read(final Collection<%s> %ss)", sorm.getName(), getKeyType(), KEY);
         writeln("throws SQLException");
         writeln("{");
         writeln("return read(getSession(), %ss);", KEY);
@@ -389,16 +956,16 @@ public class CodeGenerator
         writeln(" * @throws SQLException If there was a problem accessing the database.");
         writeln(" */");
         writeln("public static Collection<%s> read(final SormSession session, final Collection<%s> %ss)", sorm.getName(),
-                primary.getType(), KEY);
+                getKeyType(), KEY);
         writeln("throws SQLException");
         writeln("{");
 
         // Avoid building a PreparedStatement if possible, by scanning for all
         // values in the cache; If we cannot find them all, we can still use
         // this local copy of the cache to populate some
-        writeln("final Map<%s, %s> cached = new LinkedHashMap<%s, %s>();", primary.getType(), sorm.getName(), primary.getType(),
+        writeln("final Map<%s, %s> cached = new LinkedHashMap<%s, %s>();", getKeyType(), sorm.getName(), getKeyType(),
                 sorm.getName());
-        writeln("for (final %s %s : %ss)", primary.getType(), KEY, KEY);
+        writeln("for (final %s %s : %ss)", getKeyType(), KEY, KEY);
         writeln("{");
         writeln("final %s %s = session.cacheGet(%s.class, %s);", sorm.getName(), OBJ, sorm.getName(), KEY);
         writeln("if (null != %s)", OBJ);
@@ -410,43 +977,50 @@ public class CodeGenerator
 
         writeln("if (cached.size() == %ss.size())", KEY);
         writeln("{");
+        dumpAttach("cached.values()");
         writeln("return cached.values();");
         writeln("}");
         writeln();
 
-        writeln("final PreparedStatement ps;");
-        buildPreparedStatement(sorm.getRead(), null);
-        writeln();
+        if (!sorm.getReadMany().isEmpty()) {
+            // Read everything that was not cached in as few queries as
+            // possible, then put the results back in order
+            writeln("final Collection<%s> missing = new LinkedHashSet<%s>();", getKeyType(), getKeyType());
+            writeln("for (final %s %s : %ss)", getKeyType(), KEY, KEY);
+            writeln("{");
+            writeln("if (null != %s && !cached.containsKey(%s))", KEY, KEY);
+            writeln("{");
+            writeln("missing.add(%s);", KEY);
+            writeln("}");
+            writeln("}");
+            writeln();
+            writeln("readMany(session, new ArrayList<%s>(missing), cached);", getKeyType());
+            writeln();
 
-        writeln("final Collection<%s> %ss = new ArrayList<%s>(%ss.size());", sorm.getName(), OBJ, sorm.getName(), KEY);
-        writeln("try");
-        writeln("{");
-        writeln("for (final %s %s : %ss)", primary.getType(), KEY, KEY);
-        writeln("{");
-        writeln("%s %s = cached.remove(%s);", sorm.getName(), OBJ, KEY);
-        writeln("if (null == %s)", OBJ);
-        writeln("{");
-        writeln("%s = readSingle(ps, %s);", OBJ, KEY);
-        writeln("session.cacheAdd(%s.class, %s, %s);", sorm.getName(), KEY, OBJ);
-        writeln("}");
-        writeln();
-        writeln("if (null != %s)", OBJ);
-        writeln("{");
-        writeln("%ss.add(%s);", OBJ, OBJ);
-        writeln("}");
-        writeln("}");
-        writeln("}");
-        writeln("finally");
-        writeln("{");
-        writeln("ps.close();");
-        writeln("}");
-        writeln();
-        writeln("return %ss;", OBJ);
-        writeln("}");
+            writeln("final Collection<%s> %ss = new ArrayList<%s>(%ss.size());", sorm.getName(), OBJ, sorm.getName(), KEY);
+            writeln("for (final %s %s : %ss)", getKeyType(), KEY, KEY);
+            writeln("{");
+            writeln("final %s %s = cached.get(%s);", sorm.getName(), OBJ, KEY);
+            writeln("if (null != %s)", OBJ);
+            writeln("{");
+            writeln("%ss.add(%s);", OBJ, OBJ);
+            writeln("}");
+            writeln("}");
+            writeln();
+            dumpAttach(OBJ + "s");
+            writeln("return %ss;", OBJ);
+            writeln("}");
+            writeln();
+
+            dumpOrmReadMany();
+        }
+        else {
+            dumpOrmReadEach();
+        }
         writeln();
 
         writeln("@Override");
-        writeln("public %s read(final %s %s)", sorm.getName(), primary.getType(), KEY);
+        writeln("public %s read(final %s %s)", sorm.getName(), getKeyType(), KEY);
         writeln("throws SQLException");
         writeln("{");
         writeln("return read(getSession(), %s);", KEY);
@@ -454,7 +1028,7 @@ public class CodeGenerator
         writeln();
 
         writeln("/** Convenience wrapper around {@link #read(SormSession, Collection)}. */");
-        writeln("public static %s read(final SormSession session, final %s %s)", sorm.getName(), primary.getType(), KEY);
+        writeln("public static %s read(final SormSession session, final %s %s)", sorm.getName(), getKeyType(), KEY);
         writeln("throws SQLException");
         writeln("{");
         writeln("final Collection<%s> %ss = read(session, Collections.singleton(%s));", sorm.getName(), OBJ, KEY);
@@ -469,7 +1043,30 @@ public class CodeGenerator
         writeln("}");
         writeln();
 
-        writeln("static %s readSingle(final PreparedStatement ps, final %s %s)", sorm.getName(), primary.getType(), KEY);
+        writeln("/**");
+        writeln(" * Read a number of %s objects out of the database, by key.", sorm.getName());
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @param %ss The keys of the %s objects to read.", KEY, sorm.getName());
+        writeln(" * @return The %s objects that were read, by key. May not include all requested objects.", sorm.getName());
+        writeln(" * @throws SQLException If there was a problem accessing the database.");
+        writeln(" */");
+        writeln("public static Map<%s, %s> readMap(final SormSession session, final Collection<%s> %ss)", getKeyType(),
+                sorm.getName(), getKeyType(), KEY);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("final Map<%s, %s> %ss = new LinkedHashMap<%s, %s>();", getKeyType(), sorm.getName(), OBJ, getKeyType(),
+                sorm.getName());
+        writeln("for (final %s %s : read(session, %ss))", sorm.getName(), OBJ, KEY);
+        writeln("{");
+        writeln("%ss.put(%s.%s(), %s);", OBJ, OBJ, primary.getGet().getName(), OBJ);
+        writeln("}");
+        writeln();
+        writeln("return %ss;", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("static %s readSingle(final PreparedStatement ps, final %s %s)", sorm.getName(), getKeyType(), KEY);
         writeln("throws SQLException");
         writeln("{");
 
@@ -486,21 +1083,7 @@ public class CodeGenerator
         writeln("}");
         writeln("else");
         writeln("{");
-        writeln("%s = new %s();", OBJ, sorm.getName());
-
-        for (final Field f : sorm.getFields()) {
-            // FUTURE: Figure out a way to avoid requiring the query to
-            // return all fields
-            if (f == primary) {
-                writeln("%s.%s(%s);", OBJ, primary.getSet().getName(), KEY);
-            }
-            else {
-                // TODO: Test whether this field was returned by the query
-                // before trying to read it
-                compileFromRS(f, OBJ);
-            }
-        }
-
+        writeln("%s = hydrate(rs, findColumns(rs, ROW_COLUMNS), %s);", OBJ, KEY);
         writeln("}");
         writeln();
 
@@ -514,7 +1097,7 @@ public class CodeGenerator
         writeln();
 
         writeln("@Override");
-        writeln("public SormIterable<%s> matches(final Collection<%s> %ss)", sorm.getName(), primary.getType(), KEY);
+        writeln("public SormIterable<%s> matches(final Collection<%s> %ss)", sorm.getName(), getKeyType(), KEY);
         writeln("{");
         writeln("return matches(getSession(), %ss);", KEY);
         writeln("}");
@@ -530,7 +1113,7 @@ public class CodeGenerator
         writeln(" *         Don't forget to close the {@link SormIterator}s that you get.");
         writeln(" */");
         writeln("public static SormIterable<%s> matches(final SormSession session, final Collection<%s> %ss)", sorm.getName(),
-                primary.getType(), KEY);
+                getKeyType(), KEY);
         writeln("{");
         writeln("return new SormIterable<%s>()", sorm.getName());
         writeln("{");
@@ -541,8 +1124,11 @@ public class CodeGenerator
         writeln("{");
         writeln("private %s nextRow;", sorm.getName());
         writeln("private boolean nextKnown = false;");
-        writeln("private final Iterator<%s> it%ss = %ss.iterator();", primary.getType(), KEY, KEY);
+        writeln("private final Iterator<%s> it%ss = %ss.iterator();", getKeyType(), KEY, KEY);
         writeln("private final PreparedStatement ps;");
+        if (hasLazyLinks()) {
+            dumpStreamSiblingsFields();
+        }
         writeln();
 
         writeln("{");
@@ -564,7 +1150,7 @@ public class CodeGenerator
         writeln("{");
         writeln("if (it%ss.hasNext())", KEY);
         writeln("{");
-        writeln("final %s %s = it%ss.next();", primary.getType(), KEY, KEY);
+        writeln("final %s %s = it%ss.next();", getKeyType(), KEY, KEY);
         writeln("try");
         writeln("{");
         writeln("%s %s = session.cacheGet(%s.class, %s);", sorm.getName(), OBJ, sorm.getName(), KEY);
@@ -575,6 +1161,9 @@ public class CodeGenerator
         writeln("}");
         writeln();
 
+        if (hasLazyLinks()) {
+            dumpStreamSiblingsAttach();
+        }
         writeln("nextRow = %s;", OBJ);
         writeln("}");
         writeln("catch (final SQLException sqle)");
@@ -619,222 +1208,285 @@ public class CodeGenerator
         writeln("public void close()");
         writeln("throws SQLException");
         writeln("{");
-        writeln("ps.close();");
+        writeln("session.releaseStatement(ps);");
         writeln("}");
         writeln("};");
         writeln("}");
         writeln("};");
         writeln("}");
+
+        if (isPrimitiveKey()) {
+            writeln();
+            dumpOrmReadPrimitive();
+        }
     }
 
-    private void dumpOrmUpdate()
+    /**
+     * Dump overloads of <code>read</code> and <code>matches</code> that take
+     * keys of the primitive type of the primary key. Arrays of keys are not
+     * varargs, since calls would be ambiguous with the boxed varargs
+     * overloads.
+     */
+    private void dumpOrmReadPrimitive()
     {
-        writeln("@Override");
-        writeln("public void update(final %s... %ss)", sorm.getName(), OBJ);
+        final String primitive = sorm.getPrimaryField().getType();
+
+        writeln("public %s read(final %s %s)", sorm.getName(), primitive, KEY);
         writeln("throws SQLException");
         writeln("{");
-        writeln("update(getSession(), %ss);", OBJ);
+        writeln("return read(getSession(), %s);", KEY);
         writeln("}");
         writeln();
 
-        writeln("/** Convenience wrapper around {@link #update(SormSession, Collection)}. */");
-        writeln("public static void update(final SormSession session, final %s... %ss)", sorm.getName(), OBJ);
+        writeln("/** Convenience wrapper around {@link #read(SormSession, Collection)}. */");
+        writeln("public static %s read(final SormSession session, final %s %s)", sorm.getName(), primitive, KEY);
         writeln("throws SQLException");
         writeln("{");
-        writeln("update(session, Arrays.asList(%ss));", OBJ);
+        writeln("return read(session, %s.valueOf(%s));", getKeyType(), KEY);
         writeln("}");
         writeln();
 
-        writeln("@Override");
-        writeln("public void update(final Collection<%s> %ss)", sorm.getName(), OBJ);
+        writeln("public Collection<%s> read(final %s[] %ss)", sorm.getName(), primitive, KEY);
         writeln("throws SQLException");
         writeln("{");
-        writeln("update(getSession(), %ss);", OBJ);
+        writeln("return read(getSession(), %ss);", KEY);
         writeln("}");
         writeln();
 
-        writeln("/**");
-        writeln(" * Update a collection of %s objects in the database.", sorm.getName());
-        writeln(" *");
-        writeln(" * @param session The {@link SormSession} to use.");
-        writeln(" * @param %ss The %s objects to update in the database.", OBJ, sorm.getName());
-        writeln(" * @throws SQLException If there is a problem.");
-        writeln(" */");
-        writeln("public static void update(final SormSession session, final Collection<%s> %ss)", sorm.getName(), OBJ);
+        writeln("/** Convenience wrapper around {@link #read(SormSession, Collection)}. */");
+        writeln("public static Collection<%s> read(final SormSession session, final %s[] %ss)", sorm.getName(), primitive, KEY);
         writeln("throws SQLException");
         writeln("{");
-
-        writeln("final PreparedStatement ps;");
-        buildPreparedStatement(sorm.getUpdate(), null);
-        writeln();
-
-        writeln("try");
-        writeln("{");
-        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
-        writeln("{");
-        writeln("updateSingle(session, ps, %s);", OBJ);
-        writeln("}");
-        writeln("}");
-        writeln("finally");
-        writeln("{");
-        writeln("ps.close();");
-        writeln("}");
+        writeln("return read(session, box(%ss));", KEY);
         writeln("}");
         writeln();
 
-        writeln("@Override");
-        writeln("public void update(final %s %s)", sorm.getName(), OBJ);
-        writeln("throws SQLException");
+        writeln("public SormIterable<%s> matches(final %s[] %ss)", sorm.getName(), primitive, KEY);
         writeln("{");
-        writeln("update(getSession(), %s);", OBJ);
+        writeln("return matches(getSession(), %ss);", KEY);
         writeln("}");
         writeln();
 
-        writeln("/** Convenience wrapper around {@link #update(SormSession, Collection)}. */");
-        writeln("public static void update(final SormSession session, final %s %s)", sorm.getName(), OBJ);
-        writeln("throws SQLException");
+        writeln("/** Convenience wrapper around {@link #matches(SormSession, Collection)}. */");
+        writeln("public static SormIterable<%s> matches(final SormSession session, final %s[] %ss)", sorm.getName(), primitive,
+                KEY);
         writeln("{");
-        writeln("update(session, Collections.singleton(%s));", OBJ);
+        writeln("return matches(session, box(%ss));", KEY);
         writeln("}");
         writeln();
 
-        writeln("static void updateSingle(final SormSession session, final PreparedStatement ps, final %s %s)", sorm.getName(), OBJ);
-        writeln("throws SQLException");
+        writeln("private static List<%s> box(final %s[] %ss)", getKeyType(), primitive, KEY);
         writeln("{");
-        populatePreparedStatement(sorm.getUpdate(), OBJ);
+        writeln("final List<%s> boxed = new ArrayList<%s>(%ss.length);", getKeyType(), getKeyType(), KEY);
+        writeln("for (final %s %s : %ss)", primitive, KEY, KEY);
+        writeln("{");
+        writeln("boxed.add(%s);", KEY);
+        writeln("}");
         writeln();
-
-        writeln("ps.executeUpdate();");
+        writeln("return boxed;");
         writeln("}");
     }
 
-    private void dumpOrmDelete()
+    /**
+     * Dump a function that builds an object from the current row of a result
+     * set, shared by everything that reads full rows.
+     */
+    private void dumpOrmHydrate()
     {
         final Field primary = sorm.getPrimaryField();
+        final List<Field> fields = new ArrayList<Field>(sorm.getFields());
+        fields.remove(primary);
+        final List<String> labels = getReadColumns(fields);
 
-        // TODO: Allow deletion by key
-        writeln("@Override");
-        writeln("public void delete(final %s... %ss)", sorm.getName(), OBJ);
-        writeln("throws SQLException");
-        writeln("{");
-        writeln("delete(getSession(), %ss);", OBJ);
-        writeln("}");
-        writeln();
-
-        writeln("/** Convenience wrapper around {@link #delete(SormSession, Collection)}. */");
-        writeln("public static void delete(final SormSession session, final %s... %ss)", sorm.getName(), OBJ);
-        writeln("throws SQLException");
-        writeln("{");
-        writeln("delete(session, Arrays.asList(%ss));", OBJ);
-        writeln("}");
-        writeln();
-
-        writeln("@Override");
-        writeln("public void delete(final Collection<%s> %ss)", sorm.getName(), OBJ);
-        writeln("throws SQLException");
-        writeln("{");
-        writeln("delete(getSession(), %ss);", OBJ);
-        writeln("}");
+        dumpColumnLabels("ROW_COLUMNS", labels, "hydrate()");
         writeln();
 
         writeln("/**");
-        writeln(" * Delete a collection of %s objects from the database.", sorm.getName());
+        writeln(" * Build a %s from the current row of a result set.", sorm.getName());
         writeln(" *");
-        writeln(" * @param session The {@link SormSession} to use.");
-        writeln(" * @param %ss The %s objects to delete from the database.", OBJ, sorm.getName());
-        writeln(" * @throws SQLException If there was a problem.");
+        writeln(" * @param rs The result set, positioned on the row to read.");
+        writeln(" * @param columns The positions of {@link #ROW_COLUMNS} in the result set.");
+        writeln(" * @param %s The key of the %s in the row.", KEY, sorm.getName());
+        writeln(" * @return The new %s.", sorm.getName());
+        writeln(" * @throws SQLException If there was a problem reading the row.");
         writeln(" */");
-        writeln("public static void delete(final SormSession session, final Collection<%s> %ss)", sorm.getName(), OBJ);
+        writeln("static %s hydrate(final ResultSet rs, final int[] columns, final %s %s)", sorm.getName(), getKeyType(), KEY);
         writeln("throws SQLException");
         writeln("{");
-        writeln("final PreparedStatement ps;");
-        buildPreparedStatement(sorm.getDelete(), null);
-        writeln();
+        writeln("final %s %s = new %s();", sorm.getName(), OBJ, sorm.getName());
 
-        writeln("try");
-        writeln("{");
-        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
-        writeln("{");
-        writeln("deleteSingle(session, ps, %s);", OBJ);
-        writeln("session.cacheDel(%s.class, %s.%s());", sorm.getName(), OBJ, primary.getGet().getName());
-        writeln("}");
-        writeln("}");
-        writeln("finally");
-        writeln("{");
-        writeln("ps.close();");
-        writeln("}");
+        for (final Field f : sorm.getFields()) {
+            // Reads of only some of the fields go through projections
+            if (f == primary) {
+                writeln("%s.%s(%s);", OBJ, primary.getSet().getName(), KEY);
+            }
+            else {
+                // TODO: Test whether this field was returned by the query
+                // before trying to read it
+                compileFromRS(f, OBJ, labels);
+            }
+        }
+
+        if (sorm.isDirtyTracking()) {
+            // The setters marked every column
+            writeln("%s._sormDirty = 0;", OBJ);
+        }
+
+        writeln();
+        writeln("return %s;", OBJ);
         writeln("}");
+    }
+
+    /**
+     * Dump the part of the collection read that reads each uncached object
+     * with its own query, for types that do not declare a read-many query.
+     */
+    private void dumpOrmReadEach()
+    {
+        writeln("final PreparedStatement ps;");
+        buildPreparedStatement(sorm.getRead(), null);
         writeln();
 
-        writeln("@Override");
-        writeln("public void delete(final %s %s)", sorm.getName(), OBJ);
-        writeln("throws SQLException");
+        writeln("final Collection<%s> %ss = new ArrayList<%s>(%ss.size());", sorm.getName(), OBJ, sorm.getName(), KEY);
+        writeln("try");
         writeln("{");
-        writeln("delete(getSession(), %s);", OBJ);
+        writeln("for (final %s %s : %ss)", getKeyType(), KEY, KEY);
+        writeln("{");
+        writeln("%s %s = cached.remove(%s);", sorm.getName(), OBJ, KEY);
+        writeln("if (null == %s)", OBJ);
+        writeln("{");
+        writeln("%s = readSingle(ps, %s);", OBJ, KEY);
+        writeln("session.cacheAdd(%s.class, %s, %s);", sorm.getName(), KEY, OBJ);
         writeln("}");
         writeln();
-
-        writeln("/** Convenience wrapper around {@link #delete(SormSession, Collection)}. */");
-        writeln("public static void delete(final SormSession session, final %s %s)", sorm.getName(), OBJ);
-        writeln("throws SQLException");
+        writeln("if (null != %s)", OBJ);
         writeln("{");
-        writeln("delete(session, Collections.singleton(%s));", OBJ);
+        writeln("%ss.add(%s);", OBJ, OBJ);
+        writeln("}");
+        writeln("}");
+        writeln("}");
+        writeln("finally");
+        writeln("{");
+        writeln("session.releaseStatement(ps);");
         writeln("}");
         writeln();
+        dumpAttach(OBJ + "s");
+        writeln("return %ss;", OBJ);
+        writeln("}");
+    }
 
-        writeln("static void deleteSingle(final SormSession session, final PreparedStatement ps, final %s %s)", sorm.getName(), OBJ);
+    /**
+     * Dump a function that reads a list of objects using the read-many query,
+     * one chunk of keys at a time.
+     */
+    private void dumpOrmReadMany()
+    {
+        final Field primary = sorm.getPrimaryField();
+
+        writeln("/**");
+        writeln(" * Read a number of %s objects out of the database, using one query for", sorm.getName());
+        writeln(" * each {@link SormSession#getBatchSize()} keys, and add them to the cache.");
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @param %ss The keys of the %s objects to read. Must not contain duplicates.", KEY, sorm.getName());
+        writeln(" * @param found [OUT] The objects that were read, by key.");
+        writeln(" * @throws SQLException If there was a problem accessing the database.");
+        writeln(" */");
+        writeln("static void readMany(final SormSession session, final List<%s> %ss, final Map<%s, %s> found)", getKeyType(),
+                KEY, getKeyType(), sorm.getName());
         writeln("throws SQLException");
         writeln("{");
-        populatePreparedStatement(sorm.getDelete(), OBJ);
+        writeln("if (%ss.isEmpty())", KEY);
+        writeln("{");
+        writeln("return;");
+        writeln("}");
         writeln();
 
-        writeln("ps.executeUpdate();");
+        dumpKeyChunksStart(sorm.getReadMany(), getKeyType(), primary.getSql_type(),
+                           String.format("findColumns(rs, ROW_COLUMNS, \"%s\")", primary.getSql_column()));
+        writeln("final %s %s = rs.%s(columns[ROW_COLUMNS.length]);", getKeyType(), KEY, primary.getSql_type().getter);
+        writeln("final %s %s = hydrate(rs, columns, %s);", sorm.getName(), OBJ, KEY);
+        writeln("session.cacheAdd(%s.class, %s, %s);", sorm.getName(), KEY, OBJ);
+        writeln("found.put(%s, %s);", KEY, OBJ);
+        dumpKeyChunksEnd();
         writeln("}");
     }
 
-    private void dumpOrmMapRead(final Field field)
+    /**
+     * Dump the start of a loop that runs a query once for each chunk of a list
+     * of keys named <code>keys</code>, through the start of the loop over the
+     * rows of each result set, which is named <code>rs</code>. Every
+     * <code>%{keys}</code> reference in the query becomes a list of
+     * placeholders as long as a chunk; the last chunk is padded by repeating
+     * its last key, so every chunk can use the same statement.
+     * 
+     * @param query The query.
+     * @param keyType The type of the keys.
+     * @param keySqlType The SQL type of the keys.
+     * @param findColumns An expression that finds the positions of the
+     *            columns of each result set, which are named
+     *            <code>columns</code>, once its first row is read.
+     */
+    private void dumpKeyChunksStart(final Query query, final String keyType, final SQLType keySqlType, final String findColumns)
     {
-        final String fieldName = getSafeFieldName(field);
-        writeln("/** Convenience wrapper around {@link #readMapped%s(SormSession, %s)}. */", StringUtil.capFirst(fieldName),
-                sorm.getName());
-        writeln("public Collection<%s> readMapped%s(final %s %s)", field.getLink().getType(), StringUtil.capFirst(fieldName),
-                sorm.getName(), OBJ);
-        writeln("throws SQLException");
+        writeln("final int chunkSize = Math.min(session.getBatchSize(), %ss.size());", KEY);
+        writeln("final StringBuilder buf = new StringBuilder();");
+        writeln("for (int i = 0; i < chunkSize; i++)");
         writeln("{");
-        writeln("return readMapped%s(getSession(), %s);", StringUtil.capFirst(fieldName), OBJ);
+        writeln("buf.append(0 == i ? \"?\" : \", ?\");");
         writeln("}");
+        writeln("final String inList = buf.toString();");
         writeln();
 
-        writeln("/**");
-        writeln(" * Read all mapped %s related to a given %s.", fieldName, sorm.getName());
-        writeln(" *");
-        writeln(" * @param session The {@link SormSession} to use.");
-        writeln(" * @param %s The %s whose %s to read.", OBJ, sorm.getName(), fieldName);
-        writeln(" * @return The collection of %s mapped to this %s.", fieldName, sorm.getName());
-        writeln(" * @throws SQLException If there was a problem.");
-        writeln(" */");
-        writeln("public static Collection<%s> readMapped%s(final SormSession session, final %s %s)", field.getLink().getType(),
-                StringUtil.capFirst(fieldName), sorm.getName(), OBJ);
-        writeln("throws SQLException");
-        writeln("{");
         writeln("final PreparedStatement ps;");
-        buildPreparedStatement(field.getLink().getCollection().getRead(), null);
+        writeln("final int keyLists;");
+        buildPreparedStatement(query, null);
         writeln();
 
-        writeln("final Collection<%s> %ss = new LinkedList<%s>();", field.getLink().getKey_type(), KEY, field.getLink()
-            .getKey_type());
         writeln("try");
         writeln("{");
-        populatePreparedStatement(field.getLink().getCollection().getRead(), OBJ);
+        writeln("for (int start = 0; start < %ss.size(); start += chunkSize)", KEY);
+        writeln("{");
+        writeln("for (int list = 0; list < keyLists; list++)");
+        writeln("{");
+        writeln("for (int i = 0; i < chunkSize; i++)");
+        writeln("{");
+        writeln("final %s %s = %ss.get(Math.min(start + i, %ss.size() - 1));", keyType, KEY, KEY, KEY);
+        writeln("LOG.debug(\"  Param \" + (list * chunkSize + i + 1) + \": \" + %s);", KEY);
+        writeln("ps.%s(list * chunkSize + i + 1, %s);", keySqlType.setter, KEY);
+        writeln("}");
+        writeln("}");
         writeln();
 
         writeln("final ResultSet rs = ps.executeQuery();");
         writeln("try");
         writeln("{");
+        dumpColumnsLoopStart(findColumns);
+    }
+
+    /**
+     * Dump the start of a loop over the rows of a result set named
+     * <code>rs</code>, that finds the positions of its columns once the first
+     * row is read.
+     * 
+     * @param findColumns An expression that finds the positions, which are
+     *            named <code>columns</code>.
+     */
+    private void dumpColumnsLoopStart(final String findColumns)
+    {
+        writeln("int[] columns = null;");
         writeln("while (rs.next())");
         writeln("{");
-        writeln("final %s %s = rs.%s(\"id\");", field.getLink().getKey_type(), KEY, field.getLink().getSql_type().getter);
-        writeln("%ss.add(%s);", KEY, KEY);
+        writeln("if (null == columns)");
+        writeln("{");
+        writeln("columns = %s;", findColumns);
+        writeln("}");
+        writeln();
+    }
+
+    /** Dump the end of a loop started by {@link #dumpKeyChunksStart(Query, String, SQLType, String)}. */
+    private void dumpKeyChunksEnd()
+    {
         writeln("}");
         writeln("}");
         writeln("finally");
@@ -842,171 +1494,2046 @@ public class CodeGenerator
         writeln("rs.close();");
         writeln("}");
         writeln("}");
+        writeln("}");
         writeln("finally");
         writeln("{");
-        writeln("ps.close();");
-        writeln("}");
-        writeln();
-        writeln("return %s.Orm.read(session, %ss);", field.getLink().getType(), KEY);
+        writeln("session.releaseStatement(ps);");
         writeln("}");
     }
 
-    private void dumpOrmMapCreate(final Field field)
+    private void dumpOrmUpdate()
     {
-        final String fieldName = getSafeFieldName(field);
-        writeln("/** Convenience wrapper around {@link #map%s(SormSession, %s, %s)}. */", StringUtil.capFirst(fieldName),
-                sorm.getName(), field.getLink().getType());
-        writeln("public void map%s(final %s %s, final %s %s)", StringUtil.capFirst(fieldName), sorm.getName(), LHS, field.getLink()
-            .getType(), RHS);
+        if (sorm.isDirtyTracking()) {
+            dumpOrmUpdateColumns();
+            writeln();
+        }
+
+        dumpDelayedWriter("DELAYED_UPDATE", sorm.getName(), "updates", "update(session, %ss);", OBJ);
+        writeln();
+
+        writeln("@Override");
+        writeln("public void update(final %s... %ss)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("update(getSession(), %ss);", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("/** Convenience wrapper around {@link #update(SormSession, Collection)}. */");
+        writeln("public static void update(final SormSession session, final %s... %ss)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("update(session, Arrays.asList(%ss));", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("@Override");
+        writeln("public void update(final Collection<%s> %ss)", sorm.getName(), OBJ);
         writeln("throws SQLException");
         writeln("{");
-        writeln("map%s(getSession(), %s, %s);", StringUtil.capFirst(fieldName), LHS, RHS);
+        writeln("update(getSession(), %ss);", OBJ);
         writeln("}");
         writeln();
 
         writeln("/**");
-        writeln(" * Add a new %s mapping to the given %s.", StringUtil.capFirst(fieldName), sorm.getName());
+        writeln(" * Update a collection of %s objects in the database.", sorm.getName());
+        if (sorm.isDirtyTracking()) {
+            writeln(" * Objects that have not changed since they were read or written are skipped,");
+            writeln(" * and only the changed columns of the others are written.");
+        }
         writeln(" *");
         writeln(" * @param session The {@link SormSession} to use.");
-        writeln(" * @param %s The %s object to which the mapping should be added.", LHS, sorm.getName());
-        writeln(" * @param %s The %s to add to the mappings of <code>%s</code>.", RHS, StringUtil.capFirst(fieldName), LHS);
-        writeln(" * @throws SQLException If there was a problem.");
+        writeln(" * @param %ss The %s objects to update in the database.", OBJ, sorm.getName());
+        writeln(" * @throws SQLException If there is a problem.");
         writeln(" */");
-        writeln("public static void map%s(final SormSession session, final %s %s, final %s %s)", StringUtil.capFirst(fieldName),
-                sorm.getName(), LHS, field.getLink().getType(), RHS);
+        writeln("public static void update(final SormSession session, final Collection<%s> %ss)", sorm.getName(), OBJ);
         writeln("throws SQLException");
         writeln("{");
-
-        writeln("final PreparedStatement ps;");
-        buildPreparedStatement(field.getLink().getCollection().getCreate(), null);
+        if (!sorm.isDirtyTracking() || 0 != getAlwaysDirty()) {
+            dumpPartialCheck("update");
+        }
+        dumpTransactionalWrite("update");
+        writeln("if (session.isDelayingWrites())");
+        writeln("{");
+        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+        writeln("{");
+        writeln("session.delayUpdate(%s, DELAYED_UPDATE);", OBJ);
+        writeln("}");
+        writeln();
+        writeln("return;");
+        writeln("}");
         writeln();
 
         writeln("try");
         writeln("{");
-        populatePreparedStatement(field.getLink().getCollection().getCreate(), null);
+        if (sorm.isDirtyTracking()) {
+            dumpOrmUpdateDirty();
+        }
+        else {
+            writeln("final PreparedStatement ps;");
+            buildPreparedStatement(sorm.getUpdate(), null);
+            writeln();
+
+            writeln("try");
+            writeln("{");
+            dumpBatchLoopStart();
+            dumpBatchLoopEnd("batchUpdate");
+            writeln("}");
+            writeln("finally");
+            writeln("{");
+            writeln("session.releaseStatement(ps);");
+            writeln("}");
+        }
+        writeln("}");
+        dumpWrittenInvalidate();
+        writeln("}");
+        writeln();
+
+        writeln("@Override");
+        writeln("public void update(final %s %s)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("update(getSession(), %s);", OBJ);
+        writeln("}");
         writeln();
 
-        writeln("ps.executeUpdate();");
+        writeln("/** Convenience wrapper around {@link #update(SormSession, Collection)}. */");
+        writeln("public static void update(final SormSession session, final %s %s)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("update(session, Collections.singleton(%s));", OBJ);
+        writeln("}");
+        writeln();
+
+        dumpBatchBinder("batchUpdate", sorm.getUpdate(), false);
+
+        if (sorm.isDirtyTracking()) {
+            writeln();
+            dumpOrmUpdateDirtyBinder();
+            writeln();
+            dumpOrmUpdateSql();
+        }
+    }
+
+    /**
+     * Dump the constants that describe the columns written by column-minimal
+     * updates.
+     */
+    private void dumpOrmUpdateColumns()
+    {
+        final List<Field> columns = getDirtyColumns();
+
+        final StringBuilder names = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                names.append(", ");
+            }
+            names.append('"').append(columns.get(i).getSql_column()).append('"');
+        }
+
+        final long all = (64 == columns.size() ? -1L : (1L << columns.size()) - 1);
+
+        writeln("/** The dirty bits of every column. */");
+        writeln("private static final long ALL_COLUMNS = 0x%xL;", all);
+        writeln();
+        writeln("/** The dirty bits of columns whose setters are not generated, which are always written. */");
+        writeln("private static final long ALWAYS_DIRTY = 0x%xL;", getAlwaysDirty());
+        writeln();
+        writeln("/** The column of each dirty bit. */");
+        writeln("private static final String[] COLUMNS = {%s};", names);
+        writeln();
+        writeln("/** Column-minimal update statements, by dirty mask. */");
+        writeln("private static final ConcurrentMap<Long, String> UPDATE_SQL = new ConcurrentHashMap<Long, String>();");
+    }
+
+    /**
+     * Dump the part of the collection update that groups the changed objects
+     * by their dirty masks, and writes each group with a batch of its own.
+     */
+    private void dumpOrmUpdateDirty()
+    {
+        writeln("final Map<Long, List<%s>> byMask = new LinkedHashMap<Long, List<%s>>();", sorm.getName(), sorm.getName());
+        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+        writeln("{");
+        writeln("final long mask = (%s._sormDirty | ALWAYS_DIRTY);", OBJ);
+        writeln("if (0 != mask)");
+        writeln("{");
+        writeln("List<%s> group = byMask.get(mask);", sorm.getName());
+        writeln("if (null == group)");
+        writeln("{");
+        writeln("group = new ArrayList<%s>();", sorm.getName());
+        writeln("byMask.put(mask, group);");
+        writeln("}");
+        writeln();
+        writeln("group.add(%s);", OBJ);
+        writeln("}");
+        writeln("}");
+        writeln();
+
+        writeln("for (final Map.Entry<Long, List<%s>> entry : byMask.entrySet())", sorm.getName());
+        writeln("{");
+        writeln("final PreparedStatement ps;");
+        writeln("if (ALL_COLUMNS == entry.getKey())");
+        writeln("{");
+        buildPreparedStatement(sorm.getUpdate(), null);
+        writeln("}");
+        writeln("else");
+        writeln("{");
+        writeln("ps = session.prepareStatement(getUpdateSql(entry.getKey()));");
+        writeln("}");
+        writeln();
+
+        writeln("try");
+        writeln("{");
+        dumpBatchLoopStart("entry.getValue()");
+        dumpBatchLoopEnd("batchUpdateDirty");
         writeln("}");
         writeln("finally");
         writeln("{");
-        writeln("ps.close();");
+        writeln("session.releaseStatement(ps);");
         writeln("}");
         writeln("}");
     }
 
-    private void dumpOrmMapDelete(final Field field)
+    /**
+     * Dump a function that binds the changed columns of an object to a
+     * statement from getUpdateSql() and adds it to the current batch.
+     */
+    private void dumpOrmUpdateDirtyBinder()
     {
-        final String fieldName = getSafeFieldName(field);
-        writeln("/** Convenience wrapper around {@link #unmap%s(SormSession, %s, %s)}. */", StringUtil.capFirst(fieldName),
-                sorm.getName(), field.getLink().getType());
-        writeln("public void unmap%s(final %s %s, final %s %s)", StringUtil.capFirst(fieldName), sorm.getName(), LHS, field
-            .getLink().getType(), RHS);
+        final List<Field> columns = getDirtyColumns();
+        final Field primary = sorm.getPrimaryField();
+
+        writeln("static void batchUpdateDirty(final SormSession session, final PreparedStatement ps, final %s %s)", sorm.getName(),
+                OBJ);
         writeln("throws SQLException");
         writeln("{");
-        writeln("unmap%s(getSession(), %s, %s);", StringUtil.capFirst(fieldName), LHS, RHS);
+        writeln("final long mask = (%s._sormDirty | ALWAYS_DIRTY);", OBJ);
+        writeln("if (ALL_COLUMNS == mask)");
+        writeln("{");
+        writeln("batchUpdate(session, ps, %s);", OBJ);
+        writeln("return;");
         writeln("}");
         writeln();
 
-        writeln("/**");
-        writeln(" * Remove an existing %s mapping from the given %s.", StringUtil.capFirst(fieldName), sorm.getName());
-        writeln(" *");
-        writeln(" * @param session The {@link SormSession} to use.");
-        writeln(" * @param %s The %s object from which the mapping should be removed.", LHS, sorm.getName());
-        writeln(" * @param %s The %s to remove from the mappings of <code>%s</code>.", RHS, StringUtil.capFirst(fieldName), LHS);
-        writeln(" * @throws SQLException If there was a problem.");
-        writeln(" */");
-        writeln("public static void unmap%s(final SormSession session, final %s %s, final %s %s)", StringUtil.capFirst(fieldName),
-                sorm.getName(), LHS, field.getLink().getType(), RHS);
-        writeln("throws SQLException");
-        writeln("{");
+        writeln("int param = 0;");
+        for (int i = 0; i < columns.size(); i++) {
+            final Field field = columns.get(i);
+            writeln("if (0 != (mask & 0x%xL))", 1L << i);
+            writeln("{");
+            writeln("param++;");
+            dumpSet(field, "param", compileAccessor(field, field.getGet().getContent(), OBJ), "ps");
+            writeln("}");
+            writeln();
+        }
 
-        writeln("final PreparedStatement ps;");
-        buildPreparedStatement(field.getLink().getCollection().getDelete(), null);
+        writeln("param++;");
+        dumpSet(primary, "param", compileAccessor(primary, primary.getGet().getContent(), OBJ), "ps");
+        writeln();
+
+        writeln("ps.addBatch();");
+        writeln("}");
+    }
+
+    /**
+     * Dump a function that builds the column-minimal update statement for a
+     * dirty mask, caching it for the next object with the same mask.
+     */
+    private void dumpOrmUpdateSql()
+    {
+        writeln("private static String getUpdateSql(final long mask)");
+        writeln("{");
+        writeln("String sql = UPDATE_SQL.get(mask);");
+        writeln("if (null == sql)");
+        writeln("{");
+        writeln("final StringBuilder buf = new StringBuilder(\"update %s set \");", sorm.getTable());
+        writeln("boolean first = true;");
+        writeln("for (int i = 0; i < COLUMNS.length; i++)");
+        writeln("{");
+        writeln("if (0 != (mask & (1L << i)))");
+        writeln("{");
+        writeln("if (!first)");
+        writeln("{");
+        writeln("buf.append(\", \");");
+        writeln("}");
         writeln();
+        writeln("buf.append(COLUMNS[i]).append(\" = ?\");");
+        writeln("first = false;");
+        writeln("}");
+        writeln("}");
+        writeln();
+        writeln("buf.append(\" where %s = ?\");", sorm.getPrimaryField().getSql_column());
+        writeln("sql = buf.toString();");
+        writeln("UPDATE_SQL.putIfAbsent(mask, sql);");
+        writeln("}");
+        writeln();
+        writeln("return sql;");
+        writeln("}");
+    }
+
+    /**
+     * Get the upsert query, with the statements for known dialects that Sorm
+     * builds itself when the table is known and neither the dialect nor
+     * <code>*</code> is given.
+     */
+    private Query getUpsert()
+    {
+        final Query upsert = new Query();
+        for (final String dialect : sorm.getUpsert()) {
+            upsert.putQuery(dialect, sorm.getUpsert().getQuery(dialect));
+        }
+
+        if (null == sorm.getTable() || upsert.contains("*")) {
+            return upsert;
+        }
+
+        final Field primary = sorm.getPrimaryField();
+        final StringBuilder names = new StringBuilder(primary.getSql_column());
+        final StringBuilder values = new StringBuilder(String.format("%%{%s}", getFieldName(primary)));
+        final StringBuilder excluded = new StringBuilder();
+        final StringBuilder duplicate = new StringBuilder();
+        for (final Field field : getColumns()) {
+            final String column = field.getSql_column();
+            names.append(", ").append(column);
+            values.append(", ").append(String.format("%%{%s}", getFieldName(field)));
+
+            if (excluded.length() > 0) {
+                excluded.append(", ");
+                duplicate.append(", ");
+            }
+            excluded.append(String.format("%s = excluded.%s", column, column));
+            duplicate.append(String.format("%s = values(%s)", column, column));
+        }
+
+        final String into = String.format("into %s (%s) ", sorm.getTable(), names);
+        final String valuesClause = String.format("values (%s)", values);
+        if (!upsert.contains("h2")) {
+            upsert.putQuery("h2", String.format("merge %skey (%s) %s", into, primary.getSql_column(), valuesClause));
+        }
+
+        if (!upsert.contains("postgresql")) {
+            if (0 == excluded.length()) {
+                upsert.putQuery("postgresql", String.format("insert %s%s on conflict (%s) do nothing", into, valuesClause,
+                                                            primary.getSql_column()));
+            }
+            else {
+                upsert.putQuery("postgresql", String.format("insert %s%s on conflict (%s) do update set %s", into, valuesClause,
+                                                            primary.getSql_column(), excluded));
+            }
+        }
+
+        if (!upsert.contains("mysql")) {
+            if (0 == duplicate.length()) {
+                upsert.putQuery("mysql", String.format("insert ignore %s%s", into, valuesClause));
+            }
+            else {
+                upsert.putQuery("mysql", String.format("insert %s%s on duplicate key update %s", into, valuesClause, duplicate));
+            }
+        }
+
+        if (!upsert.contains("sqlite")) {
+            upsert.putQuery("sqlite", String.format("insert or replace %s%s", into, valuesClause));
+        }
+
+        return upsert;
+    }
+
+    private void dumpOrmUpsert()
+    {
+        final Field primary = sorm.getPrimaryField();
+        final Query upsert = getUpsert();
+
+        dumpDelayedWriter("DELAYED_UPSERT", sorm.getName(), "upserts", "upsert(session, %ss);", OBJ);
+        writeln();
+
+        writeln("@Override");
+        writeln("public void upsert(final %s... %ss)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("upsert(getSession(), %ss);", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("/** Convenience wrapper around {@link #upsert(SormSession, Collection)}. */");
+        writeln("public static void upsert(final SormSession session, final %s... %ss)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("upsert(session, Arrays.asList(%ss));", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("@Override");
+        writeln("public void upsert(final Collection<%s> %ss)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("upsert(getSession(), %ss);", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * Insert a collection of %s objects into the database, updating the rows of", sorm.getName());
+        writeln(" * any that already exist instead. The writes are sent in batches of");
+        writeln(" * {@link SormSession#getBatchSize()}.");
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @param %ss The %s objects to write, which must already have keys.", OBJ, sorm.getName());
+        writeln(" * @throws SQLException If there is a problem.");
+        writeln(" */");
+        writeln("public static void upsert(final SormSession session, final Collection<%s> %ss)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        if (!isPrimitiveKey()) {
+            writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+            writeln("{");
+            writeln("if (null == %s.%s())", OBJ, primary.getGet().getName());
+            writeln("{");
+            writeln("throw new IllegalArgumentException(\"Cannot upsert a %s without a key\");", sorm.getName());
+            writeln("}");
+            writeln("}");
+            writeln();
+        }
+
+        dumpPartialCheck("upsert");
+
+        dumpTransactionalWrite("upsert");
+        writeln("if (session.isDelayingWrites())");
+        writeln("{");
+        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+        writeln("{");
+        writeln("session.delayUpsert(%s, DELAYED_UPSERT);", OBJ);
+        writeln("}");
+        writeln();
+        writeln("return;");
+        writeln("}");
+        writeln();
+
+        writeln("try");
+        writeln("{");
+        writeln("final PreparedStatement ps;");
+        buildPreparedStatement(upsert, null);
+        writeln();
+
+        writeln("try");
+        writeln("{");
+        dumpBatchLoopStart();
+        dumpBatchLoopEnd("batchUpsert");
+        writeln("}");
+        writeln("finally");
+        writeln("{");
+        writeln("session.releaseStatement(ps);");
+        writeln("}");
+        writeln("}");
+        dumpWrittenInvalidate();
+        writeln("}");
+        writeln();
+
+        writeln("@Override");
+        writeln("public void upsert(final %s %s)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("upsert(getSession(), %s);", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("/** Convenience wrapper around {@link #upsert(SormSession, Collection)}. */");
+        writeln("public static void upsert(final SormSession session, final %s %s)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("upsert(session, Collections.singleton(%s));", OBJ);
+        writeln("}");
+        writeln();
+
+        dumpBatchBinder("batchUpsert", upsert, false);
+    }
+
+    /**
+     * Dump the end of a write of <code>objs</code> that started with a
+     * <code>try</code>, which evicts every object from the shared cache once
+     * the write is over, and then marks them clean. The eviction is in a
+     * <code>finally</code>, since without a transaction the batches before a
+     * failed one are already committed.
+     */
+    private void dumpWrittenInvalidate()
+    {
+        writeln("finally");
+        writeln("{");
+        writeln("// Only once the rows are written, so other sessions cannot re-cache");
+        writeln("// the old versions in between");
+        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+        writeln("{");
+        writeln("session.cacheInvalidate(%s.class, %s.%s());", sorm.getName(), OBJ, sorm.getPrimaryField().getGet().getName());
+        writeln("}");
+        writeln("}");
+
+        if (sorm.isDirtyTracking()) {
+            writeln();
+            writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+            writeln("{");
+            writeln("%s._sormDirty = 0;", OBJ);
+            writeln("}");
+        }
+    }
+
+    private void dumpOrmDelete()
+    {
+        final Field primary = sorm.getPrimaryField();
+
+        dumpDelayedWriter("DELAYED_DELETE", sorm.getName(), "deletes", "delete(session, %ss);", OBJ);
+        writeln();
+
+        // TODO: Allow deletion by key
+        writeln("@Override");
+        writeln("public void delete(final %s... %ss)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("delete(getSession(), %ss);", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("/** Convenience wrapper around {@link #delete(SormSession, Collection)}. */");
+        writeln("public static void delete(final SormSession session, final %s... %ss)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("delete(session, Arrays.asList(%ss));", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("@Override");
+        writeln("public void delete(final Collection<%s> %ss)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("delete(getSession(), %ss);", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * Delete a collection of %s objects from the database.", sorm.getName());
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @param %ss The %s objects to delete from the database.", OBJ, sorm.getName());
+        writeln(" * @throws SQLException If there was a problem.");
+        writeln(" */");
+        writeln("public static void delete(final SormSession session, final Collection<%s> %ss)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        dumpTransactionalWrite("delete");
+        writeln("if (session.isDelayingWrites())");
+        writeln("{");
+        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+        writeln("{");
+        writeln("session.delayDelete(%s, DELAYED_DELETE);", OBJ);
+        writeln("session.cacheDel(%s.class, %s.%s());", sorm.getName(), OBJ, primary.getGet().getName());
+        writeln("}");
+        writeln();
+        writeln("return;");
+        writeln("}");
+        writeln();
+
+        writeln("final PreparedStatement ps;");
+        buildPreparedStatement(sorm.getDelete(), null);
+        writeln();
+
+        writeln("try");
+        writeln("{");
+        dumpBatchLoopStart();
+        writeln("session.cacheDel(%s.class, %s.%s());", sorm.getName(), OBJ, primary.getGet().getName());
+        dumpBatchLoopEnd("batchDelete");
+        writeln("}");
+        writeln("finally");
+        writeln("{");
+        writeln("session.releaseStatement(ps);");
+        writeln("}");
+        writeln("}");
+        writeln();
+
+        writeln("@Override");
+        writeln("public void delete(final %s %s)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("delete(getSession(), %s);", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("/** Convenience wrapper around {@link #delete(SormSession, Collection)}. */");
+        writeln("public static void delete(final SormSession session, final %s %s)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("delete(session, Collections.singleton(%s));", OBJ);
+        writeln("}");
+        writeln();
+
+        dumpBatchBinder("batchDelete", sorm.getDelete(), false);
+    }
+
+    private void dumpOrmMapRead(final Field field)
+    {
+        final String fieldName = getSafeFieldName(field);
+        writeln("/** Convenience wrapper around {@link #readMapped%s(SormSession, %s)}. */", StringUtil.capFirst(fieldName),
+                sorm.getName());
+        writeln("public Collection<%s> readMapped%s(final %s %s)", field.getLink().getType(), StringUtil.capFirst(fieldName),
+                sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("return readMapped%s(getSession(), %s);", StringUtil.capFirst(fieldName), OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * Read all mapped %s related to a given %s.", fieldName, sorm.getName());
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @param %s The %s whose %s to read.", OBJ, sorm.getName(), fieldName);
+        writeln(" * @return The collection of %s mapped to this %s.", fieldName, sorm.getName());
+        writeln(" * @throws SQLException If there was a problem.");
+        writeln(" */");
+        writeln("public static Collection<%s> readMapped%s(final SormSession session, final %s %s)", field.getLink().getType(),
+                StringUtil.capFirst(fieldName), sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("final PreparedStatement ps;");
+        buildPreparedStatement(field.getLink().getCollection().getRead(), null, OBJ);
+        writeln();
+
+        writeln("final Collection<%s> %ss = new LinkedList<%s>();", getLinkKeyType(field), KEY, getLinkKeyType(field));
+        writeln("try");
+        writeln("{");
+        populatePreparedStatement(field.getLink().getCollection().getRead(), OBJ);
+        writeln();
+
+        writeln("final ResultSet rs = ps.executeQuery();");
+        writeln("try");
+        writeln("{");
+        dumpColumnsLoopStart("findColumns(rs, new String[] {\"id\"})");
+        writeln("final %s %s = rs.%s(columns[0]);", getLinkKeyType(field), KEY, field.getLink().getSql_type().getter);
+        writeln("%ss.add(%s);", KEY, KEY);
+        writeln("}");
+        writeln("}");
+        writeln("finally");
+        writeln("{");
+        writeln("rs.close();");
+        writeln("}");
+        writeln("}");
+        writeln("finally");
+        writeln("{");
+        writeln("session.releaseStatement(ps);");
+        writeln("}");
+        writeln();
+        writeln("return %s.Orm.read(session, %ss);", field.getLink().getType(), KEY);
+        writeln("}");
+    }
+
+    /**
+     * Dump a function that reads the keys of the objects mapped to a list of
+     * objects through a collection link, using the collection's read-many
+     * query, one chunk of keys at a time.
+     */
+    private void dumpOrmMapReadKeys(final Field field)
+    {
+        final Field primary = sorm.getPrimaryField();
+        final String fieldName = getSafeFieldName(field);
+        final String linkKeyType = getLinkKeyType(field);
+
+        writeln("/**");
+        writeln(" * Read the keys of the %s mapped to a number of %s objects, using one", fieldName, sorm.getName());
+        writeln(" * query for each {@link SormSession#getBatchSize()} %s objects.", sorm.getName());
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @param %ss The keys of the %s objects whose %s to read. Must not contain duplicates.", KEY, sorm.getName(),
+                fieldName);
+        writeln(" * @return The keys of the %s mapped to each %s, by the key of the %s.", fieldName, sorm.getName(),
+                sorm.getName());
+        writeln(" * @throws SQLException If there was a problem accessing the database.");
+        writeln(" */");
+        writeln("static Map<%s, Collection<%s>> readMapped%sKeys(final SormSession session, final List<%s> %ss)",
+                getKeyType(), linkKeyType, StringUtil.capFirst(fieldName), getKeyType(), KEY);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("final Map<%s, Collection<%s>> found = new LinkedHashMap<%s, Collection<%s>>();", getKeyType(), linkKeyType,
+                getKeyType(), linkKeyType);
+        writeln("for (final %s %s : %ss)", getKeyType(), KEY, KEY);
+        writeln("{");
+        writeln("found.put(%s, new LinkedHashSet<%s>());", KEY, linkKeyType);
+        writeln("}");
+        writeln();
+        writeln("if (%ss.isEmpty())", KEY);
+        writeln("{");
+        writeln("return found;");
+        writeln("}");
+        writeln();
+
+        dumpKeyChunksStart(field.getLink().getCollection().getReadMany(), getKeyType(), primary.getSql_type(),
+                           "findColumns(rs, new String[] {\"owner\", \"id\"})");
+        writeln("final %s owner = rs.%s(columns[0]);", getKeyType(), primary.getSql_type().getter);
+        writeln("final %s %s = rs.%s(columns[1]);", linkKeyType, KEY, field.getLink().getSql_type().getter);
+        writeln("final Collection<%s> mapped = found.get(owner);", linkKeyType);
+        writeln("if (null != mapped)");
+        writeln("{");
+        writeln("mapped.add(%s);", KEY);
+        writeln("}");
+        dumpKeyChunksEnd();
+        writeln();
+        writeln("return found;");
+        writeln("}");
+    }
+
+    /**
+     * Dump a function that reads the objects linked to a collection of
+     * objects. Every single link to the same type is read with one call to
+     * that type's <code>readMap()</code>, along with the objects of any
+     * collection link to that type that has a read-many query; collection
+     * links without one are read one object at a time.
+     */
+    private void dumpOrmLink()
+    {
+        final Field primary = sorm.getPrimaryField();
+
+        // Group the links by target type, so each type is read once
+        final Map<String, List<Field>> byType = new LinkedHashMap<String, List<Field>>();
+        boolean hasReadMany = false;
+        for (final Field field : sorm.getFields()) {
+            if (LinkMode.None == field.getLink().getMode()) {
+                continue;
+            }
+            else if (isCollectionLink(field) && field.getLink().getCollection().getReadMany().isEmpty()) {
+                continue;
+            }
+
+            List<Field> fields = byType.get(field.getLink().getType());
+            if (null == fields) {
+                fields = new ArrayList<Field>();
+                byType.put(field.getLink().getType(), fields);
+            }
+
+            fields.add(field);
+            hasReadMany |= isCollectionLink(field);
+        }
+
+        writeln("/** Convenience wrapper around {@link #link(SormSession, Collection)}. */");
+        writeln("public void link(final Collection<%s> %ss)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("link(getSession(), %ss);", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * Read the objects linked to a number of %s objects, and store them in", sorm.getName());
+        writeln(" * the %s objects. Each linked type is read once for all of the %s", sorm.getName(), sorm.getName());
+        writeln(" * objects, and each mapped collection with a read-many query costs one");
+        writeln(" * query for each {@link SormSession#getBatchSize()} %s objects. The", sorm.getName());
+        writeln(" * linked objects are not linked themselves.");
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @param %ss The %s objects to link.", OBJ, sorm.getName());
+        writeln(" * @throws SQLException If there was a problem accessing the database.");
+        writeln(" */");
+        writeln("public static void link(final SormSession session, final Collection<%s> %ss)", sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+
+        if (hasReadMany) {
+            writeln("final Collection<%s> %sSet = new LinkedHashSet<%s>();", getKeyType(), KEY, getKeyType());
+            writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+            writeln("{");
+            dumpKeyCheckStart(OBJ);
+            writeln("%sSet.add(%s.%s());", KEY, OBJ, primary.getGet().getName());
+            dumpKeyCheckEnd();
+            writeln("}");
+            writeln("final List<%s> %ss = new ArrayList<%s>(%sSet);", getKeyType(), KEY, getKeyType(), KEY);
+            writeln();
+
+            for (final List<Field> fields : byType.values()) {
+                for (final Field field : fields) {
+                    if (isCollectionLink(field)) {
+                        final String fieldName = getSafeFieldName(field);
+                        writeln("final Map<%s, Collection<%s>> %sKeys = readMapped%sKeys(session, %ss);", getKeyType(),
+                                getLinkKeyType(field), fieldName, StringUtil.capFirst(fieldName), KEY);
+                    }
+                }
+            }
+            writeln();
+        }
+
+        int n = 0;
+        for (final Map.Entry<String, List<Field>> entry : byType.entrySet()) {
+            final String linkType = entry.getKey();
+            final String linkKeyType = getLinkKeyType(entry.getValue().get(0));
+
+            writeln("final Collection<%s> linked%d = new LinkedHashSet<%s>();", linkKeyType, n, linkKeyType);
+            boolean single = false;
+            for (final Field field : entry.getValue()) {
+                if (!isCollectionLink(field)) {
+                    if (!single) {
+                        single = true;
+                        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+                        writeln("{");
+                    }
+
+                    writeln("if (null != %s.%s())", OBJ, field.getGet().getName());
+                    writeln("{");
+                    writeln("linked%d.add(%s.%s());", n, OBJ, field.getGet().getName());
+                    writeln("}");
+                }
+            }
+            if (single) {
+                writeln("}");
+            }
+
+            for (final Field field : entry.getValue()) {
+                if (isCollectionLink(field)) {
+                    writeln("for (final Collection<%s> mapped : %sKeys.values())", linkKeyType, getSafeFieldName(field));
+                    writeln("{");
+                    writeln("linked%d.addAll(mapped);", n);
+                    writeln("}");
+                }
+            }
+
+            writeln("final Map<%s, %s> linked%dObjs = %s.Orm.readMap(session, linked%d);", linkKeyType, linkType, n, linkType, n);
+            writeln();
+            n++;
+        }
+
+        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+        writeln("{");
+        n = 0;
+        for (final Map.Entry<String, List<Field>> entry : byType.entrySet()) {
+            final String linkType = entry.getKey();
+            for (final Field field : entry.getValue()) {
+                final String fieldName = getSafeFieldName(field);
+                if (!isCollectionLink(field)) {
+                    writeln("%s.%sObject(linked%dObjs.get(%s.%s()));", OBJ, field.getSet().getName(), n, OBJ, field.getGet()
+                        .getName());
+                }
+                else {
+                    writeln();
+                    writeln("final %s<%s> %sObjs = new %s<%s>();", getRawType(field), linkType, fieldName,
+                            getCollectionImpl(field), linkType);
+                    writeln("final Collection<%s> %sMapped = %sKeys.get(%s.%s());", getLinkKeyType(field), fieldName,
+                            fieldName, OBJ, primary.getGet().getName());
+                    writeln("if (null != %sMapped)", fieldName);
+                    writeln("{");
+                    writeln("for (final %s %s : %sMapped)", getLinkKeyType(field), KEY, fieldName);
+                    writeln("{");
+                    writeln("final %s linked = linked%dObjs.get(%s);", linkType, n, KEY);
+                    writeln("if (null != linked)");
+                    writeln("{");
+                    writeln("%sObjs.add(linked);", fieldName);
+                    writeln("}");
+                    writeln("}");
+                    writeln("}");
+                    writeln("%s.%s(%sObjs);", OBJ, field.getSet().getName(), fieldName);
+                }
+            }
+            n++;
+        }
+
+        // Collection links that can only be read one object at a time
+        for (final Field field : sorm.getFields()) {
+            if (isCollectionLink(field) && field.getLink().getCollection().getReadMany().isEmpty()) {
+                final String fieldName = getSafeFieldName(field);
+                writeln();
+                writeln("%s.%s(new %s<%s>(readMapped%s(session, %s)));", OBJ, field.getSet().getName(), getCollectionImpl(field),
+                        field.getLink().getType(), StringUtil.capFirst(fieldName), OBJ);
+            }
+        }
+
+        writeln("}");
+        writeln("}");
+    }
+
+    private void dumpOrmAttach()
+    {
+        writeln("/**");
+        writeln(" * Make the %s objects in a collection siblings of each other, so their", sorm.getName());
+        writeln(" * lazy links are loaded together. Objects that already have siblings in the");
+        writeln(" * same session are left alone.");
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} that will load the lazy links.");
+        writeln(" * @param %ss The %s objects.", OBJ, sorm.getName());
+        writeln(" */");
+        writeln("static void attach(final SormSession session, final Collection<%s> %ss)", sorm.getName(), OBJ);
+        writeln("{");
+        writeln("final SormSiblings<%s> siblings = new SormSiblings<%s>(session);", sorm.getName(), sorm.getName());
+        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+        writeln("{");
+        writeln("attach(siblings, %s);", OBJ);
+        writeln("}");
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * Add a %s to a group of siblings, unless it is <code>null</code> or", sorm.getName());
+        writeln(" * already has siblings in the same session. An object that was read by");
+        writeln(" * another session moves to the group, so its lazy links are loaded by the");
+        writeln(" * session that handed it out this time.");
+        writeln(" *");
+        writeln(" * @param siblings The group of siblings.");
+        writeln(" * @param %s The %s.", OBJ, sorm.getName());
+        writeln(" */");
+        writeln("static void attach(final SormSiblings<%s> siblings, final %s %s)", sorm.getName(), sorm.getName(), OBJ);
+        writeln("{");
+        writeln("if (null != %s && (null == %s._sormSiblings || %s._sormSiblings.getSession() != siblings.getSession()))", OBJ,
+                OBJ, OBJ);
+        writeln("{");
+        writeln("%s._sormSiblings = siblings;", OBJ);
+        writeln("siblings.add(%s);", OBJ);
+        writeln("}");
+        writeln("}");
+    }
+
+    /**
+     * Dump the fields of a streaming iterator that group the objects it
+     * returns into siblings. Each group holds a fetch of rows (or a batch, if
+     * the driver's fetch size is used), so rows that have been passed over
+     * can be collected while the iterator is still in use.
+     */
+    private void dumpStreamSiblingsFields()
+    {
+        writeln("private final int siblingsSize = (session.getFetchSize() > 0 ? session.getFetchSize() : session.getBatchSize());");
+        writeln("private SormSiblings<%s> siblings = null;", sorm.getName());
+        writeln("private int siblingsCount = 0;");
+    }
+
+    /**
+     * Dump the statements of a streaming iterator that add an object to its
+     * current group of siblings, starting a new group when it is full.
+     */
+    private void dumpStreamSiblingsAttach()
+    {
+        writeln("if (null == siblings || siblingsCount == siblingsSize)");
+        writeln("{");
+        writeln("siblings = new SormSiblings<%s>(session);", sorm.getName());
+        writeln("siblingsCount = 0;");
+        writeln("}");
+        writeln("attach(siblings, %s);", OBJ);
+        writeln("siblingsCount++;");
+    }
+
+    /**
+     * Dump a function that loads a lazy link for every member of a group of
+     * siblings that has not loaded it yet, with one read of the linked type or
+     * one set-based read of the mapped collection.
+     */
+    private void dumpOrmLoad(final Field field)
+    {
+        final Field primary = sorm.getPrimaryField();
+        final String fieldName = getSafeFieldName(field);
+        final String linkType = field.getLink().getType();
+        final String linkKeyType = getLinkKeyType(field);
+
+        writeln("/**");
+        writeln(" * Load the %s of every member of a group of siblings that has not", fieldName);
+        writeln(" * loaded it yet.");
+        writeln(" *");
+        writeln(" * @param siblings The group of siblings.");
+        writeln(" * @throws SormSQLException If there was a problem accessing the database.");
+        writeln(" */");
+        writeln("static void load%s(final SormSiblings<%s> siblings)", StringUtil.capFirst(fieldName), sorm.getName());
+        writeln("{");
+        writeln("synchronized (siblings)");
+        writeln("{");
+        writeln("final SormSession session = siblings.getSession();");
+        writeln("final Collection<%s> %ss = new ArrayList<%s>();", sorm.getName(), OBJ, sorm.getName());
+        if (!isCollectionLink(field)) {
+            writeln("final Collection<%s> %ss = new LinkedHashSet<%s>();", linkKeyType, KEY, linkKeyType);
+        }
+        writeln("for (final %s %s : siblings.getMembers())", sorm.getName(), OBJ);
+        writeln("{");
+        writeln("if (!%s._%sLoaded)", OBJ, fieldName);
+        writeln("{");
+        writeln("%ss.add(%s);", OBJ, OBJ);
+        if (!isCollectionLink(field)) {
+            writeln("if (null != %s._%s)", OBJ, fieldName);
+            writeln("{");
+            writeln("%ss.add(%s._%s);", KEY, OBJ, fieldName);
+            writeln("}");
+        }
+        writeln("}");
+        writeln("}");
+        writeln();
+
+        writeln("try");
+        writeln("{");
+        if (!isCollectionLink(field)) {
+            writeln("final Map<%s, %s> linked = %s.Orm.readMap(session, %ss);", linkKeyType, linkType, linkType, KEY);
+            writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+            writeln("{");
+            writeln("%s._%sObject = linked.get(%s._%s);", OBJ, fieldName, OBJ, fieldName);
+            writeln("%s._%sLoaded = true;", OBJ, fieldName);
+            writeln("}");
+        }
+        else {
+            writeln("final Map<%s, Collection<%s>> mapped = readMapped%s(session, %ss);", getKeyType(), linkType,
+                    StringUtil.capFirst(fieldName), OBJ);
+            writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+            writeln("{");
+            writeln("final %s<%s> %s = new %s<%s>();", getRawType(field), linkType, fieldName, getCollectionImpl(field),
+                    linkType);
+            writeln("final Collection<%s> linked = mapped.get(%s.%s());", linkType, OBJ, primary.getGet().getName());
+            writeln("if (null != linked)");
+            writeln("{");
+            writeln("%s.addAll(linked);", fieldName);
+            writeln("}");
+            writeln("%s._%s = %s;", OBJ, fieldName, fieldName);
+            writeln("%s._%sLoaded = true;", OBJ, fieldName);
+            writeln("}");
+        }
+        writeln("}");
+        writeln("catch (final SQLException sqle)");
+        writeln("{");
+        writeln("throw new SormSQLException(sqle);");
+        writeln("}");
+        writeln("}");
+        writeln("}");
+    }
+
+    /**
+     * Dump a function that reads the collections mapped to a number of
+     * objects. With a read-many query on the collection, this is one query
+     * per chunk of objects and one read of the linked type; otherwise, one
+     * query per object.
+     */
+    private void dumpOrmMapReadSet(final Field field)
+    {
+        final Field primary = sorm.getPrimaryField();
+        final String fieldName = getSafeFieldName(field);
+        final String linkType = field.getLink().getType();
+        final String linkKeyType = getLinkKeyType(field);
+
+        writeln("/** Convenience wrapper around {@link #readMapped%s(SormSession, Collection)}. */",
+                StringUtil.capFirst(fieldName));
+        writeln("public Map<%s, Collection<%s>> readMapped%s(final Collection<%s> %ss)", getKeyType(), linkType,
+                StringUtil.capFirst(fieldName), sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("return readMapped%s(getSession(), %ss);", StringUtil.capFirst(fieldName), OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * Read all mapped %s related to a number of %s objects.", fieldName, sorm.getName());
+        if (!field.getLink().getCollection().getReadMany().isEmpty()) {
+            writeln(" * Uses one query for each {@link SormSession#getBatchSize()} %s objects,", sorm.getName());
+            writeln(" * and one read of all of the %s objects.", linkType);
+        }
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @param %ss The %s objects whose %s to read.", OBJ, sorm.getName(), fieldName);
+        writeln(" * @return The collection of %s mapped to each %s, by the key of the %s.", fieldName, sorm.getName(),
+                sorm.getName());
+        writeln(" * @throws SQLException If there was a problem.");
+        writeln(" */");
+        writeln("public static Map<%s, Collection<%s>> readMapped%s(final SormSession session, final Collection<%s> %ss)",
+                getKeyType(), linkType, StringUtil.capFirst(fieldName), sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("final Map<%s, Collection<%s>> found = new LinkedHashMap<%s, Collection<%s>>();", getKeyType(), linkType,
+                getKeyType(), linkType);
+
+        if (field.getLink().getCollection().getReadMany().isEmpty()) {
+            writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+            writeln("{");
+            if (isPrimitiveKey()) {
+                writeln("if (!found.containsKey(%s.%s()))", OBJ, primary.getGet().getName());
+            }
+            else {
+                writeln("if (null != %s.%s() && !found.containsKey(%s.%s()))", OBJ, primary.getGet().getName(), OBJ, primary
+                    .getGet().getName());
+            }
+            writeln("{");
+            writeln("found.put(%s.%s(), readMapped%s(session, %s));", OBJ, primary.getGet().getName(),
+                    StringUtil.capFirst(fieldName), OBJ);
+            writeln("}");
+            writeln("}");
+        }
+        else {
+            writeln("final Collection<%s> %ss = new LinkedHashSet<%s>();", getKeyType(), KEY, getKeyType());
+            writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+            writeln("{");
+            dumpKeyCheckStart(OBJ);
+            writeln("%ss.add(%s.%s());", KEY, OBJ, primary.getGet().getName());
+            dumpKeyCheckEnd();
+            writeln("}");
+            writeln();
+
+            writeln("final Map<%s, Collection<%s>> mapped = readMapped%sKeys(session, new ArrayList<%s>(%ss));",
+                    getKeyType(), linkKeyType, StringUtil.capFirst(fieldName), getKeyType(), KEY);
+            writeln("final Collection<%s> linkedKeys = new LinkedHashSet<%s>();", linkKeyType, linkKeyType);
+            writeln("for (final Collection<%s> mappedKeys : mapped.values())", linkKeyType);
+            writeln("{");
+            writeln("linkedKeys.addAll(mappedKeys);");
+            writeln("}");
+            writeln("final Map<%s, %s> linked = %s.Orm.readMap(session, linkedKeys);", linkKeyType, linkType, linkType);
+            writeln();
+
+            writeln("for (final Map.Entry<%s, Collection<%s>> entry : mapped.entrySet())", getKeyType(), linkKeyType);
+            writeln("{");
+            writeln("final Collection<%s> %s = new ArrayList<%s>(entry.getValue().size());", linkType, fieldName, linkType);
+            writeln("for (final %s %s : entry.getValue())", linkKeyType, KEY);
+            writeln("{");
+            writeln("final %s linkedObj = linked.get(%s);", linkType, KEY);
+            writeln("if (null != linkedObj)");
+            writeln("{");
+            writeln("%s.add(linkedObj);", fieldName);
+            writeln("}");
+            writeln("}");
+            writeln("found.put(entry.getKey(), %s);", fieldName);
+            writeln("}");
+        }
+
+        writeln();
+        writeln("return found;");
+        writeln("}");
+    }
+
+    private void dumpOrmMapCreate(final Field field)
+    {
+        final String fieldName = getSafeFieldName(field);
+        final String pairType = String.format("SormPair<%s, %s>", sorm.getName(), field.getLink().getType());
+        dumpDelayedWriter(getDelayedMapWriter(field), pairType, fieldName + " mappings", "map%s(session, %ss);",
+                          StringUtil.capFirst(fieldName), OBJ);
+        writeln();
+
+        dumpOrmMapWrite(field, "map", field.getLink().getCollection().getCreate(), String.format("session.delayMap(pair, %s);",
+                                                                                                getDelayedMapWriter(field)));
+    }
+
+    private void dumpOrmMapDelete(final Field field)
+    {
+        final String fieldName = getSafeFieldName(field);
+        final String pairType = String.format("SormPair<%s, %s>", sorm.getName(), field.getLink().getType());
+        final String writer = "DELAYED_UNMAP_" + fieldName.toUpperCase();
+        dumpDelayedWriter(writer, pairType, fieldName + " unmappings", "unmap%s(session, %ss);", StringUtil.capFirst(fieldName),
+                          OBJ);
+        writeln();
+
+        final String delay;
+        if (null != field.getLink().getCollection().getCreate()) {
+            delay = String.format("session.delayUnmap(pair, %s, %s);", getDelayedMapWriter(field), writer);
+        }
+        else {
+            delay = String.format("session.delayUnmap(pair, null, %s);", writer);
+        }
+
+        dumpOrmMapWrite(field, "unmap", field.getLink().getCollection().getDelete(), delay);
+    }
+
+    /**
+     * Dump the functions that add or remove mappings of a ManyToMany field:
+     * one for a single pair, one for many objects paired with one object,
+     * and one for a collection of pairs, which all of the others call. The
+     * last prepares a single statement and sends the pairs through it in JDBC
+     * batches of {@link net.jonp.sorm.SormSession#getBatchSize()}.
+     * 
+     * @param field The field.
+     * @param verb <code>map</code> or <code>unmap</code>.
+     * @param query The query that adds or removes a single mapping.
+     * @param delay The statement that queues a pair named <code>pair</code>
+     *            when the session is delaying writes.
+     */
+    private void dumpOrmMapWrite(final Field field, final String verb, final Query query, final String delay)
+    {
+        final String fieldName = getSafeFieldName(field);
+        final String name = verb + StringUtil.capFirst(fieldName);
+        final String linkType = field.getLink().getType();
+        final String pairType = String.format("SormPair<%s, %s>", sorm.getName(), linkType);
+        final String action;
+        if ("map".equals(verb)) {
+            action = "Add";
+        }
+        else {
+            action = "Remove";
+        }
+
+        writeln("/** Convenience wrapper around {@link #%s(SormSession, %s, %s)}. */", name, sorm.getName(), linkType);
+        writeln("public void %s(final %s %s, final %s %s)", name, sorm.getName(), LHS, linkType, RHS);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("%s(getSession(), %s, %s);", name, LHS, RHS);
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        if ("map".equals(verb)) {
+            writeln(" * Add a new %s mapping to the given %s.", StringUtil.capFirst(fieldName), sorm.getName());
+            writeln(" *");
+            writeln(" * @param session The {@link SormSession} to use.");
+            writeln(" * @param %s The %s object to which the mapping should be added.", LHS, sorm.getName());
+            writeln(" * @param %s The %s to add to the mappings of <code>%s</code>.", RHS, StringUtil.capFirst(fieldName), LHS);
+        }
+        else {
+            writeln(" * Remove an existing %s mapping from the given %s.", StringUtil.capFirst(fieldName), sorm.getName());
+            writeln(" *");
+            writeln(" * @param session The {@link SormSession} to use.");
+            writeln(" * @param %s The %s object from which the mapping should be removed.", LHS, sorm.getName());
+            writeln(" * @param %s The %s to remove from the mappings of <code>%s</code>.", RHS, StringUtil.capFirst(fieldName),
+                    LHS);
+        }
+        writeln(" * @throws SQLException If there was a problem.");
+        writeln(" */");
+        writeln("public static void %s(final SormSession session, final %s %s, final %s %s)", name, sorm.getName(), LHS, linkType,
+                RHS);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("%s(session, Collections.singletonList(new %s(%s, %s)));", name, pairType, LHS, RHS);
+        writeln("}");
+        writeln();
+
+        writeln("/** Convenience wrapper around {@link #%s(SormSession, %s, Collection)}. */", name, sorm.getName());
+        writeln("public void %s(final %s %s, final Collection<%s> %ss)", name, sorm.getName(), LHS, linkType, RHS);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("%s(getSession(), %s, %ss);", name, LHS, RHS);
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * %s a number of %s mappings %s the given %s, in batches.", action, StringUtil.capFirst(fieldName),
+                ("map".equals(verb) ? "to" : "from"), sorm.getName());
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @param %s The %s object whose mappings should change.", LHS, sorm.getName());
+        writeln(" * @param %ss The %s to %s the mappings of <code>%s</code>.", RHS, StringUtil.capFirst(fieldName),
+                ("map".equals(verb) ? "add to" : "remove from"), LHS);
+        writeln(" * @throws SQLException If there was a problem.");
+        writeln(" */");
+        writeln("public static void %s(final SormSession session, final %s %s, final Collection<%s> %ss)", name, sorm.getName(),
+                LHS, linkType, RHS);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("final List<%s> pairs = new ArrayList<%s>(%ss.size());", pairType, pairType, RHS);
+        writeln("for (final %s %s : %ss)", linkType, RHS, RHS);
+        writeln("{");
+        writeln("pairs.add(new %s(%s, %s));", pairType, LHS, RHS);
+        writeln("}");
+        writeln();
+        writeln("%s(session, pairs);", name);
+        writeln("}");
+        writeln();
+
+        writeln("/** Convenience wrapper around {@link #%s(SormSession, Collection)}. */", name);
+        writeln("public void %s(final Collection<%s> pairs)", name, pairType);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("%s(getSession(), pairs);", name);
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * %s a number of %s mappings, in batches. Each pair holds the %s", action, StringUtil.capFirst(fieldName),
+                sorm.getName());
+        writeln(" * whose mappings should change and the %s to %s them.", StringUtil.capFirst(fieldName),
+                ("map".equals(verb) ? "add to" : "remove from"));
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @param pairs The mappings to %s.", ("map".equals(verb) ? "add" : "remove"));
+        writeln(" * @throws SQLException If there was a problem.");
+        writeln(" */");
+        writeln("public static void %s(final SormSession session, final Collection<%s> pairs)", name, pairType);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("if (session.isDelayingWrites())");
+        writeln("{");
+        writeln("for (final %s pair : pairs)", pairType);
+        writeln("{");
+        writeln(delay);
+        writeln("}");
+        writeln();
+        writeln("return;");
+        writeln("}");
+        writeln("else if (pairs.isEmpty())");
+        writeln("{");
+        writeln("return;");
+        writeln("}");
+        writeln();
+
+        writeln("final PreparedStatement ps;");
+        buildPreparedStatement(query, null);
+        writeln();
+
+        writeln("try");
+        writeln("{");
+        writeln("final int batchSize = session.getBatchSize();");
+        writeln("int batched = 0;");
+        writeln("for (final %s pair : pairs)", pairType);
+        writeln("{");
+        writeln("batch%s(session, ps, pair.getLhs(), pair.getRhs());", StringUtil.capFirst(name));
+        writeln("if (++batched == batchSize)");
+        writeln("{");
+        writeln("ps.executeBatch();");
+        writeln("batched = 0;");
+        writeln("}");
+        writeln("}");
+        writeln();
+        writeln("if (batched > 0)");
+        writeln("{");
+        writeln("ps.executeBatch();");
+        writeln("}");
+        writeln("}");
+        writeln("finally");
+        writeln("{");
+        writeln("session.releaseStatement(ps);");
+        writeln("}");
+        writeln("}");
+        writeln();
+
+        writeln("static void batch%s(final SormSession session, final PreparedStatement ps, final %s %s, final %s %s)",
+                StringUtil.capFirst(name), sorm.getName(), LHS, linkType, RHS);
+        writeln("throws SQLException");
+        writeln("{");
+        populatePreparedStatement(query, null);
+        writeln();
+        writeln("ps.addBatch();");
+        writeln("}");
+    }
+
+    private void dumpOrmQuery(final NamedQuery nq)
+    {
+        final Field primary = sorm.getPrimaryField();
+
+        final StringBuilder args = new StringBuilder();
+        final StringBuilder argNames = new StringBuilder();
+        for (final QueryParam param : nq.getParams()) {
+            if (args.length() > 0) {
+                args.append(", ");
+                argNames.append(", ");
+            }
+
+            args.append(String.format("final %s %s", param.getType(), param.getName()));
+            argNames.append(String.format("%s", param.getName()));
+        }
+
+        // Full-row queries return the objects themselves, others their keys
+        final String resultType = (nq.isFullRows() ? sorm.getName() : getKeyType());
+
+        // FUTURE: Is there any relevant documentation we can provide for this
+        // method?
+        writeln("%s Collection<%s> %s(%s)", nq.getAccessor(), resultType, nq.getName(), args);
+        writeln("throws SQLException");
+        writeln("{");
+        if (argNames.length() > 0) {
+            writeln("return %s(getSession(), %s);", nq.getName(), argNames);
+        }
+        else {
+            writeln("return %s(getSession());", nq.getName());
+        }
+        writeln("}");
+        writeln();
+
+        if (args.length() > 0) {
+            writeln("%s static Collection<%s> %s(final SormSession session, %s)", nq.getAccessor(), resultType, nq.getName(),
+                    args);
+        }
+        else {
+            writeln("%s static Collection<%s> %s(final SormSession session)", nq.getAccessor(), resultType, nq.getName());
+        }
+        writeln("throws SQLException");
+        writeln("{");
+
+        if (nq.isFullRows()) {
+            writeln("final Collection<%s> %ss = new ArrayList<%s>();", sorm.getName(), OBJ, sorm.getName());
+        }
+        else {
+            writeln("final Collection<%s> %ss= new LinkedList<%s>();", getKeyType(), KEY, getKeyType());
+        }
+        dumpPreparedStatement(nq);
+        writeln();
+
+        writeln("final ResultSet rs = ps.executeQuery();");
+        writeln("try");
+        writeln("{");
+        if (nq.isFullRows()) {
+            dumpColumnsLoopStart(String.format("findColumns(rs, ROW_COLUMNS, \"%s\")", primary.getSql_column()));
+            writeln("final %s %s = rs.%s(columns[ROW_COLUMNS.length]);", getKeyType(), KEY, primary.getSql_type().getter);
+            writeln("%s %s = session.cacheGet(%s.class, %s);", sorm.getName(), OBJ, sorm.getName(), KEY);
+            writeln("if (null == %s)", OBJ);
+            writeln("{");
+            writeln("%s = hydrate(rs, columns, %s);", OBJ, KEY);
+            writeln("session.cacheAdd(%s.class, %s, %s);", sorm.getName(), KEY, OBJ);
+            writeln("}");
+            writeln();
+            writeln("%ss.add(%s);", OBJ, OBJ);
+            writeln("}");
+            writeln();
+            dumpAttach(OBJ + "s");
+            writeln("return %ss;", OBJ);
+        }
+        else {
+            dumpColumnsLoopStart(String.format("findColumns(rs, new String[] {\"%s\"})", primary.getSql_column()));
+            writeln("%ss.add(rs.%s(columns[0]));", KEY, primary.getSql_type().getter);
+            writeln("}");
+            writeln();
+            writeln("return %ss;", KEY);
+        }
+        writeln("}");
+        writeln("finally");
+        writeln("{");
+        writeln("rs.close();");
+        writeln("}");
+        writeln("}");
+        writeln("finally");
+        writeln("{");
+        writeln("session.releaseStatement(ps);");
+        writeln("}");
+        writeln("}");
+    }
+
+    /**
+     * Dump a function that streams the objects matched by a named query, which
+     * must return full rows, straight from its result set.
+     */
+    private void dumpOrmQueryIterable(final NamedQuery nq)
+    {
+        final Field primary = sorm.getPrimaryField();
+
+        final StringBuilder args = new StringBuilder();
+        final StringBuilder argNames = new StringBuilder();
+        for (final QueryParam param : nq.getParams()) {
+            args.append(String.format(", final %s %s", param.getType(), param.getName()));
+            argNames.append(String.format(", %s", param.getName()));
+        }
+
+        writeln("%s SormIterable<%s> %sIterable(%s)", nq.getAccessor(), sorm.getName(), nq.getName(),
+                (args.length() > 0 ? args.substring(2) : ""));
+        writeln("{");
+        writeln("return %sIterable(getSession()%s);", nq.getName(), argNames);
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * Get an {@link Iterable} that will provide {@link Iterator}s that stream the");
+        writeln(" * %s objects matched by the %s query, reading each row as it is needed,", sorm.getName(), nq.getName());
+        writeln(" * {@link SormSession#getFetchSize()} rows at a time. Each iterator runs the");
+        writeln(" * query again.");
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @return An {@link SormIterable} that will return {@link SormIterator}s.");
+        writeln(" *         Don't forget to close the {@link SormIterator}s that you get,");
+        writeln(" *         unless you read them to the end.");
+        writeln(" */");
+        writeln("%s static SormIterable<%s> %sIterable(final SormSession session%s)", nq.getAccessor(), sorm.getName(), nq.getName(),
+                args);
+        writeln("{");
+        writeln("return new SormIterable<%s>()", sorm.getName());
+        writeln("{");
+        writeln("@Override");
+        writeln("public SormIterator<%s> iterator()", sorm.getName());
+        writeln("{");
+        writeln("return new SormIterator<%s>()", sorm.getName());
+        writeln("{");
+        writeln("private %s nextRow;", sorm.getName());
+        writeln("private boolean nextKnown = false;");
+        writeln("private boolean closed = false;");
+        writeln("private final PreparedStatement ps;");
+        writeln("private final ResultSet rs;");
+        writeln("private int[] columns = null;");
+        if (hasLazyLinks()) {
+            dumpStreamSiblingsFields();
+        }
+        writeln();
+
+        writeln("{");
+        writeln("try");
+        writeln("{");
+        buildPreparedStatement(nq.getQuery(), nq.getParams());
+        writeln("}");
+        writeln("catch (final SQLException sqle)");
+        writeln("{");
+        writeln("throw new SormSQLException(sqle);");
+        writeln("}");
+        writeln();
+
+        writeln("try");
+        writeln("{");
+        writeln("ps.setFetchSize(session.getFetchSize());");
+        populatePreparedStatement(nq);
+        writeln("rs = ps.executeQuery();");
+        writeln("}");
+        writeln("catch (final SQLException sqle)");
+        writeln("{");
+        writeln("try");
+        writeln("{");
+        writeln("session.releaseStatement(ps);");
+        writeln("}");
+        writeln("catch (final SQLException sqle2)");
+        writeln("{");
+        writeln("LOG.debug(\"Error releasing statement\", sqle2);");
+        writeln("}");
+        writeln();
+        writeln("throw new SormSQLException(sqle);");
+        writeln("}");
+        writeln("}");
+        writeln();
+
+        writeln("@Override");
+        writeln("public boolean hasNext()");
+        writeln("{");
+        writeln("if (!nextKnown)");
+        writeln("{");
+        writeln("try");
+        writeln("{");
+        writeln("if (!closed && rs.next())");
+        writeln("{");
+        writeln("if (null == columns)");
+        writeln("{");
+        writeln("columns = findColumns(rs, ROW_COLUMNS, \"%s\");", primary.getSql_column());
+        writeln("}");
+        writeln();
+        writeln("final %s %s = rs.%s(columns[ROW_COLUMNS.length]);", getKeyType(), KEY, primary.getSql_type().getter);
+        writeln("%s %s = session.cacheGet(%s.class, %s);", sorm.getName(), OBJ, sorm.getName(), KEY);
+        writeln("if (null == %s)", OBJ);
+        writeln("{");
+        writeln("%s = hydrate(rs, columns, %s);", OBJ, KEY);
+        writeln("session.cacheAdd(%s.class, %s, %s);", sorm.getName(), KEY, OBJ);
+        writeln("}");
+        writeln();
+        if (hasLazyLinks()) {
+            dumpStreamSiblingsAttach();
+        }
+        writeln("nextRow = %s;", OBJ);
+        writeln("}");
+        writeln("else");
+        writeln("{");
+        writeln("nextRow = null;");
+        writeln("close();");
+        writeln("}");
+        writeln("}");
+        writeln("catch (final SQLException sqle)");
+        writeln("{");
+        writeln("throw new SormSQLException(sqle);");
+        writeln("}");
+        writeln();
+
+        writeln("nextKnown = true;");
+        writeln("}");
+        writeln();
+
+        writeln("return (null != nextRow);");
+        writeln("}");
+        writeln();
+
+        writeln("@Override");
+        writeln("public %s next()", sorm.getName());
+        writeln("{");
+        writeln("if (!hasNext())");
+        writeln("{");
+        writeln("throw new NoSuchElementException();");
+        writeln("}");
+        writeln();
+
+        writeln("final %s row = nextRow;", sorm.getName());
+        writeln("nextRow = null;");
+        writeln("nextKnown = false;");
+        writeln("return row;");
+        writeln("}");
+        writeln();
+
+        writeln("@Override");
+        writeln("public void remove()");
+        writeln("{");
+        writeln("throw new UnsupportedOperationException(\"remove() not supported\");");
+        writeln("}");
+        writeln();
+
+        writeln("@Override");
+        writeln("public void close()");
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("if (!closed)");
+        writeln("{");
+        writeln("closed = true;");
+        writeln("try");
+        writeln("{");
+        writeln("rs.close();");
+        writeln("}");
+        writeln("finally");
+        writeln("{");
+        writeln("session.releaseStatement(ps);");
+        writeln("}");
+        writeln("}");
+        writeln("}");
+        writeln("};");
+        writeln("}");
+        writeln("};");
+        writeln("}");
+    }
+
+    /** Test whether any field links to other objects. */
+    private boolean hasLinks()
+    {
+        for (final Field field : sorm.getFields()) {
+            if (LinkMode.None != field.getLink().getMode()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /** Test whether a field holds a collection of linked objects. */
+    private boolean isCollectionLink(final Field field)
+    {
+        return (LinkMode.OneToMany == field.getLink().getMode() || LinkMode.ManyToMany == field.getLink().getMode());
+    }
+
+    /** Test whether any field has a lazy link. */
+    private boolean hasLazyLinks()
+    {
+        for (final Field field : sorm.getFields()) {
+            if (isLazy(field)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Test whether a field has a lazy link. Only links held in fields of the
+     * generated class can be lazy.
+     */
+    private boolean isLazy(final Field field)
+    {
+        return (LinkMode.None != field.getLink().getMode() && field.getLink().isLazy() && !field.isFromSuper() && null == field
+            .getParent());
+    }
+
+    /**
+     * Dump the part of a getter that loads a lazy link the first time it is
+     * used, if the field is lazy.
+     */
+    private void dumpLazyLoad(final Field field)
+    {
+        if (isLazy(field)) {
+            final String fieldName = getSafeFieldName(field);
+            writeln("if (!_%sLoaded && null != _sormSiblings)", fieldName);
+            writeln("{");
+            writeln("Orm.load%s(_sormSiblings);", StringUtil.capFirst(fieldName));
+            writeln("}");
+            writeln();
+        }
+    }
+
+    /**
+     * Dump a call that makes the objects in a collection into siblings, if any
+     * field has a lazy link.
+     * 
+     * @param objs The expression for the collection.
+     */
+    private void dumpAttach(final String objs)
+    {
+        if (hasLazyLinks()) {
+            writeln("attach(session, %s);", objs);
+        }
+    }
+
+    /**
+     * Get the type of a field without its type arguments, such as
+     * <code>Collection</code> for <code>Collection&lt;Person&gt;</code>.
+     */
+    private String getRawType(final Field field)
+    {
+        final int lt = field.getType().indexOf('<');
+        if (lt < 0) {
+            return field.getType().trim();
+        }
+        else {
+            return field.getType().substring(0, lt).trim();
+        }
+    }
+
+    /**
+     * Get the class to instantiate to fill a collection link field:
+     * <code>LinkedHashSet</code> if the field is some kind of set, and
+     * <code>ArrayList</code> otherwise.
+     */
+    private String getCollectionImpl(final Field field)
+    {
+        if (getRawType(field).endsWith("Set")) {
+            return "LinkedHashSet";
+        }
+        else {
+            return "ArrayList";
+        }
+    }
+
+    /**
+     * Dump a function that reads objects through a projection, and the
+     * functions it uses.
+     * 
+     * @param projection The projection.
+     */
+    private void dumpOrmProjection(final Projection projection)
+    {
+        final Field primary = sorm.getPrimaryField();
+        final String read = getProjectionRead(projection);
+        final String suffix = read.substring("read".length());
+        final List<Field> fields = getProjectionFields(projection);
+        final List<String> labels = getReadColumns(fields);
+        final String labelsName = projection.getName().toUpperCase() + "_COLUMNS";
+
+        final StringBuilder names = new StringBuilder();
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                names.append(i == fields.size() - 1 ? " and " : ", ");
+            }
+            names.append(fields.get(i).getName());
+        }
+
+        dumpColumnLabels(labelsName, labels, String.format("hydrate%s()", suffix));
+        writeln();
+
+        writeln("/** Convenience wrapper around {@link #%s(SormSession, Collection)}. */", read);
+        writeln("%s static Collection<%s> %s(final SormSession session, final %s... %ss)", projection.getAccessor(), sorm.getName(),
+                read, getKeyType(), KEY);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("return %s(session, Arrays.asList(%ss));", read, KEY);
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * Read the %s projection of a number of %s objects out of the database.", projection.getName(), sorm.getName());
+        writeln(" * Only the %s fields are loaded, and the objects are marked as", names);
+        writeln(" * partially loaded and not cached. Objects already in the cache are returned");
+        writeln(" * whole.");
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @param %ss The keys of the %s objects to read.", KEY, sorm.getName());
+        writeln(" * @return The %s objects that were read. May not include all requested objects.", sorm.getName());
+        writeln(" * @throws SQLException If there was a problem accessing the database.");
+        writeln(" */");
+        writeln("%s static Collection<%s> %s(final SormSession session, final Collection<%s> %ss)", projection.getAccessor(),
+                sorm.getName(), read, getKeyType(), KEY);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("final Map<%s, %s> found = new LinkedHashMap<%s, %s>();", getKeyType(), sorm.getName(), getKeyType(),
+                sorm.getName());
+        writeln("final Collection<%s> missing = new LinkedHashSet<%s>();", getKeyType(), getKeyType());
+        writeln("for (final %s %s : %ss)", getKeyType(), KEY, KEY);
+        writeln("{");
+        writeln("if (null != %s && !found.containsKey(%s))", KEY, KEY);
+        writeln("{");
+        writeln("final %s %s = session.cacheGet(%s.class, %s);", sorm.getName(), OBJ, sorm.getName(), KEY);
+        writeln("if (null == %s)", OBJ);
+        writeln("{");
+        writeln("missing.add(%s);", KEY);
+        writeln("}");
+        writeln("else");
+        writeln("{");
+        writeln("found.put(%s, %s);", KEY, OBJ);
+        writeln("}");
+        writeln("}");
+        writeln("}");
+        writeln();
+        writeln("read%sRows(session, new ArrayList<%s>(missing), found);", suffix, getKeyType());
+        writeln();
+
+        writeln("final Collection<%s> %ss = new ArrayList<%s>(%ss.size());", sorm.getName(), OBJ, sorm.getName(), KEY);
+        writeln("for (final %s %s : %ss)", getKeyType(), KEY, KEY);
+        writeln("{");
+        writeln("final %s %s = found.get(%s);", sorm.getName(), OBJ, KEY);
+        writeln("if (null != %s)", OBJ);
+        writeln("{");
+        writeln("%ss.add(%s);", OBJ, OBJ);
+        writeln("}");
+        writeln("}");
+        writeln();
+        dumpAttach(OBJ + "s");
+        writeln("return %ss;", OBJ);
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * Read the %s projection of a list of %s objects, using one query for", projection.getName(), sorm.getName());
+        writeln(" * each {@link SormSession#getBatchSize()} keys.");
+        writeln(" *");
+        writeln(" * @param session The {@link SormSession} to use.");
+        writeln(" * @param %ss The keys of the %s objects to read. Must not contain duplicates.", KEY, sorm.getName());
+        writeln(" * @param found [OUT] The objects that were read, by key.");
+        writeln(" * @throws SQLException If there was a problem accessing the database.");
+        writeln(" */");
+        writeln("private static void read%sRows(final SormSession session, final List<%s> %ss, final Map<%s, %s> found)", suffix,
+                getKeyType(), KEY, getKeyType(), sorm.getName());
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("if (%ss.isEmpty())", KEY);
+        writeln("{");
+        writeln("return;");
+        writeln("}");
+        writeln();
+
+        dumpKeyChunksStart(getProjectionQuery(projection), getKeyType(), primary.getSql_type(),
+                           String.format("findColumns(rs, %s, \"%s\")", labelsName, primary.getSql_column()));
+        writeln("final %s %s = rs.%s(columns[%s.length]);", getKeyType(), KEY, primary.getSql_type().getter, labelsName);
+        writeln("found.put(%s, hydrate%s(rs, columns, %s));", KEY, suffix, KEY);
+        dumpKeyChunksEnd();
+        writeln("}");
+        writeln();
+
+        writeln("/**");
+        writeln(" * Build a partially loaded %s from the current row of a result set read", sorm.getName());
+        writeln(" * by the %s projection.", projection.getName());
+        writeln(" */");
+        writeln("private static %s hydrate%s(final ResultSet rs, final int[] columns, final %s %s)", sorm.getName(), suffix,
+                getKeyType(), KEY);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("final %s %s = new %s();", sorm.getName(), OBJ, sorm.getName());
+        writeln("%s.%s(%s);", OBJ, primary.getSet().getName(), KEY);
+        for (final Field field : fields) {
+            compileFromRS(field, OBJ, labels);
+        }
+
+        writeln("%s._sormPartial = true;", OBJ);
+        if (sorm.isDirtyTracking()) {
+            writeln("%s._sormDirty = 0;", OBJ);
+        }
+        writeln();
+        writeln("return %s;", OBJ);
+        writeln("}");
+    }
+
+    /** Get the name of the function that reads through a projection. */
+    private String getProjectionRead(final Projection projection)
+    {
+        final String name = projection.getName();
+        return "read" + name.substring(0, 1).toUpperCase() + name.substring(1);
+    }
+
+    /** Get the fields named by a projection, in the order they were declared in. */
+    private List<Field> getProjectionFields(final Projection projection)
+    {
+        final List<Field> fields = new ArrayList<Field>();
+        for (final Field field : sorm.getFields()) {
+            if (projection.getFields().contains(field.getName())) {
+                fields.add(field);
+            }
+        }
+
+        return fields;
+    }
+
+    /**
+     * Get the query of a projection, building it from the columns of the
+     * projected fields if none was given.
+     */
+    private Query getProjectionQuery(final Projection projection)
+    {
+        if (!projection.getQuery().isEmpty()) {
+            return projection.getQuery();
+        }
+
+        final Field primary = sorm.getPrimaryField();
+        final List<Field> fields = getProjectionFields(projection);
+        final StringBuilder columns = new StringBuilder(primary.getSql_column());
+        for (final Field column : getColumns()) {
+            if (fields.contains(getTopField(column))) {
+                columns.append(", ").append(column.getSql_column());
+            }
+        }
+
+        final Query query = new Query();
+        query.putQuery("*", String.format("select %s from %s where %s in (%%{keys})", columns, sorm.getTable(),
+                                          primary.getSql_column()));
+        return query;
+    }
+
+    /**
+     * Dump a check that refuses to write partially loaded objects with a
+     * statement that writes every column, for types that have projections.
+     * 
+     * @param verb The name of the write function.
+     */
+    private void dumpPartialCheck(final String verb)
+    {
+        if (sorm.getProjections().isEmpty()) {
+            return;
+        }
+
+        writeln("for (final %s %s : %ss)", sorm.getName(), OBJ, OBJ);
+        writeln("{");
+        writeln("if (%s._sormPartial)", OBJ);
+        writeln("{");
+        writeln("throw new IllegalArgumentException(\"Cannot %s a partially loaded %s\");", verb, sorm.getName());
+        writeln("}");
+        writeln("}");
+        writeln();
+    }
+
+    /** Test whether any named query reads full rows, and so needs hydrate(). */
+    private boolean hasFullRowQuery()
+    {
+        for (final NamedQuery nq : sorm.getQueries()) {
+            if (nq.isStream() || nq.isFullRows()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Get the type of the primary key, as used in collections and type
+     * parameters.
+     */
+    private String getKeyType()
+    {
+        return SQLType.box(sorm.getPrimaryField().getType());
+    }
+
+    /**
+     * Dump the start of a block that only runs if an object has a key. Keys
+     * of a primitive type are always present, so no block is started for
+     * them.
+     * 
+     * @param objname The name of the object.
+     */
+    private void dumpKeyCheckStart(final String objname)
+    {
+        if (!isPrimitiveKey()) {
+            writeln("if (null != %s.%s())", objname, sorm.getPrimaryField().getGet().getName());
+            writeln("{");
+        }
+    }
+
+    /** Dump the end of a block started by {@link #dumpKeyCheckStart(String)}. */
+    private void dumpKeyCheckEnd()
+    {
+        if (!isPrimitiveKey()) {
+            writeln("}");
+        }
+    }
+
+    /** Test whether the primary key has a primitive type, and so is never null. */
+    private boolean isPrimitiveKey()
+    {
+        return null != SQLType.findByPrimitive(sorm.getPrimaryField().getType());
+    }
+
+    /**
+     * Get the type of the keys of the objects linked by a field, as used in
+     * collections and type parameters.
+     */
+    private String getLinkKeyType(final Field field)
+    {
+        return SQLType.box(field.getLink().getKey_type());
+    }
+
+    /**
+     * Get every field stored in a column of its own, other than the primary
+     * field.
+     */
+    private List<Field> getColumns()
+    {
+        final List<Field> columns = new ArrayList<Field>();
+        for (final Field field : sorm.getFields()) {
+            if (field == sorm.getPrimaryField() || field.isGroup()) {
+                continue;
+            }
+            else if (LinkMode.OneToMany == field.getLink().getMode() || LinkMode.ManyToMany == field.getLink().getMode()) {
+                continue;
+            }
+
+            columns.add(field);
+        }
+
+        return columns;
+    }
 
-        writeln("try");
-        writeln("{");
-        populatePreparedStatement(field.getLink().getCollection().getDelete(), null);
-        writeln();
+    /** Get the fields that have dirty bits, in bit order. */
+    private List<Field> getDirtyColumns()
+    {
+        final List<Field> columns = getColumns();
+        if (columns.size() > 64) {
+            throw new IllegalStateException(sorm.getName() + " has " + columns.size() +
+                                            " columns, but dirty-tracking supports at most 64");
+        }
 
-        writeln("ps.executeUpdate();");
-        writeln("}");
-        writeln("finally");
-        writeln("{");
-        writeln("ps.close();");
-        writeln("}");
-        writeln("}");
+        return columns;
     }
 
-    private void dumpOrmQuery(final NamedQuery nq)
+    /**
+     * Get the dirty bits marked by the setter of a field: its own, or those of
+     * every subfield of a group.
+     */
+    private long getDirtyBits(final Field field)
     {
-        final Field primary = sorm.getPrimaryField();
+        final List<Field> columns = getDirtyColumns();
 
-        final StringBuilder args = new StringBuilder();
-        final StringBuilder argNames = new StringBuilder();
-        for (final QueryParam param : nq.getParams()) {
-            if (args.length() > 0) {
-                args.append(", ");
-                argNames.append(", ");
+        long bits = 0;
+        for (int i = 0; i < columns.size(); i++) {
+            for (Field f = columns.get(i); null != f; f = getParentField(f)) {
+                if (f == field) {
+                    bits |= 1L << i;
+                    break;
+                }
             }
-
-            args.append(String.format("final %s %s", param.getType(), param.getName()));
-            argNames.append(String.format("%s", param.getName()));
         }
 
-        // FUTURE: Is there any relevant documentation we can provide for this
-        // method?
-        writeln("%s Collection<%s> %s(%s)", nq.getAccessor(), primary.getType(), nq.getName(), args);
-        writeln("throws SQLException");
-        writeln("{");
-        if (argNames.length() > 0) {
-            writeln("return %s(getSession(), %s);", nq.getName(), argNames);
-        }
-        else {
-            writeln("return %s(getSession());", nq.getName());
-        }
-        writeln("}");
-        writeln();
+        return bits;
+    }
 
-        if (args.length() > 0) {
-            writeln("%s static Collection<%s> %s(final SormSession session, %s)", nq.getAccessor(), primary.getType(),
-                    nq.getName(), args);
+    /**
+     * Get the dirty bits of the columns whose setters are not generated, so
+     * changes to them cannot be seen.
+     */
+    private long getAlwaysDirty()
+    {
+        final List<Field> columns = getDirtyColumns();
+
+        long always = 0;
+        for (int i = 0; i < columns.size(); i++) {
+            if (!hasOwnSetter(getTopField(columns.get(i)))) {
+                always |= 1L << i;
+            }
         }
-        else {
-            writeln("%s static Collection<%s> %s(final SormSession session)", nq.getAccessor(), primary.getType(), nq.getName());
+
+        return always;
+    }
+
+    /** Get the outermost group containing a field, or the field itself. */
+    private Field getTopField(final Field field)
+    {
+        Field top = field;
+        while (null != top.getParent()) {
+            top = getParentField(top);
         }
-        writeln("throws SQLException");
-        writeln("{");
 
-        writeln("final Collection<%s> %ss= new LinkedList<%s>();", primary.getType(), KEY, primary.getType());
-        dumpPreparedStatement(nq);
-        writeln();
+        return top;
+    }
 
-        writeln("final ResultSet rs = ps.executeQuery();");
-        writeln("try");
-        writeln("{");
-        writeln("while (rs.next())");
-        writeln("{");
-        writeln("%ss.add(rs.%s(\"%s\"));", KEY, primary.getSql_type().getter, primary.getSql_column());
-        writeln("}");
-        writeln();
-        writeln("return %ss;", KEY);
-        writeln("}");
-        writeln("finally");
-        writeln("{");
-        writeln("rs.close();");
-        writeln("}");
-        writeln("}");
-        writeln("finally");
-        writeln("{");
-        writeln("ps.close();");
-        writeln("}");
-        writeln("}");
+    /** Test whether the setter of a field is generated in this class. */
+    private boolean hasOwnSetter(final Field field)
+    {
+        return !field.isFromSuper() && !field.getSet().isFromSuper();
+    }
+
+    /** Dump the line of a setter that marks the columns of a field dirty. */
+    private void dumpMarkDirty(final Field field)
+    {
+        if (sorm.isDirtyTracking()) {
+            final long bits = getDirtyBits(field);
+            if (0 != bits) {
+                writeln("_sormDirty |= 0x%xL;", bits);
+            }
+        }
     }
 
     private void dumpFields()
     {
+        if (hasLazyLinks()) {
+            writeln("private SormSiblings<%s> _sormSiblings;", sorm.getName());
+        }
+
+        if (sorm.isDirtyTracking()) {
+            writeln("private long _sormDirty = 0;");
+        }
+
+        if (!sorm.getProjections().isEmpty()) {
+            writeln("private boolean _sormPartial = false;");
+        }
+
         for (final Field field : sorm.getFields()) {
             if (field.isFromSuper()) {
                 continue;
@@ -1030,6 +3557,10 @@ public class CodeGenerator
                     writeln("%s %s _%sObject;", field.getAccessor(), field.getLink().getType(), fieldName);
                     break;
             }
+
+            if (isLazy(field)) {
+                writeln("private boolean _%sLoaded = false;", fieldName);
+            }
         }
     }
 
@@ -1069,6 +3600,7 @@ public class CodeGenerator
                     }
                     writeln("%s %s %sObject()", field.getGet().getAccessor(), field.getLink().getType(), field.getGet().getName());
                     writeln("{");
+                    dumpLazyLoad(field);
                     writeln("return _%sObject;", fieldName);
                     writeln("}");
                     writeln();
@@ -1079,6 +3611,7 @@ public class CodeGenerator
                     }
                     writeln("%s %s %s()", field.getGet().getAccessor(), field.getType(), field.getGet().getName());
                     writeln("{");
+                    dumpLazyLoad(field);
                     writeln("return _%s;", fieldName);
                     writeln("}");
                     writeln();
@@ -1094,6 +3627,11 @@ public class CodeGenerator
                             fieldName);
                     writeln("{");
                     writeln("_%s = %s;", fieldName, fieldName);
+                    dumpMarkDirty(field);
+                    if (isLazy(field)) {
+                        // The linked object no longer matches the key
+                        writeln("_%sLoaded = false;", fieldName);
+                    }
                     writeln("}");
                     writeln();
 
@@ -1104,6 +3642,9 @@ public class CodeGenerator
                         .getLink().getType(), fieldName);
                     writeln("{");
                     writeln("_%sObject = %sObject;", fieldName, fieldName);
+                    if (isLazy(field)) {
+                        writeln("_%sLoaded = true;", fieldName);
+                    }
                     writeln("}");
                 }
                 else {
@@ -1114,13 +3655,150 @@ public class CodeGenerator
                             fieldName);
                     writeln("{");
                     writeln("_%s = %s;", fieldName, fieldName);
+                    dumpMarkDirty(field);
+                    if (isLazy(field)) {
+                        writeln("_%sLoaded = true;", fieldName);
+                    }
                     writeln("}");
                 }
             }
 
-            // TODO: Dump special accessors for linked fields (adders/removers,
-            // lazy-access types)
+            // TODO: Dump special accessors for linked fields (adders/removers)
+        }
+    }
+
+    /**
+     * Dump a static {@link net.jonp.sorm.DelayedWriter} used to flush the
+     * writes queued by a session in Delayed cache mode.
+     * 
+     * @param name The name of the constant.
+     * @param type The type of item written.
+     * @param description What is written, for the doc comment.
+     * @param call The format of the call that writes the list of items, which
+     *            is named <code>objs</code>.
+     * @param args Arguments to the call format.
+     */
+    private void dumpDelayedWriter(final String name, final String type, final String description, final String call,
+                                   final Object... args)
+    {
+        writeln("/** Writes the %s queued by a session in Delayed cache mode. */", description);
+        writeln("private static final DelayedWriter<%s> %s = new DelayedWriter<%s>()", type, name, type);
+        writeln("{");
+        writeln("@Override");
+        writeln("public void write(final SormSession session, final List<%s> %ss)", type, OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        writeln(call, args);
+        writeln("}");
+        writeln("};");
+    }
+
+    /**
+     * Dump the start of a loop that adds each of a collection of objects to a
+     * JDBC batch, sending the batch whenever it is full. Code written between
+     * this and {@link #dumpBatchLoopEnd(String)} runs for each object before
+     * it is added to the batch.
+     */
+    private void dumpBatchLoopStart()
+    {
+        dumpBatchLoopStart(OBJ + "s");
+    }
+
+    /**
+     * Dump the start of a loop over a collection other than
+     * <code>objs</code>.
+     * 
+     * @param collection An expression for the collection.
+     * @see #dumpBatchLoopStart()
+     */
+    private void dumpBatchLoopStart(final String collection)
+    {
+        writeln("final int batchSize = session.getBatchSize();");
+        writeln("int batched = 0;");
+        writeln("for (final %s %s : %s)", sorm.getName(), OBJ, collection);
+        writeln("{");
+    }
+
+    /**
+     * Dump the end of a loop started by {@link #dumpBatchLoopStart()}.
+     * 
+     * @param binder The name of the function that binds an object to the
+     *            statement and adds it to the batch.
+     */
+    private void dumpBatchLoopEnd(final String binder)
+    {
+        writeln("%s(session, ps, %s);", binder, OBJ);
+        writeln("if (++batched == batchSize)");
+        writeln("{");
+        writeln("ps.executeBatch();");
+        writeln("batched = 0;");
+        writeln("}");
+        writeln("}");
+        writeln();
+        writeln("if (batched > 0)");
+        writeln("{");
+        writeln("ps.executeBatch();");
+        writeln("}");
+    }
+
+    /**
+     * Dump the start of a collection write that, if the session asks for it,
+     * calls itself again in a transaction of its own.
+     * 
+     * @param verb The name of the write function.
+     */
+    private void dumpTransactionalWrite(final String verb)
+    {
+        writeln("if (session.isTransactionalWrites() && !session.isDelayingWrites() && !session.isInTransaction())");
+        writeln("{");
+        writeln("session.runInTransaction(new SessionTask<Void>()");
+        writeln("{");
+        writeln("@Override");
+        writeln("public Void run(final SormSession txSession)");
+        writeln("throws SQLException");
+        writeln("{");
+        writeln("%s(txSession, %ss);", verb, OBJ);
+        writeln("return null;");
+        writeln("}");
+        writeln("});");
+        writeln();
+        writeln("return;");
+        writeln("}");
+        writeln();
+    }
+
+    /**
+     * Dump a function that binds the fields of an object to a statement and
+     * adds it to the current batch.
+     * 
+     * @param name The name of the function.
+     * @param query The query the statement was built from.
+     * @param clean Whether the query writes every column of the object, so
+     *            none of them are dirty any more.
+     */
+    private void dumpBatchBinder(final String name, final Query query, final boolean clean)
+    {
+        writeln("static void %s(final SormSession session, final PreparedStatement ps, final %s %s)", name, sorm.getName(), OBJ);
+        writeln("throws SQLException");
+        writeln("{");
+        populatePreparedStatement(query, OBJ);
+        writeln();
+
+        if (clean && sorm.isDirtyTracking()) {
+            writeln("%s._sormDirty = 0;", OBJ);
         }
+
+        writeln("ps.addBatch();");
+        writeln("}");
+    }
+
+    /**
+     * Get the name of the {@link net.jonp.sorm.DelayedWriter} constant for
+     * mappings of a linked field.
+     */
+    private String getDelayedMapWriter(final Field field)
+    {
+        return "DELAYED_MAP_" + getSafeFieldName(field).toUpperCase();
     }
 
     /**
@@ -1132,9 +3810,24 @@ public class CodeGenerator
      *            the setters.
      */
     private void dumpPreparedStatement(final Query query, final String objname)
+    {
+        dumpPreparedStatement(query, objname, null);
+    }
+
+    /**
+     * Dump a {@link PreparedStatement} declaration and initialization
+     * (including setters).
+     * 
+     * @param query The query from which to build the statement.
+     * @param objname The name of the object from which to read the fields for
+     *            the setters.
+     * @param autoGeneratedKeys An expression for whether the statement returns
+     *            generated keys, or <code>null</code> if it does not.
+     */
+    private void dumpPreparedStatement(final Query query, final String objname, final String autoGeneratedKeys)
     {
         writeln("final PreparedStatement ps;");
-        buildPreparedStatement(query, null);
+        buildPreparedStatement(query, null, objname, autoGeneratedKeys);
         writeln();
         writeln("try");
         writeln("{");
@@ -1152,6 +3845,29 @@ public class CodeGenerator
     }
 
     private void buildPreparedStatement(final Query query, final Collection<QueryParam> params)
+    {
+        buildPreparedStatement(query, params, null);
+    }
+
+    private void buildPreparedStatement(final Query query, final Collection<QueryParam> params, final String objname)
+    {
+        buildPreparedStatement(query, params, objname, null);
+    }
+
+    /**
+     * Dump the code that builds <code>ps</code> from a query, for the
+     * session's dialect.
+     * 
+     * @param query The query.
+     * @param params The parameters of a named query, or <code>null</code>.
+     * @param objname The name of the object in scope, from which to bind
+     *            references in statements before the last, or
+     *            <code>null</code>.
+     * @param autoGeneratedKeys An expression for whether the last statement
+     *            returns generated keys, or <code>null</code> if it does not.
+     */
+    private void buildPreparedStatement(final Query query, final Collection<QueryParam> params, final String objname,
+                                        final String autoGeneratedKeys)
     {
         final Collection<String> dialects = query.getDialects();
         final boolean hasAny = dialects.remove("*");
@@ -1169,7 +3885,7 @@ public class CodeGenerator
 
                 writeln("%sif (\"%s\".equals(session.getDialect()))", els, dialect);
                 writeln("{");
-                compileSql(query.getQuery(dialect), params);
+                compileSql(query.getQuery(dialect), params, objname, autoGeneratedKeys);
                 writeln("}");
             }
 
@@ -1178,7 +3894,7 @@ public class CodeGenerator
         }
 
         if (hasAny) {
-            compileSql(query.getQuery("*"), params);
+            compileSql(query.getQuery("*"), params, objname, autoGeneratedKeys);
         }
         else {
             writeln("throw new UnknownDialectException(session.getDialect());");
@@ -1207,7 +3923,7 @@ public class CodeGenerator
 
                 writeln("%sif (\"%s\".equals(session.getDialect()))", els, dialect);
                 writeln("{");
-                if (!buildSets(query.getQuery(dialect), objname)) {
+                if (!buildSets(getLastStatement(query.getQuery(dialect)), objname, "ps")) {
                     writeln("// Nothing necessary for this dialect");
                 }
                 writeln("}");
@@ -1220,7 +3936,7 @@ public class CodeGenerator
         }
 
         if (hasAny) {
-            if (!buildSets(query.getQuery("*"), objname)) {
+            if (!buildSets(getLastStatement(query.getQuery("*")), objname, "ps")) {
                 writeln("// No ps.set* calls neccessary");
             }
 
@@ -1248,7 +3964,7 @@ public class CodeGenerator
 
                 writeln("%sif (\"%s\".equals(session.getDialect()))", els, dialect);
                 writeln("{");
-                if (!buildSets(nq, dialect)) {
+                if (!buildSets(nq.getParams(), getLastStatement(nq.getQuery().getQuery(dialect)), "ps")) {
                     writeln("// Nothing necessary for this dialect");
                 }
                 writeln("}");
@@ -1261,7 +3977,7 @@ public class CodeGenerator
         }
 
         if (hasAny) {
-            if (!buildSets(nq, "*")) {
+            if (!buildSets(nq.getParams(), getLastStatement(nq.getQuery().getQuery("*")), "ps")) {
                 writeln("// No ps.set* calls neccessary");
             }
 
@@ -1271,57 +3987,71 @@ public class CodeGenerator
         }
     }
 
-    private void compileSql(final String query, final Collection<QueryParam> params)
+    /**
+     * Compile a query into the code that prepares its statements. Each
+     * statement but the last is prepared, bound and executed on its own
+     * (through the session's statement cache, so it is only parsed once per
+     * connection); the last is assigned to <code>ps</code> for the caller to
+     * bind and execute.
+     * 
+     * @param query The query text for one dialect.
+     * @param params The parameters of a named query, or <code>null</code>.
+     * @param objname The name of the object in scope when the statement is
+     *            built, from which to bind references in the earlier
+     *            statements, or <code>null</code> if there is none.
+     * @param autoGeneratedKeys An expression for whether the last statement
+     *            returns generated keys, or <code>null</code> if it does not.
+     */
+    private void compileSql(final String query, final Collection<QueryParam> params, final String objname,
+                            final String autoGeneratedKeys)
     {
-        // Cannot use a multi-statement query in an executeQuery, so run the
-        // first n-1 as updates, then actually assign the last as the
-        // PreparedStatement that will be used as the query
-        // FUTURE: Build each as a PreparedStatement and assign any necessary
-        // parameters
-
         final String[] stmts = StringUtil.tokenize(query.trim(), ";", false);
-        if (stmts.length > 1) {
-            writeln("final Statement stmt = session.getConnection().createStatement();");
-            writeln("try {");
-        }
-
         for (int i = 0; i < stmts.length; i++) {
-            String stmt = stmts[i].trim();
-            if (stmt.isEmpty()) {
+            final String raw = stmts[i].trim();
+            if (raw.isEmpty()) {
                 // Don't need to worry about accidentally skipping the last one
                 // because the entire query was trimmed earlier
                 continue;
             }
 
+            String stmt = raw;
             final boolean last = (i == stmts.length - 1);
             if (last) {
-                stmt = stmt.replaceAll("%\\{\\}", "?");
-                if (params == null) {
-                    for (final Field field : sorm.getFields()) {
-                        if (field.isGroup()) {
-                            // Skip grouped fields because you cannot directly
-                            // write
-                            // them to the database
-                            continue;
-                        }
+                // Only read-many queries have lists of keys, which are built
+                // at runtime as inList; the caller declares keyLists
+                final int keyLists = stmt.split("%\\{keys\\}", -1).length - 1;
+                if (keyLists > 0) {
+                    writeln("keyLists = %d;", keyLists);
+                    stmt = stmt.replaceAll("%\\{keys\\}", "\" + inList + \"");
+                }
+            }
 
-                        final String fieldName = getFieldName(field);
-                        stmt = stmt.replaceAll("%\\{" + fieldName + "\\}", "?");
-                        stmt = stmt.replaceAll("%\\{1\\." + fieldName + "\\}", "?");
+            stmt = stmt.replaceAll("%\\{\\}", "?");
+            if (params == null) {
+                for (final Field field : sorm.getFields()) {
+                    if (field.isGroup()) {
+                        // Skip grouped fields because you cannot directly
+                        // write
+                        // them to the database
+                        continue;
                     }
+
+                    final String fieldName = getFieldName(field);
+                    stmt = stmt.replaceAll("%\\{" + fieldName + "\\}", "?");
+                    stmt = stmt.replaceAll("%\\{1\\." + fieldName + "\\}", "?");
                 }
-                else {
-                    for (final QueryParam param : params) {
-                        final String paramName = param.getName();
-                        stmt = stmt.replaceAll("%\\{" + paramName + "\\}", "?");
-                        stmt = stmt.replaceAll("%\\{1\\." + paramName + "\\}", "?");
-                    }
+            }
+            else {
+                for (final QueryParam param : params) {
+                    final String paramName = param.getName();
+                    stmt = stmt.replaceAll("%\\{" + paramName + "\\}", "?");
+                    stmt = stmt.replaceAll("%\\{1\\." + paramName + "\\}", "?");
                 }
-
-                // Search for %{2.*} references
-                stmt = stmt.replaceAll("%\\{2\\..*?:.*?\\}", "?");
             }
 
+            // Search for %{2.*} references
+            stmt = stmt.replaceAll("%\\{2\\..*?:.*?\\}", "?");
+
             // Fix embedded newlines
             stmt = stmt.replaceAll("\r?\n", String.format("\\\\n\" +%n%s%s\"", indentString, INDENT));
 
@@ -1338,20 +4068,46 @@ public class CodeGenerator
             }
 
             if (last) {
-                writeln("ps = session.getConnection().prepareStatement(sql%d);", i);
+                if (null == autoGeneratedKeys) {
+                    writeln("ps = session.prepareStatement(sql%d);", i);
+                }
+                else {
+                    writeln("ps = session.prepareStatement(sql%d, %s);", i, autoGeneratedKeys);
+                }
             }
             else {
-                writeln("stmt.executeUpdate(sql%d);", i);
+                final String psName = "ps" + i;
+                writeln("final PreparedStatement %s = session.prepareStatement(sql%d);", psName, i);
+                writeln("try");
+                writeln("{");
+                if (null != params) {
+                    buildSets(params, raw, psName);
+                }
+                else if (null != objname) {
+                    buildSets(raw, objname, psName);
+                }
+                else if (raw.contains("%{")) {
+                    throw new IllegalArgumentException("Cannot bind references in a statement before the last one here: " + raw);
+                }
+                writeln("%s.execute();", psName);
+                writeln("}");
+                writeln("finally");
+                writeln("{");
+                writeln("session.releaseStatement(%s);", psName);
+                writeln("}");
                 writeln();
             }
         }
+    }
 
-        if (stmts.length > 1) {
-            writeln("}");
-            writeln("finally {");
-            writeln("stmt.close();");
-            writeln("}");
-        }
+    /**
+     * Get the last statement of a query, which is the one compiled into
+     * <code>ps</code>.
+     */
+    private String getLastStatement(final String query)
+    {
+        final String[] stmts = StringUtil.tokenize(query.trim(), ";", false);
+        return stmts[stmts.length - 1];
     }
 
     private String compileAccessor(final Field field, final String query, final String objName)
@@ -1368,7 +4124,16 @@ public class CodeGenerator
         return query.replaceAll("%\\{\\}", obj);
     }
 
-    private void compileFromRS(final Field f, final String objname)
+    /**
+     * Dump the statement that reads a field from the current row of
+     * <code>rs</code>, by the positions in <code>columns</code>.
+     * 
+     * @param f The field.
+     * @param objname The name of the object to set the field on.
+     * @param labels The labels of the columns whose positions are in
+     *            <code>columns</code>, from {@link #getReadColumns(List)}.
+     */
+    private void compileFromRS(final Field f, final String objname, final List<String> labels)
     {
         // Cannot get *-to-many fields from an individual ResultSet row
         if (f.getLink().getMode() == LinkMode.OneToMany || f.getLink().getMode() == LinkMode.ManyToMany) {
@@ -1384,27 +4149,83 @@ public class CodeGenerator
         String s = f.getSet().getContent();
         s = s.replaceAll("%\\{\\}", objname);
 
-        // Convert all %{xxx} into rs.get*("xxx")
+        // Convert all %{xxx} into rs.get*(columns[n]), where xxx is the n'th
+        // label; getters that return primitives cannot return null, so
+        // nullable fields check wasNull() after them
         for (final Field field : sorm.getFields()) {
             final String fieldName = getFieldName(field);
             if (s.contains("%{" + fieldName + "}")) {
-                s = s.replaceAll("%\\{" + fieldName + "\\}", //
-                                 String.format("rs.%s(\"%s\")", field.getSql_type().getter, field.getSql_column()));
+                String get = String.format("rs.%s(columns[%d])", field.getSql_type().getter,
+                                           labels.indexOf(field.getSql_column()));
+                if (field.isNullable() && null != field.getSql_type().primitiveName) {
+                    get = String.format("orNull(%s, rs)", get);
+                }
+
+                s = s.replaceAll("%\\{" + fieldName + "\\}", Matcher.quoteReplacement(get));
             }
         }
 
         writeln("%s;", s);
     }
 
+    /**
+     * Get the labels of the columns read by {@link #compileFromRS(Field, String, List)}
+     * for a list of fields, in the order they are first read.
+     */
+    private List<String> getReadColumns(final List<Field> fields)
+    {
+        final List<String> labels = new ArrayList<String>();
+        for (final Field f : fields) {
+            if (f.getLink().getMode() == LinkMode.OneToMany || f.getLink().getMode() == LinkMode.ManyToMany) {
+                continue;
+            }
+            else if (null != f.getParent()) {
+                continue;
+            }
+
+            final String s = f.getSet().getContent();
+            for (final Field field : sorm.getFields()) {
+                if (s.contains("%{" + getFieldName(field) + "}") && !labels.contains(field.getSql_column())) {
+                    labels.add(field.getSql_column());
+                }
+            }
+        }
+
+        return labels;
+    }
+
+    /**
+     * Dump a constant listing the labels of the columns read by a hydrate
+     * function, whose positions it takes.
+     * 
+     * @param name The name of the constant.
+     * @param labels The labels.
+     * @param reader The function that reads the columns, for the doc comment.
+     */
+    private void dumpColumnLabels(final String name, final List<String> labels, final String reader)
+    {
+        final StringBuilder buf = new StringBuilder();
+        for (final String label : labels) {
+            if (buf.length() > 0) {
+                buf.append(", ");
+            }
+            buf.append('"').append(label).append('"');
+        }
+
+        writeln("/** The labels of the columns read by %s. */", reader);
+        writeln("static final String[] %s = {%s};", name, buf);
+    }
+
     /**
      * Build set statements for a {@link PreparedStatement}.
      * 
-     * @param query The query for which to build the sets.
+     * @param query The statement for which to build the sets.
      * @param objname The name of the object that may be referenced by the
      *            query.
+     * @param psName The name of the statement variable.
      * @return True if any set statements were written, false if none.
      */
-    private boolean buildSets(final String query, final String objname)
+    private boolean buildSets(final String query, final String objname, final String psName)
     {
         boolean wroteSet = false;
         Character quote = null;
@@ -1427,7 +4248,7 @@ public class CodeGenerator
                             writeln();
                         }
 
-                        dumpSet(sorm.getPrimaryField(), arg++, KEY);
+                        dumpSet(sorm.getPrimaryField(), arg++, KEY, psName);
                         wroteSet = true;
                     }
                     else if (start.startsWith("%{2.")) {
@@ -1447,10 +4268,10 @@ public class CodeGenerator
                             final Field field = new Field();
                             field.getGet().setName(function);
                             field.setNullable(nullable);
-                            field.setSql_type(SQLType.valueOf(type));
+                            field.setSql_type(SQLType.find(type));
 
                             final String accessor = compileAccessor(field, field.getGet().getContent(), RHS);
-                            dumpSet(field, arg++, accessor);
+                            dumpSet(field, arg++, accessor, psName);
                             wroteSet = true;
                         }
                     }
@@ -1464,7 +4285,7 @@ public class CodeGenerator
                                 }
 
                                 final String accessor = compileAccessor(field, field.getGet().getContent(), objname);
-                                dumpSet(field, arg++, accessor);
+                                dumpSet(field, arg++, accessor, psName);
                                 wroteSet = true;
                             }
                             else if (start.startsWith("%{1." + fieldName + "}")) {
@@ -1474,7 +4295,7 @@ public class CodeGenerator
                                 }
 
                                 final String accessor = compileAccessor(field, field.getGet().getContent(), LHS);
-                                dumpSet(field, arg++, accessor);
+                                dumpSet(field, arg++, accessor, psName);
                                 wroteSet = true;
                             }
                         }
@@ -1487,18 +4308,19 @@ public class CodeGenerator
     }
 
     /**
-     * Build set statements for a {@link PreparedStatement}.
+     * Build set statements for a {@link PreparedStatement} from the
+     * parameters of a named query.
      * 
-     * @param nq The named query for which to build the sets.
-     * @param dialect The dialect for which to build the sets.
+     * @param params The parameters of the named query.
+     * @param query The statement for which to build the sets.
+     * @param psName The name of the statement variable.
      * @return True if any set statements were written, false if none.
      */
-    private boolean buildSets(final NamedQuery nq, final String dialect)
+    private boolean buildSets(final Collection<QueryParam> params, final String query, final String psName)
     {
         boolean wroteSet = false;
         Character quote = null;
         int arg = 1;
-        final String query = nq.getQuery().getQuery(dialect);
         final char[] chars = query.toCharArray();
         for (int i = 0; i < chars.length; i++) {
             final char c = chars[i];
@@ -1511,13 +4333,13 @@ public class CodeGenerator
                 }
                 else if ('%' == c) {
                     final String start = query.substring(i);
-                    for (final QueryParam param : nq.getParams()) {
+                    for (final QueryParam param : params) {
                         if (start.startsWith("%{" + param.getName() + "}")) {
                             // FIXME: Allow for nullable parameters, then use
                             // something like dumpSet() to test for it
                             final String accessor = compileAccessor(null, param.getSet().getContent(), param.getName());
                             writeln("LOG.debug(\"  Param %d: \" + %s);", arg, accessor);
-                            writeln("ps.%s(%d, %s);", param.getSql_type().setter, arg++, accessor);
+                            writeln("%s.%s(%d, %s);", psName, param.getSql_type().setter, arg++, accessor);
                             writeln();
                             wroteSet = true;
                         }
@@ -1598,19 +4420,38 @@ public class CodeGenerator
      * @param arg The position.
      * @param accessor The accessor that provides the field value.
      */
-    private void dumpSet(final Field field, final int arg, final String accessor)
+    private void dumpSet(final Field field, final int arg, final String accessor, final String psName)
+    {
+        dumpSet(field, String.valueOf(arg), accessor, psName);
+    }
+
+    /**
+     * Dump a set block for a single field at a Prepared Statement position
+     * computed by the generated code.
+     * 
+     * @param field The field.
+     * @param arg An expression for the position, which may be evaluated
+     *            more than once.
+     * @param accessor The accessor that provides the field value.
+     */
+    private void dumpSet(final Field field, final String arg, final String accessor, final String psName)
     {
-        writeln("LOG.debug(\"  Param %d: \" + (%s));", arg, accessor);
+        if (arg.matches("\\d+")) {
+            writeln("LOG.debug(\"  Param %s: \" + (%s));", arg, accessor);
+        }
+        else {
+            writeln("LOG.debug(\"  Param \" + %s + \": \" + (%s));", arg, accessor);
+        }
         if (field.isNullable()) {
             writeln("if (null == (%s))", accessor);
             writeln("{");
-            writeln("ps.setNull(%d, Types.%s);", arg, field.getSql_type().sqltype);
+            writeln("%s.setNull(%s, Types.%s);", psName, arg, field.getSql_type().sqltype);
             writeln("}");
             writeln("else");
             writeln("{");
         }
 
-        writeln("ps.%s(%d, %s);", field.getSql_type().setter, arg, accessor);
+        writeln("%s.%s(%s, %s);", psName, field.getSql_type().setter, arg, accessor);
 
         if (field.isNullable()) {
             writeln("}");
@@ -21,10 +21,10 @@ public enum SQLType
     Blob("java.sql.Blob", "getBlob", "setBlob", "BLOB"),
 
     /** A boolean. */
-    Boolean("Boolean", "getBoolean", "setBoolean", "BOOLEAN"),
+    Boolean("Boolean", "getBoolean", "setBoolean", "BOOLEAN", "boolean"),
 
     /** A byte. */
-    Byte("Byte", "getByte", "setByte", "SMALLINT"),
+    Byte("Byte", "getByte", "setByte", "SMALLINT", "byte"),
 
     /** An array of bytes. */
     ByteA("byte[]", "getBytes", "setBytes", "VARBINARY"),
@@ -42,16 +42,16 @@ public enum SQLType
     Date("java.sql.Date", "getDate", "setDate", "DATE"),
 
     /** A double. */
-    Double("Double", "getDouble", "setDouble", "DOUBLE"),
+    Double("Double", "getDouble", "setDouble", "DOUBLE", "double"),
 
     /** A float. */
-    Float("Float", "getFloat", "setFloat", "FLOAT"),
+    Float("Float", "getFloat", "setFloat", "FLOAT", "float"),
 
     /** An integer. */
-    Integer("Integer", "getInt", "setInt", "INTEGER"),
+    Integer("Integer", "getInt", "setInt", "INTEGER", "int"),
 
     /** A long. */
-    Long("Long", "getLong", "setLong", "BIGINT"),
+    Long("Long", "getLong", "setLong", "BIGINT", "long"),
 
     /** Deals with Readers. */
     NCharStream("java.io.Reader", "getNCharacterStream", "setNCharacterStream", null),
@@ -75,7 +75,7 @@ public enum SQLType
     RowId("java.sql.RowId", "getRowId", "setRowId", "ROWID"),
 
     /** A short. */
-    Short("Short", "getShort", "setShort", "SMALLINT"),
+    Short("Short", "getShort", "setShort", "SMALLINT", "short"),
 
     /** A SQL SQLXML object. */
     SQLXML("java.sql.SQLXML", "getSQLXML", "setSQLXML", "SQLXML"),
@@ -110,6 +110,12 @@ public enum SQLType
      */
     public final String sqltype;
 
+    /**
+     * The primitive type read and written by {@link #getter} and
+     * {@link #setter}, or <code>null</code> if they deal with objects.
+     */
+    public final String primitiveName;
+
     /**
      * Construct a SQLType.
      * 
@@ -119,10 +125,80 @@ public enum SQLType
      * @param _sqltype The name of the {@link Types} field to use.
      */
     private SQLType(final String _typeName, final String _getter, final String _setter, final String _sqltype)
+    {
+        this(_typeName, _getter, _setter, _sqltype, null);
+    }
+
+    /**
+     * Construct a SQLType whose getter and setter deal with a primitive type.
+     * 
+     * @param _typeName The Java type name.
+     * @param _getter The name of the {@link PreparedStatement} getter to use.
+     * @param _setter The name of the {@link PreparedStatement} setter to use.
+     * @param _sqltype The name of the {@link Types} field to use.
+     * @param _primitiveName The name of the primitive type.
+     */
+    private SQLType(final String _typeName, final String _getter, final String _setter, final String _sqltype,
+                    final String _primitiveName)
     {
         typeName = _typeName;
         getter = _getter;
         setter = _setter;
         sqltype = _sqltype;
+        primitiveName = _primitiveName;
+    }
+
+    /**
+     * Find the SQLType for a primitive type.
+     * 
+     * @param name The name of the primitive type, such as <code>int</code>.
+     * @return The SQLType, or <code>null</code> if <code>name</code> is not a
+     *         primitive type.
+     */
+    public static SQLType findByPrimitive(final String name)
+    {
+        for (final SQLType type : values()) {
+            if (null != type.primitiveName && type.primitiveName.equals(name)) {
+                return type;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Find the SQLType for the name of one of its constants, or of a primitive
+     * type.
+     * 
+     * @param name The name.
+     * @return The SQLType.
+     * @throws IllegalArgumentException If there is no such SQLType.
+     */
+    public static SQLType find(final String name)
+    {
+        final SQLType type = findByPrimitive(name);
+        if (null != type) {
+            return type;
+        }
+
+        return valueOf(name);
+    }
+
+    /**
+     * Get the name of the type to use for a Java type where only objects are
+     * allowed, such as a type parameter.
+     * 
+     * @param typeName The Java type name.
+     * @return The wrapper class name if <code>typeName</code> is a primitive
+     *         type, otherwise <code>typeName</code>.
+     */
+    public static String box(final String typeName)
+    {
+        final SQLType type = findByPrimitive(typeName);
+        if (null != type) {
+            return type.typeName;
+        }
+
+        return typeName;
     }
 }
@@ -73,7 +73,7 @@ public class Field
     {
         if (null == sql_type && null != getType()) {
             try {
-                return SQLType.valueOf(getType());
+                return SQLType.find(getType());
             }
             catch (final IllegalArgumentException iae) {
                 return null;
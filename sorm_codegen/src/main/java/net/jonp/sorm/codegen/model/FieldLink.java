@@ -14,6 +14,7 @@ public class FieldLink
     private String key_type;
     private SQLType sql_type; // Default returned by getter
     private FieldLinkCollection collection = null;
+    private boolean lazy = false;
 
     public FieldLink(final Field _field)
     {
@@ -59,7 +60,7 @@ public class FieldLink
     {
         if (null == sql_type && null != getKey_type()) {
             try {
-                return SQLType.valueOf(getKey_type());
+                return SQLType.find(getKey_type());
             }
             catch (final IllegalArgumentException iae) {
                 return null;
@@ -83,4 +84,14 @@ public class FieldLink
     {
         this.collection = collection;
     }
+
+    public boolean isLazy()
+    {
+        return lazy;
+    }
+
+    public void setLazy(final boolean lazy)
+    {
+        this.lazy = lazy;
+    }
 }
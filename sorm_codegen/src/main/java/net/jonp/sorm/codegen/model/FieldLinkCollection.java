@@ -8,6 +8,7 @@ public class FieldLinkCollection
 {
     private final FieldLink link;
     private final Query read = new Query();
+    private final Query readMany = new Query();
     private Query create;
     private Query delete;
 
@@ -21,6 +22,11 @@ public class FieldLinkCollection
         return read;
     }
 
+    public Query getReadMany()
+    {
+        return readMany;
+    }
+
     public Query getCreate()
     {
         return create;
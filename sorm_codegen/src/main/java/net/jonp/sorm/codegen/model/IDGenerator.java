@@ -10,6 +10,12 @@ public enum IDGenerator
 
     /** IDs are retrieved <i>before</i> creating objects in the database. */
     Pre,
+
+    /**
+     * IDs are generated by the database while creating objects, and returned
+     * by the insert itself through JDBC generated keys.
+     */
+    Generated,
     //
     ;
 }
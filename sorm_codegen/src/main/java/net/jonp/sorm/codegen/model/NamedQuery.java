@@ -10,6 +10,8 @@ public class NamedQuery
 {
     private String accessor = "public";
     private String name;
+    private boolean stream = false;
+    private boolean fullRows = false;
     private final List<QueryParam> params = new LinkedList<QueryParam>();
     private final Query query = new Query();
 
@@ -38,6 +40,26 @@ public class NamedQuery
         this.name = name;
     }
 
+    public boolean isStream()
+    {
+        return stream;
+    }
+
+    public void setStream(final boolean stream)
+    {
+        this.stream = stream;
+    }
+
+    public boolean isFullRows()
+    {
+        return fullRows;
+    }
+
+    public void setFullRows(final boolean fullRows)
+    {
+        this.fullRows = fullRows;
+    }
+
     public List<QueryParam> getParams()
     {
         return params;
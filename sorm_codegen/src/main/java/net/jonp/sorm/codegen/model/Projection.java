@@ -0,0 +1,50 @@
+package net.jonp.sorm.codegen.model;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Represents a named read of only some of the fields of an object.
+ */
+public class Projection
+{
+    private String accessor = "public";
+    private String name;
+    private final List<String> fields = new LinkedList<String>();
+    private final Query query = new Query();
+
+    public Projection()
+    {
+        // Nothing to do
+    }
+
+    public String getAccessor()
+    {
+        return accessor;
+    }
+
+    public void setAccessor(final String accessor)
+    {
+        this.accessor = accessor;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public void setName(final String name)
+    {
+        this.name = name;
+    }
+
+    public List<String> getFields()
+    {
+        return fields;
+    }
+
+    public Query getQuery()
+    {
+        return query;
+    }
+}
@@ -41,7 +41,7 @@ public class QueryParam
     {
         if (null == sql_type && null != getType()) {
             try {
-                return SQLType.valueOf(getType());
+                return SQLType.find(getType());
             }
             catch (final IllegalArgumentException iae) {
                 return null;
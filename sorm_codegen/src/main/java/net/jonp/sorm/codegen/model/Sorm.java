@@ -14,14 +14,19 @@ public class Sorm
     private String name;
     private String orm_accessor = "public";
     private String superClass = null;
+    private String table = null;
+    private boolean dirtyTracking = false;
 
     private final List<Field> fields = new LinkedList<Field>();
     private final Query create = new Query();
     private final Query pk = new Query();
     private final Query read = new Query();
+    private final Query readMany = new Query();
     private final Query update = new Query();
+    private final Query upsert = new Query();
     private final Query delete = new Query();
     private final List<NamedQuery> queries = new LinkedList<NamedQuery>();
+    private final List<Projection> projections = new LinkedList<Projection>();
 
     public Sorm()
     {
@@ -78,6 +83,26 @@ public class Sorm
         this.superClass = superClass;
     }
 
+    public String getTable()
+    {
+        return table;
+    }
+
+    public void setTable(final String table)
+    {
+        this.table = table;
+    }
+
+    public boolean isDirtyTracking()
+    {
+        return dirtyTracking;
+    }
+
+    public void setDirtyTracking(final boolean dirtyTracking)
+    {
+        this.dirtyTracking = dirtyTracking;
+    }
+
     public List<Field> getFields()
     {
         return fields;
@@ -98,11 +123,21 @@ public class Sorm
         return read;
     }
 
+    public Query getReadMany()
+    {
+        return readMany;
+    }
+
     public Query getUpdate()
     {
         return update;
     }
 
+    public Query getUpsert()
+    {
+        return upsert;
+    }
+
     public Query getDelete()
     {
         return delete;
@@ -113,6 +148,11 @@ public class Sorm
         return queries;
     }
 
+    public List<Projection> getProjections()
+    {
+        return projections;
+    }
+
     /**
      * If there is a primary field, get it.
      * 
@@ -14,6 +14,7 @@ import net.jonp.sorm.codegen.model.FieldLinkCollection;
 import net.jonp.sorm.codegen.model.FieldSetter;
 import net.jonp.sorm.codegen.model.IDGenerator;
 import net.jonp.sorm.codegen.model.NamedQuery;
+import net.jonp.sorm.codegen.model.Projection;
 import net.jonp.sorm.codegen.model.Query;
 import net.jonp.sorm.codegen.model.QueryParam;
 import net.jonp.sorm.codegen.model.Sorm;
@@ -52,14 +53,22 @@ public class XMLParser
         sorm.setName(eRoot.getAttributeValue("name", sorm.getName()));
         sorm.setOrm_accessor(eRoot.getAttributeValue("orm_accessor", sorm.getOrm_accessor()));
         sorm.setSuper(eRoot.getAttributeValue("super", sorm.getSuper()));
+        sorm.setTable(eRoot.getAttributeValue("table", sorm.getTable()));
+        sorm.setDirtyTracking(checkBoolean(eRoot.getAttributeValue("dirty-tracking"), sorm.isDirtyTracking()));
+        if (sorm.isDirtyTracking() && null == sorm.getTable()) {
+            throw new BadInputException("Attribute 'dirty-tracking' requires attribute 'table'");
+        }
 
         sorm.getFields().addAll(readFields(eRoot, ns));
         readQuery(eRoot, ns, sorm.getCreate(), "create", "c");
         readQuery(eRoot, ns, sorm.getPk(), "pk", "pk");
         readQuery(eRoot, ns, sorm.getRead(), "read", "r");
+        readQuery(eRoot, ns, sorm.getReadMany(), "read-many", "rm");
         readQuery(eRoot, ns, sorm.getUpdate(), "update", "u");
+        readQuery(eRoot, ns, sorm.getUpsert(), "upsert", "up");
         readQuery(eRoot, ns, sorm.getDelete(), "delete", "d");
         sorm.getQueries().addAll(readNamedQueries(eRoot, ns));
+        sorm.getProjections().addAll(readProjections(eRoot, ns, sorm));
 
         return sorm;
     }
@@ -69,7 +78,7 @@ public class XMLParser
     {
         final SAXBuilder builder = new SAXBuilder("org.apache.xerces.parsers.SAXParser", true);
         builder.setFeature("http://apache.org/xml/features/validation/schema", true);
-        builder.setProperty("http://apache.org/xml/properties/schema/external-schemaLocation", getClass().getClassLoader()
+        builder.setProperty("http://apache.org/xml/properties/schema/external-schemaLocation", "http://jonp.net/sorm " + getClass().getClassLoader()
             .getResource("sorm.xsd").toString());
         final Document doc;
         try {
@@ -108,6 +117,10 @@ public class XMLParser
             field.setSql_type(findSQLType(eField.getAttributeValue("sql-type"), field.getSql_type()));
             field.setSql_column(eField.getAttributeValue("sql-column", field.getSql_column()));
             field.setNullable(checkBoolean(eField.getAttributeValue("nullable"), field.isNullable()));
+            if (field.isNullable() && null != SQLType.findByPrimitive(field.getType())) {
+                throw new BadInputException("Field " + field.getName() + " has primitive type " + field.getType() +
+                                            " and cannot be nullable");
+            }
             field.setFromSuper(checkBoolean(eField.getAttributeValue("from-super"), field.isFromSuper()));
             field.setGroup(checkBoolean(eField.getAttributeValue("group"), field.isGroup()));
             field.setParent(eField.getAttributeValue("parent", field.getParent()));
@@ -163,6 +176,7 @@ public class XMLParser
             link.setType(eLink.getAttributeValue("type", link.getType()));
             link.setKey_type(eLink.getAttributeValue("key-type", link.getKey_type()));
             link.setSql_type(findSQLType(eLink.getAttributeValue("sql-type"), link.getSql_type()));
+            link.setLazy(checkBoolean(eLink.getAttributeValue("lazy"), link.isLazy()));
 
             if (link.getMode() == LinkMode.OneToMany || link.getMode() == LinkMode.ManyToMany) {
                 link.setCollection(readFieldLinkCollection(eLink, ns, link));
@@ -188,6 +202,7 @@ public class XMLParser
                 throw new BadInputException("Missing 'read' element beneath link collection");
             }
             readQuery(eRead, ns, collection.getRead(), null, "r");
+            readQuery(eCollection, ns, collection.getReadMany(), "read-many", "rm");
 
             final Element eCreate = eCollection.getChild("create", ns);
             if (null != eCreate) {
@@ -260,6 +275,8 @@ public class XMLParser
         final NamedQuery query = new NamedQuery();
         query.setAccessor(eQuery.getAttributeValue("accessor", query.getAccessor()));
         query.setName(eQuery.getAttributeValue("name", query.getName()));
+        query.setStream(checkBoolean(eQuery.getAttributeValue("stream"), query.isStream()));
+        query.setFullRows(checkBoolean(eQuery.getAttributeValue("full-rows"), query.isFullRows()));
 
         for (final Object o : eQuery.getChildren("param", ns)) {
             final Element eParam = (Element)o;
@@ -271,6 +288,62 @@ public class XMLParser
         return query;
     }
 
+    private List<Projection> readProjections(final Element eRoot, final Namespace ns, final Sorm sorm)
+        throws BadInputException
+    {
+        final List<Projection> projections = new LinkedList<Projection>();
+        for (final Object o : eRoot.getChildren("projection", ns)) {
+            final Element eProjection = (Element)o;
+            projections.add(readProjection(eProjection, ns, sorm));
+        }
+
+        return projections;
+    }
+
+    private Projection readProjection(final Element eProjection, final Namespace ns, final Sorm sorm)
+        throws BadInputException
+    {
+        final Projection projection = new Projection();
+        projection.setAccessor(eProjection.getAttributeValue("accessor", projection.getAccessor()));
+        projection.setName(eProjection.getAttributeValue("name", projection.getName()));
+
+        for (final String name : eProjection.getAttributeValue("fields", "").trim().split("\\s+")) {
+            if (name.isEmpty()) {
+                continue;
+            }
+
+            Field field = null;
+            for (final Field f : sorm.getFields()) {
+                if (f.getName().equals(name)) {
+                    field = f;
+                    break;
+                }
+            }
+
+            if (null == field) {
+                throw new BadInputException("Projection " + projection.getName() + " names non-existent field " + name);
+            }
+            else if (field.isPrimary() || null != field.getParent() || LinkMode.OneToMany == field.getLink().getMode() ||
+                     LinkMode.ManyToMany == field.getLink().getMode()) {
+                throw new BadInputException("Projection " + projection.getName() + " cannot name field " + name +
+                                            "; only top-level fields stored in the row may be projected");
+            }
+
+            projection.getFields().add(name);
+        }
+
+        if (projection.getFields().isEmpty()) {
+            throw new BadInputException("Projection " + projection.getName() + " names no fields");
+        }
+
+        readQuery(eProjection, ns, projection.getQuery(), null, "p");
+        if (projection.getQuery().isEmpty() && null == sorm.getTable()) {
+            throw new BadInputException("Projection " + projection.getName() + " needs a 'p' query, or attribute 'table'");
+        }
+
+        return projection;
+    }
+
     private QueryParam readNamedQueryParam(final Element eParam, final Namespace ns)
     {
         final QueryParam param = new QueryParam();
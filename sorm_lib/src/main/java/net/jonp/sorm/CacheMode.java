@@ -22,12 +22,14 @@ public enum CacheMode
 
     /**
      * Use the cache to build up a set of changes, which may all be pushed to
-     * the database in one burst transaction using {@link SormSession#flush()}.
-     * Created objects will not have assigned identifiers, updates will do
-     * nothing (the updates will be written during the burst), reads will hit
-     * the database as necessary but outside of the transaction (unless you
-     * start one manually), and deletes will move objects from the object cache
-     * to an otherwise inaccessible delete cache.
+     * the database in one burst transaction using {@link SormSession#flush()}
+     * (or {@link SormSession#close()}). Created objects will not have assigned
+     * identifiers, updates will do nothing (the updates will be written during
+     * the burst), reads will hit the database as necessary but outside of the
+     * transaction (unless you start one manually), and deletes will move
+     * objects from the object cache to an otherwise inaccessible delete cache.
+     * Repeated updates of an object are written once, and objects that are
+     * created and then deleted before the burst are never written at all.
      */
     Delayed,
     //
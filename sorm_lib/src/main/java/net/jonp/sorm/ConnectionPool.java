@@ -0,0 +1,474 @@
+package net.jonp.sorm;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded pool of JDBC connections, opened through {@link DriverManager}.
+ * This is the default {@link ConnectionProvider} of a {@link SormContext}, so
+ * that short-lived {@link SormSession}s borrow an existing connection instead
+ * of opening (and then closing) a new one each time.
+ * <p>
+ * Idle connections are handed out most-recently-used first, validated if they
+ * have been idle for a while, and closed once they have been idle for too long.
+ * Optionally, connections that have been borrowed for a suspiciously long time
+ * are reported as leaks, along with the stack trace of the code that borrowed
+ * them.
+ */
+public class ConnectionPool
+    implements ConnectionProvider
+{
+    private static final Logger LOG = Logger.getLogger(ConnectionPool.class);
+
+    private final String _url;
+    private final String _user;
+    private final String _passwd;
+
+    private int _maxSize = 8;
+    private long _borrowTimeout = 30000;
+    private long _maxIdleTime = 300000;
+    private long _validationInterval = 1000;
+    private int _validationTimeout = 5;
+    private long _leakThreshold = 0;
+
+    private boolean _closed = false;
+    private int _open = 0;
+
+    // Most recently returned connection first
+    private final LinkedList<IdleConnection> _idle = new LinkedList<IdleConnection>();
+    private final Map<Connection, BorrowedConnection> _borrowed = new IdentityHashMap<Connection, BorrowedConnection>();
+
+    /**
+     * Construct a new {@link ConnectionPool}. No connections are opened until
+     * they are needed.
+     *
+     * @param url The JDBC URL of the database.
+     * @param user The user name, or <code>null</code> to not pass a user
+     *            name/password.
+     * @param passwd The password, or <code>null</code> to not pass a user
+     *            name/password.
+     */
+    public ConnectionPool(final String url, final String user, final String passwd)
+    {
+        _url = url;
+        _user = user;
+        _passwd = passwd;
+    }
+
+    /** Get the maximum number of connections (idle or borrowed) that may be open at once. */
+    public synchronized int getMaxSize()
+    {
+        return _maxSize;
+    }
+
+    /**
+     * Set the maximum number of connections (idle or borrowed) that may be
+     * open at once. When this many are borrowed, {@link #borrow()} waits for
+     * one to be returned.
+     *
+     * @param maxSize The maximum number of connections; must be at least 1.
+     */
+    public synchronized void setMaxSize(final int maxSize)
+    {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum pool size must be at least 1: " + maxSize);
+        }
+
+        _maxSize = maxSize;
+        notifyAll();
+    }
+
+    /** Get the number of milliseconds {@link #borrow()} waits for a connection before giving up. */
+    public synchronized long getBorrowTimeout()
+    {
+        return _borrowTimeout;
+    }
+
+    /** Set the number of milliseconds {@link #borrow()} waits for a connection before giving up. */
+    public synchronized void setBorrowTimeout(final long borrowTimeout)
+    {
+        _borrowTimeout = borrowTimeout;
+    }
+
+    /** Get the number of milliseconds a connection may sit idle before it is closed. */
+    public synchronized long getMaxIdleTime()
+    {
+        return _maxIdleTime;
+    }
+
+    /**
+     * Set the number of milliseconds a connection may sit idle before it is
+     * closed. Use 0 to never close idle connections.
+     */
+    public synchronized void setMaxIdleTime(final long maxIdleTime)
+    {
+        _maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Get the number of milliseconds a connection may sit idle before it must
+     * be validated again when borrowed.
+     */
+    public synchronized long getValidationInterval()
+    {
+        return _validationInterval;
+    }
+
+    /**
+     * Set the number of milliseconds a connection may sit idle before it must
+     * be validated again when borrowed. Use 0 to validate on every borrow.
+     */
+    public synchronized void setValidationInterval(final long validationInterval)
+    {
+        _validationInterval = validationInterval;
+    }
+
+    /** Get the number of seconds to wait for a connection to validate. */
+    public synchronized int getValidationTimeout()
+    {
+        return _validationTimeout;
+    }
+
+    /**
+     * Set the number of seconds to wait for a connection to validate. Use 0 to
+     * disable validation entirely (only closed connections will be discarded).
+     */
+    public synchronized void setValidationTimeout(final int validationTimeout)
+    {
+        _validationTimeout = validationTimeout;
+    }
+
+    /** Get the number of milliseconds a connection may be borrowed before it is reported as a leak. */
+    public synchronized long getLeakThreshold()
+    {
+        return _leakThreshold;
+    }
+
+    /**
+     * Set the number of milliseconds a connection may be borrowed before it is
+     * reported as a leak. Use 0 (the default) to disable leak detection, which
+     * avoids capturing a stack trace on every borrow.
+     */
+    public synchronized void setLeakThreshold(final long leakThreshold)
+    {
+        _leakThreshold = leakThreshold;
+    }
+
+    /** Get the number of connections currently open (idle or borrowed). */
+    public synchronized int getOpenCount()
+    {
+        return _open;
+    }
+
+    /** Get the number of open connections that are currently idle. */
+    public synchronized int getIdleCount()
+    {
+        return _idle.size();
+    }
+
+    /**
+     * Borrow a connection from the pool, opening a new one if none are idle
+     * and the pool is not full. Make sure to {@link #release(Connection)} it
+     * when you are finished with it.
+     *
+     * @return A connection in auto-commit mode.
+     * @throws SQLException If there was a problem opening a new connection, or
+     *             if the pool stayed full for longer than the borrow timeout.
+     * @throws IllegalStateException If the pool is closed.
+     */
+    @Override
+    public Connection borrow()
+        throws SQLException
+    {
+        final long deadline = System.currentTimeMillis() + getBorrowTimeout();
+        while (true) {
+            IdleConnection idle = null;
+            boolean create = false;
+            synchronized (this) {
+                if (_closed) {
+                    throw new IllegalStateException(getClass().getSimpleName() + " is closed");
+                }
+
+                evictIdle();
+                reportLeaks();
+
+                if (!_idle.isEmpty()) {
+                    idle = _idle.removeFirst();
+                }
+                else if (_open < _maxSize) {
+                    _open++;
+                    create = true;
+                }
+                else {
+                    final long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new SQLException("Timed out waiting for one of " + _maxSize + " pooled connections");
+                    }
+
+                    try {
+                        wait(wait);
+                    }
+                    catch (final InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a pooled connection");
+                    }
+
+                    continue;
+                }
+            }
+
+            final Connection connection;
+            if (create) {
+                try {
+                    connection = connect();
+                }
+                catch (final SQLException sqle) {
+                    synchronized (this) {
+                        _open--;
+                        notifyAll();
+                    }
+
+                    throw sqle;
+                }
+            }
+            else if (validate(idle)) {
+                connection = idle.connection;
+            }
+            else {
+                LOG.debug("Discarding invalid pooled connection");
+                discard(idle.connection);
+                continue;
+            }
+
+            synchronized (this) {
+                _borrowed.put(connection, new BorrowedConnection(getLeakThreshold() > 0));
+            }
+
+            return connection;
+        }
+    }
+
+    /**
+     * Return a connection borrowed through {@link #borrow()} to the pool. Any
+     * uncommitted transaction is rolled back and auto-commit is restored. If
+     * that fails, or if the pool is closed, the connection is closed instead.
+     *
+     * @param connection The connection to return.
+     */
+    @Override
+    public void release(final Connection connection)
+    {
+        synchronized (this) {
+            if (null == _borrowed.remove(connection)) {
+                throw new IllegalArgumentException("Connection was not borrowed from this pool");
+            }
+        }
+
+        try {
+            if (connection.isClosed()) {
+                discard(connection);
+                return;
+            }
+
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+        catch (final SQLException sqle) {
+            LOG.debug("Discarding pooled connection that could not be reset", sqle);
+            discard(connection);
+            return;
+        }
+
+        synchronized (this) {
+            if (!_closed) {
+                _idle.addFirst(new IdleConnection(connection));
+                notifyAll();
+                return;
+            }
+        }
+
+        discard(connection);
+    }
+
+    /**
+     * Close the pool. All idle connections are closed immediately, and
+     * borrowed connections are closed as they are released.
+     */
+    @Override
+    public void close()
+    {
+        final List<IdleConnection> idle;
+        synchronized (this) {
+            if (_closed) {
+                return;
+            }
+
+            _closed = true;
+            idle = new LinkedList<IdleConnection>(_idle);
+            _idle.clear();
+            notifyAll();
+
+            if (!_borrowed.isEmpty()) {
+                LOG.info("Closing " + getClass().getSimpleName() + " with " + _borrowed.size() + " connections still borrowed");
+            }
+        }
+
+        for (final IdleConnection conn : idle) {
+            discard(conn.connection);
+        }
+    }
+
+    /**
+     * Open a new connection to the database.
+     *
+     * @return The new connection.
+     * @throws SQLException If there was a problem connecting.
+     */
+    private Connection connect()
+        throws SQLException
+    {
+        LOG.debug("Opening a new pooled connection to " + _url);
+        if (null == _user || null == _passwd) {
+            return DriverManager.getConnection(_url);
+        }
+        else {
+            return DriverManager.getConnection(_url, _user, _passwd);
+        }
+    }
+
+    /**
+     * Test whether an idle connection is still usable.
+     *
+     * @param idle The idle connection.
+     * @return True if it may be handed out, false if it should be discarded.
+     */
+    private boolean validate(final IdleConnection idle)
+    {
+        final int timeout;
+        final long interval;
+        synchronized (this) {
+            timeout = _validationTimeout;
+            interval = _validationInterval;
+        }
+
+        try {
+            if (idle.connection.isClosed()) {
+                return false;
+            }
+            else if (timeout <= 0 || System.currentTimeMillis() - idle.since < interval) {
+                return true;
+            }
+
+            try {
+                return idle.connection.isValid(timeout);
+            }
+            catch (final AbstractMethodError ame) {
+                // Pre-JDBC 4 driver; being open is the best we can check
+                return true;
+            }
+        }
+        catch (final SQLException sqle) {
+            LOG.debug("Error validating pooled connection", sqle);
+            return false;
+        }
+    }
+
+    /**
+     * Close a connection and give up its slot in the pool.
+     *
+     * @param connection The connection to close.
+     */
+    private void discard(final Connection connection)
+    {
+        try {
+            connection.close();
+        }
+        catch (final SQLException sqle) {
+            LOG.debug("Error closing pooled connection", sqle);
+        }
+
+        synchronized (this) {
+            _open--;
+            notifyAll();
+        }
+    }
+
+    /** Close any connections that have been idle for too long. Call while synchronized. */
+    private void evictIdle()
+    {
+        if (_maxIdleTime <= 0) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final Iterator<IdleConnection> it = _idle.descendingIterator();
+        while (it.hasNext()) {
+            final IdleConnection idle = it.next();
+            if (now - idle.since < _maxIdleTime) {
+                // Everything after this was returned more recently
+                break;
+            }
+
+            it.remove();
+            _open--;
+            try {
+                idle.connection.close();
+            }
+            catch (final SQLException sqle) {
+                LOG.debug("Error closing idle pooled connection", sqle);
+            }
+        }
+    }
+
+    /** Log any borrowed connections that look like they have leaked. Call while synchronized. */
+    private void reportLeaks()
+    {
+        if (_leakThreshold <= 0) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        for (final BorrowedConnection borrowed : _borrowed.values()) {
+            if (!borrowed.reported && now - borrowed.since >= _leakThreshold) {
+                borrowed.reported = true;
+                LOG.warn("Pooled connection has been borrowed for " + (now - borrowed.since) + " ms; possible leak",
+                         borrowed.origin);
+            }
+        }
+    }
+
+    /** An idle connection, and when it was returned to the pool. */
+    private static class IdleConnection
+    {
+        final Connection connection;
+        final long since = System.currentTimeMillis();
+
+        IdleConnection(final Connection _connection)
+        {
+            connection = _connection;
+        }
+    }
+
+    /** Bookkeeping for a borrowed connection, for leak detection. */
+    private static class BorrowedConnection
+    {
+        final long since = System.currentTimeMillis();
+        final Throwable origin;
+        boolean reported = false;
+
+        BorrowedConnection(final boolean trace)
+        {
+            origin = (trace ? new Throwable("Connection borrowed here") : null);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package net.jonp.sorm;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Provides database connections to the {@link SormSession}s of a
+ * {@link SormContext}. Implement this to plug in an external connection pool;
+ * {@link ConnectionPool} and {@link DataSourceConnectionProvider} are provided.
+ */
+public interface ConnectionProvider
+{
+    /**
+     * Get a connection for a new {@link SormSession}.
+     * 
+     * @return A connection in auto-commit mode.
+     * @throws SQLException If there was a problem getting a connection.
+     */
+    public Connection borrow()
+        throws SQLException;
+
+    /**
+     * Give back a connection obtained from {@link #borrow()}, when its
+     * {@link SormSession} is closed.
+     * 
+     * @param connection The connection.
+     * @throws SQLException If there was a problem releasing the connection.
+     */
+    public void release(Connection connection)
+        throws SQLException;
+
+    /**
+     * Called when the {@link SormContext} is closed. Release any resources held
+     * by this provider.
+     */
+    public void close();
+}
@@ -0,0 +1,63 @@
+package net.jonp.sorm;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+/**
+ * A {@link ConnectionProvider} that gets connections from a {@link DataSource},
+ * such as an externally configured connection pool. Connections are closed when
+ * they are released, which returns them to a pooling {@link DataSource}.
+ */
+public class DataSourceConnectionProvider
+    implements ConnectionProvider
+{
+    private final DataSource _dataSource;
+
+    /**
+     * Construct a new {@link DataSourceConnectionProvider}.
+     * 
+     * @param dataSource The source of connections.
+     */
+    public DataSourceConnectionProvider(final DataSource dataSource)
+    {
+        _dataSource = dataSource;
+    }
+
+    /** Get the {@link DataSource} wrapped by this provider. */
+    public DataSource getDataSource()
+    {
+        return _dataSource;
+    }
+
+    @Override
+    public Connection borrow()
+        throws SQLException
+    {
+        return _dataSource.getConnection();
+    }
+
+    @Override
+    public void release(final Connection connection)
+        throws SQLException
+    {
+        try {
+            if (!connection.isClosed() && !connection.getAutoCommit()) {
+                // Do not leave a half-finished transaction on a connection that
+                // may be handed to someone else
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        // The DataSource belongs to the caller, so there is nothing to do
+    }
+}
@@ -0,0 +1,26 @@
+package net.jonp.sorm;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Performs database writes that were queued by a {@link SormSession} in
+ * {@link CacheMode#Delayed}, when that session is flushed. Generated Orm
+ * classes provide one of these for each kind of write they support.
+ * 
+ * @param <T> The type of item written.
+ */
+public interface DelayedWriter<T>
+{
+    /**
+     * Write a run of queued items to the database. Called with the session in
+     * the middle of a flush, so writes made through it go straight to the
+     * database.
+     * 
+     * @param session The session being flushed.
+     * @param items The items to write, in the order they were queued.
+     * @throws SQLException If there was a problem writing.
+     */
+    public void write(SormSession session, List<T> items)
+        throws SQLException;
+}
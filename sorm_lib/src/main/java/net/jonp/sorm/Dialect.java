@@ -5,17 +5,37 @@ package net.jonp.sorm;
  */
 public class Dialect
 {
+    /** How the JDBC driver of a dialect returns keys generated by inserts. */
+    public static enum GeneratedKeys
+    {
+        /** The driver cannot return generated keys. */
+        None,
+
+        /**
+         * The driver returns the key generated by a single insert, but not the
+         * keys generated by a batch.
+         */
+        Single,
+
+        /** The driver returns every key generated by a batch of inserts. */
+        Batch,
+
+        //
+        ;
+    }
+
     /** The dialect of an H2 database. */
-    public static final Dialect H2 = new Dialect("h2", "org.h2.Driver", "jdbc:h2:");
+    public static final Dialect H2 = new Dialect("h2", "org.h2.Driver", "jdbc:h2:", GeneratedKeys.Single);
 
     /** The dialect of a MySQL database. */
-    public static final Dialect MySQL = new Dialect("mysql", "com.mysql.jdbc.Driver", "jdbc:mysql://");
+    public static final Dialect MySQL = new Dialect("mysql", "com.mysql.jdbc.Driver", "jdbc:mysql://", GeneratedKeys.Batch);
 
     /** The dialect of a PostgreSQL database. */
-    public static final Dialect PostgreSQL = new Dialect("postgresql", "org.postgresql.Driver", "jdbc:postgresql://");
+    public static final Dialect PostgreSQL = new Dialect("postgresql", "org.postgresql.Driver", "jdbc:postgresql://",
+                                                        GeneratedKeys.Batch);
 
     /** The dialect of a SQLite database. */
-    public static final Dialect SQLite = new Dialect("sqlite", "org.sqlite.JDBC", "jdbc:sqlite:");
+    public static final Dialect SQLite = new Dialect("sqlite", "org.sqlite.JDBC", "jdbc:sqlite:", GeneratedKeys.Single);
 
     /** The name of this dialect. */
     private final String name;
@@ -29,18 +49,35 @@ public class Dialect
      */
     private final String protocol;
 
+    /** How the driver returns keys generated by inserts. */
+    private final GeneratedKeys generatedKeys;
+
     /**
-     * Construct a new Dialect.
+     * Construct a new Dialect whose driver cannot return generated keys.
      * 
      * @param _name The name of the dialect.
      * @param _driver The driver class.
      * @param _protocol The protocol.
      */
     public Dialect(final String _name, final String _driver, final String _protocol)
+    {
+        this(_name, _driver, _protocol, GeneratedKeys.None);
+    }
+
+    /**
+     * Construct a new Dialect.
+     * 
+     * @param _name The name of the dialect.
+     * @param _driver The driver class.
+     * @param _protocol The protocol.
+     * @param _generatedKeys How the driver returns keys generated by inserts.
+     */
+    public Dialect(final String _name, final String _driver, final String _protocol, final GeneratedKeys _generatedKeys)
     {
         name = _name;
         driver = _driver;
         protocol = _protocol;
+        generatedKeys = _generatedKeys;
     }
 
     /** Get the name of this dialect. */
@@ -64,6 +101,16 @@ public class Dialect
         return protocol;
     }
 
+    /**
+     * Get how the JDBC driver returns keys generated by inserts, which decides
+     * how generated <code>create</code> functions read back the keys of
+     * objects whose primary field uses the <code>Generated</code> generator.
+     */
+    public GeneratedKeys getGeneratedKeys()
+    {
+        return generatedKeys;
+    }
+
     @Override
     public String toString()
     {
@@ -0,0 +1,251 @@
+package net.jonp.sorm;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread-safe identity map from (type, key) onto cached objects, used by
+ * {@link SormSession}. Keys are held strongly and compared with
+ * <code>equals()</code>, so a boxed key such as an {@link Integer} does not
+ * have to be the same instance to find its object. Values are held through
+ * weak or soft references, and entries whose values have been collected are
+ * cleaned out as the cache is used.
+ * <p>
+ * Each type has its own {@link ConcurrentHashMap}, so lookups never block and
+ * writers only contend with other writers to the same segment of the same
+ * type.
+ */
+public class IdentityCache
+{
+    /** How strongly cached values are held. */
+    public static enum Strength
+    {
+        /** Values are dropped as soon as nothing else refers to them. */
+        Weak,
+
+        /**
+         * Values are kept until the garbage collector needs the memory, even
+         * if nothing else refers to them.
+         */
+        Soft,
+
+        //
+        ;
+    }
+
+    private final Strength _strength;
+    private final ReferenceQueue<Object> _queue = new ReferenceQueue<Object>();
+    private final ConcurrentMap<Class<?>, ConcurrentMap<Object, Reference<Object>>> _types =
+        new ConcurrentHashMap<Class<?>, ConcurrentMap<Object, Reference<Object>>>();
+
+    /**
+     * Construct a new, empty {@link IdentityCache}.
+     *
+     * @param strength How strongly to hold cached values.
+     */
+    public IdentityCache(final Strength strength)
+    {
+        if (null == strength) {
+            throw new IllegalArgumentException("strength must not be null");
+        }
+
+        _strength = strength;
+    }
+
+    /** Get how strongly this cache holds its values. */
+    public Strength getStrength()
+    {
+        return _strength;
+    }
+
+    /**
+     * Add an object to the cache, replacing any object already cached under
+     * the same type and key.
+     *
+     * @param type The type of object.
+     * @param key The key of the object. If <code>null</code>, nothing is
+     *            cached.
+     * @param value The object. If <code>null</code>, nothing is cached.
+     */
+    public void put(final Class<?> type, final Object key, final Object value)
+    {
+        expunge();
+
+        if (null == key || null == value) {
+            return;
+        }
+
+        ConcurrentMap<Object, Reference<Object>> typemap = _types.get(type);
+        if (null == typemap) {
+            final ConcurrentMap<Object, Reference<Object>> created = new ConcurrentHashMap<Object, Reference<Object>>();
+            typemap = _types.putIfAbsent(type, created);
+            if (null == typemap) {
+                typemap = created;
+            }
+        }
+
+        typemap.put(key, makeReference(type, key, value));
+    }
+
+    /**
+     * Get a cached object.
+     *
+     * @param type The type of object.
+     * @param key The key of the object.
+     * @return The cached object, or <code>null</code> if there is none (or if
+     *         it has been collected).
+     */
+    public Object get(final Class<?> type, final Object key)
+    {
+        expunge();
+
+        if (null == key) {
+            return null;
+        }
+
+        final ConcurrentMap<Object, Reference<Object>> typemap = _types.get(type);
+        if (null == typemap) {
+            return null;
+        }
+
+        final Reference<Object> ref = typemap.get(key);
+        if (null == ref) {
+            return null;
+        }
+
+        return ref.get();
+    }
+
+    /**
+     * Remove an object from the cache.
+     *
+     * @param type The type of object.
+     * @param key The key of the object. If <code>null</code>, nothing happens.
+     */
+    public void remove(final Class<?> type, final Object key)
+    {
+        expunge();
+
+        if (null == key) {
+            return;
+        }
+
+        final ConcurrentMap<Object, Reference<Object>> typemap = _types.get(type);
+        if (null != typemap) {
+            typemap.remove(key);
+        }
+    }
+
+    /** Remove everything from the cache. */
+    public void clear()
+    {
+        _types.clear();
+        expunge();
+    }
+
+    /**
+     * Get the number of entries in the cache. Entries whose values have been
+     * collected, but not yet cleaned out, are included.
+     */
+    public int size()
+    {
+        expunge();
+
+        int size = 0;
+        for (final ConcurrentMap<Object, Reference<Object>> typemap : _types.values()) {
+            size += typemap.size();
+        }
+
+        return size;
+    }
+
+    /** Remove the entries whose values have been collected. */
+    private void expunge()
+    {
+        Reference<?> ref;
+        while (null != (ref = _queue.poll())) {
+            final CacheReference entry = (CacheReference)ref;
+            final ConcurrentMap<Object, Reference<Object>> typemap = _types.get(entry.getType());
+            if (null != typemap) {
+                // Only remove the entry if it has not been replaced since
+                typemap.remove(entry.getKey(), ref);
+            }
+        }
+    }
+
+    private Reference<Object> makeReference(final Class<?> type, final Object key, final Object value)
+    {
+        if (Strength.Soft == _strength) {
+            return new SoftCacheReference(type, key, value, _queue);
+        }
+        else {
+            return new WeakCacheReference(type, key, value, _queue);
+        }
+    }
+
+    /** A reference that remembers where it is stored, so it can be removed once cleared. */
+    private static interface CacheReference
+    {
+        Class<?> getType();
+
+        Object getKey();
+    }
+
+    private static class WeakCacheReference
+        extends WeakReference<Object>
+        implements CacheReference
+    {
+        private final Class<?> _type;
+        private final Object _key;
+
+        WeakCacheReference(final Class<?> type, final Object key, final Object value, final ReferenceQueue<Object> queue)
+        {
+            super(value, queue);
+            _type = type;
+            _key = key;
+        }
+
+        @Override
+        public Class<?> getType()
+        {
+            return _type;
+        }
+
+        @Override
+        public Object getKey()
+        {
+            return _key;
+        }
+    }
+
+    private static class SoftCacheReference
+        extends SoftReference<Object>
+        implements CacheReference
+    {
+        private final Class<?> _type;
+        private final Object _key;
+
+        SoftCacheReference(final Class<?> type, final Object key, final Object value, final ReferenceQueue<Object> queue)
+        {
+            super(value, queue);
+            _type = type;
+            _key = key;
+        }
+
+        @Override
+        public Class<?> getType()
+        {
+            return _type;
+        }
+
+        @Override
+        public Object getKey()
+        {
+            return _key;
+        }
+    }
+}
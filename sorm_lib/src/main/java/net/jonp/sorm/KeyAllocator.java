@@ -0,0 +1,211 @@
+package net.jonp.sorm;
+
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out primary keys for new objects from blocks reserved in the
+ * database, shared by all {@link SormSession}s of a {@link SormContext}. Only
+ * one database call is needed per block, instead of one per object.
+ * <p>
+ * Nothing is allocated for a type until it is configured with
+ * {@link #configure(Class, int, Strategy)}. Generated <code>create</code>
+ * functions for types whose primary key uses the <code>Pre</code> generator
+ * use the allocator when their type is configured, and call the
+ * <code>pk</code> query themselves otherwise. The <code>pk</code> query
+ * reserves each block.
+ * <p>
+ * Keys left over in a block when the context is closed are never used.
+ */
+public class KeyAllocator
+{
+    /** How a value read from the database reserves a block of keys. */
+    public static enum Strategy
+    {
+        /**
+         * Each value is a block number: value <i>n</i> reserves the keys from
+         * <i>n</i> &times; block size up to (<i>n</i> + 1) &times; block size.
+         * Works with any sequence that counts up by one, but the keys overlap
+         * the values of the sequence, so a type using this should not also be
+         * created with keys taken straight from the sequence.
+         */
+        HiLo,
+
+        /**
+         * Each value is the first key of a block, reserving the keys up to the
+         * value plus the block size. The sequence must count up by at least
+         * the block size.
+         */
+        Increment,
+
+        //
+        ;
+    }
+
+    /** Reserves a new block of keys in the database. */
+    public static interface BlockSource
+    {
+        /**
+         * Reserve a new block.
+         *
+         * @return The value read from the database, to be interpreted by the
+         *         {@link Strategy} of the type.
+         * @throws SQLException If there was a problem accessing the database.
+         */
+        public long reserve()
+            throws SQLException;
+    }
+
+    private final ConcurrentMap<Class<?>, Region> _regions = new ConcurrentHashMap<Class<?>, Region>();
+
+    public KeyAllocator()
+    {
+        // Nothing to do
+    }
+
+    /**
+     * Start allocating keys for a type, or change how they are allocated.
+     * Changing the configuration of a type drops the keys already reserved
+     * for it.
+     *
+     * @param type The type of object.
+     * @param blockSize The number of keys in each block; must be at least 1.
+     * @param strategy How a value read from the database reserves a block.
+     */
+    public void configure(final Class<?> type, final int blockSize, final Strategy strategy)
+    {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be at least 1: " + blockSize);
+        }
+        else if (null == strategy) {
+            throw new IllegalArgumentException("strategy must not be null");
+        }
+
+        _regions.put(type, new Region(blockSize, strategy));
+    }
+
+    /**
+     * Stop allocating keys for a type, dropping the keys already reserved for
+     * it.
+     *
+     * @param type The type of object.
+     */
+    public void disable(final Class<?> type)
+    {
+        _regions.remove(type);
+    }
+
+    /**
+     * Test whether keys are allocated for a type.
+     *
+     * @param type The type of object.
+     * @return True if the type has been configured and not disabled since.
+     */
+    public boolean isEnabled(final Class<?> type)
+    {
+        return _regions.containsKey(type);
+    }
+
+    /**
+     * Get the next key for a new object, reserving a new block if the current
+     * one is used up. The database is not called while any lock is held, so
+     * concurrent callers that both run out may each reserve a block; neither
+     * block is wasted.
+     *
+     * @param type The type of object.
+     * @param source Reserves a new block when needed.
+     * @return The key.
+     * @throws SQLException If there was a problem reserving a block.
+     * @throws IllegalStateException If the type is not configured.
+     */
+    public long next(final Class<?> type, final BlockSource source)
+        throws SQLException
+    {
+        final Region region = _regions.get(type);
+        if (null == region) {
+            throw new IllegalStateException("Keys are not allocated for " + type.getName());
+        }
+
+        while (true) {
+            final Long key = region.next();
+            if (null != key) {
+                return key;
+            }
+
+            region.add(source.reserve());
+        }
+    }
+
+    /**
+     * Get the number of keys reserved for a type that have not been handed out
+     * yet.
+     *
+     * @param type The type of object.
+     * @return The number of remaining keys.
+     */
+    public long remaining(final Class<?> type)
+    {
+        final Region region = _regions.get(type);
+        if (null == region) {
+            return 0;
+        }
+
+        return region.remaining();
+    }
+
+    /** The reserved keys of a single type. */
+    private static class Region
+    {
+        private final int _blockSize;
+        private final Strategy _strategy;
+
+        // The next key to hand out, and the end (exclusive) of the current
+        // block
+        private long _next = 0;
+        private long _end = 0;
+
+        // First keys of blocks reserved while the current one was in use
+        private final Queue<Long> _spare = new LinkedList<Long>();
+
+        Region(final int blockSize, final Strategy strategy)
+        {
+            _blockSize = blockSize;
+            _strategy = strategy;
+        }
+
+        /** Get the next key, or <code>null</code> if none are reserved. */
+        synchronized Long next()
+        {
+            if (_next == _end) {
+                final Long start = _spare.poll();
+                if (null == start) {
+                    return null;
+                }
+
+                _next = start;
+                _end = start + _blockSize;
+            }
+
+            return _next++;
+        }
+
+        /** Add a block from a value read from the database. */
+        synchronized void add(final long value)
+        {
+            if (Strategy.HiLo == _strategy) {
+                _spare.add(value * _blockSize);
+            }
+            else {
+                _spare.add(value);
+            }
+        }
+
+        synchronized long remaining()
+        {
+            return (_end - _next) + (long)_spare.size() * _blockSize;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package net.jonp.sorm;
+
+import java.sql.SQLException;
+
+/**
+ * A unit of work run by {@link SormContext#withSession(CacheMode, SessionTask)}
+ * with a session of its own, which is open only while the task runs.
+ * 
+ * @param <T> The type of result.
+ */
+public interface SessionTask<T>
+{
+    /**
+     * Do the work. Do not close the session or keep it after returning; it is
+     * closed (and its connection given back) as soon as this returns.
+     * 
+     * @param session The session to use.
+     * @return The result, handed back to the caller of
+     *         {@link SormContext#withSession(CacheMode, SessionTask)}.
+     * @throws SQLException If there was a problem accessing the database.
+     */
+    public T run(SormSession session)
+        throws SQLException;
+}
@@ -0,0 +1,442 @@
+package net.jonp.sorm;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A second-level cache shared by all {@link SormSession}s of a
+ * {@link SormContext}. A session looks here when an object is not in its own
+ * cache, before going to the database.
+ * <p>
+ * Nothing is cached for a type until it is configured with
+ * {@link #configure(Class, int, Eviction, long)}, which sets how many objects
+ * of the type to keep, which to evict when full, and how long they stay fresh.
+ * Generated <code>update</code> and <code>delete</code> functions evict the
+ * objects they write, from any session. Sessions only add objects once they
+ * are committed, and no session may add an object while a transaction that
+ * wrote it is still in progress, or one it loaded before it was last evicted
+ * by a write ({@link #stamp()}).
+ * <p>
+ * {@link SormObject}s are copied when they are added and again when they are
+ * handed out, so no two sessions (or threads) share an instance, and changes
+ * to an object are only seen by other sessions once it is written. Only the
+ * row is copied, so links are left unloaded, as they are after a read. A
+ * session keeps the copy it was given in its own cache, so it may go on
+ * seeing that copy after another session writes the object.
+ */
+public class SharedCache
+{
+    /** Which object to evict when the cache for a type is full. */
+    public static enum Eviction
+    {
+        /** Evict the object that has gone unused the longest. */
+        LeastRecentlyUsed,
+
+        /**
+         * Evict the object that has been used the least. Finding it takes time
+         * proportional to the size of the cache for the type.
+         */
+        LeastFrequentlyUsed,
+
+        //
+        ;
+    }
+
+    // Each region remembers the last evictions of this many keys for every
+    // object it may hold
+    private static final int INVALIDATIONS_PER_ENTRY = 4;
+
+    private final ConcurrentMap<Class<?>, Region> _regions = new ConcurrentHashMap<Class<?>, Region>();
+
+    // Ticks once for every eviction by a write
+    private final AtomicLong _clock = new AtomicLong();
+
+    public SharedCache()
+    {
+        // Nothing to do
+    }
+
+    /**
+     * Start caching a type, or change how it is cached. Changing the
+     * configuration of a type drops everything already cached for it.
+     *
+     * @param type The type of object to cache.
+     * @param maxSize The maximum number of objects of this type to keep; must
+     *            be at least 1.
+     * @param eviction Which object to evict when there are too many.
+     * @param ttl The number of milliseconds an object stays in the cache after
+     *            it is added, or 0 to keep it until it is evicted.
+     */
+    public void configure(final Class<?> type, final int maxSize, final Eviction eviction, final long ttl)
+    {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum cache size must be at least 1: " + maxSize);
+        }
+        else if (null == eviction) {
+            throw new IllegalArgumentException("eviction must not be null");
+        }
+
+        _regions.put(type, new Region(maxSize, eviction, ttl, _clock.get()));
+    }
+
+    /**
+     * Stop caching a type, dropping everything cached for it.
+     *
+     * @param type The type of object.
+     */
+    public void disable(final Class<?> type)
+    {
+        _regions.remove(type);
+    }
+
+    /**
+     * Test whether a type is cached.
+     *
+     * @param type The type of object.
+     * @return True if the type has been configured and not disabled since.
+     */
+    public boolean isEnabled(final Class<?> type)
+    {
+        return _regions.containsKey(type);
+    }
+
+    /**
+     * Get a copy of a cached object.
+     *
+     * @param type The type of object.
+     * @param key The key of the object.
+     * @return The copy, or <code>null</code> if the object is not cached, has
+     *         expired, is being written, or its type is not cached at all.
+     */
+    public Object get(final Class<?> type, final Object key)
+    {
+        final Region region = _regions.get(type);
+        if (null == region || null == key) {
+            return null;
+        }
+
+        // Cached copies are never changed, so they need no lock to be copied
+        return copy(region.get(key));
+    }
+
+    /**
+     * Get the time on the clock of this cache, which ticks whenever a write
+     * evicts an object. Take it before loading an object from the database,
+     * and pass it to {@link #put(Class, Object, Object, long)} with the object.
+     *
+     * @return The time.
+     */
+    public long stamp()
+    {
+        return _clock.get();
+    }
+
+    /**
+     * Add a copy of an object to the cache, if its type is cached and the
+     * object is not being written.
+     *
+     * @param type The type of object.
+     * @param key The key of the object. If <code>null</code>, nothing is
+     *            cached.
+     * @param value The object. If <code>null</code>, nothing is cached.
+     */
+    public void put(final Class<?> type, final Object key, final Object value)
+    {
+        put(type, key, value, Long.MAX_VALUE);
+    }
+
+    /**
+     * Add a copy of an object that was loaded from the database to the cache,
+     * if its type is cached, the object is not being written, and it has not
+     * been evicted by a write since the load began. An object loaded before a
+     * write may be older than the row.
+     *
+     * @param type The type of object.
+     * @param key The key of the object. If <code>null</code>, nothing is
+     *            cached.
+     * @param value The object. If <code>null</code>, nothing is cached.
+     * @param stamp The time from {@link #stamp()} before the object was
+     *            loaded.
+     */
+    public void put(final Class<?> type, final Object key, final Object value, final long stamp)
+    {
+        final Region region = _regions.get(type);
+        if (null == region || null == key || null == value) {
+            return;
+        }
+
+        region.put(key, copy(value), stamp);
+    }
+
+    /**
+     * Evict an object that is being written in a transaction, and keep it out
+     * of the cache until {@link #finishWrite(Class, Object)}, so that no
+     * session caches a copy read before the transaction is committed.
+     *
+     * @param type The type of object.
+     * @param key The key of the object.
+     */
+    public void startWrite(final Class<?> type, final Object key)
+    {
+        final Region region = _regions.get(type);
+        if (null == region || null == key) {
+            return;
+        }
+
+        region.startWrite(key, _clock.incrementAndGet());
+    }
+
+    /**
+     * Finish a write started with {@link #startWrite(Class, Object)}, once its
+     * transaction is committed or rolled back, evicting the object again.
+     *
+     * @param type The type of object.
+     * @param key The key of the object.
+     */
+    public void finishWrite(final Class<?> type, final Object key)
+    {
+        final Region region = _regions.get(type);
+        if (null == region || null == key) {
+            return;
+        }
+
+        region.finishWrite(key, _clock.incrementAndGet());
+    }
+
+    /**
+     * Evict an object from the cache.
+     *
+     * @param type The type of object.
+     * @param key The key of the object.
+     */
+    public void remove(final Class<?> type, final Object key)
+    {
+        final Region region = _regions.get(type);
+        if (null == region || null == key) {
+            return;
+        }
+
+        region.remove(key, _clock.incrementAndGet());
+    }
+
+    /**
+     * Evict every object of a type, leaving the type configured.
+     *
+     * @param type The type of object.
+     */
+    public void clear(final Class<?> type)
+    {
+        final Region region = _regions.get(type);
+        if (null != region) {
+            region.clear(_clock.incrementAndGet());
+        }
+    }
+
+    /** Evict every object of every type, leaving the types configured. */
+    public void clear()
+    {
+        final long now = _clock.incrementAndGet();
+        for (final Region region : _regions.values()) {
+            region.clear(now);
+        }
+    }
+
+    /**
+     * Get the number of objects of a type in the cache, including any that
+     * have expired but not yet been evicted.
+     *
+     * @param type The type of object.
+     * @return The number of cached objects.
+     */
+    public int size(final Class<?> type)
+    {
+        final Region region = _regions.get(type);
+        if (null == region) {
+            return 0;
+        }
+
+        return region.size();
+    }
+
+    /**
+     * Copy an object if it is a {@link SormObject}.
+     *
+     * @param value The object, or <code>null</code>.
+     * @return The copy, or <code>value</code> if it cannot be copied.
+     */
+    private static Object copy(final Object value)
+    {
+        if (value instanceof SormObject) {
+            return ((SormObject)value).sormCopy();
+        }
+
+        return value;
+    }
+
+    /** The cached objects of a single type. */
+    private static class Region
+    {
+        private final int _maxSize;
+        private final Eviction _eviction;
+        private final long _ttl;
+
+        // In access order, so the eldest entry is the least recently used
+        private final LinkedHashMap<Object, Entry> _entries;
+
+        // The number of transactions writing each key
+        private final Map<Object, Integer> _writing = new HashMap<Object, Integer>();
+
+        // When each key was last evicted by a write, oldest first; once one is
+        // forgotten, the floor rises to its time, and nothing loaded before
+        // the floor may be added
+        private final LinkedHashMap<Object, Long> _invalidated = new LinkedHashMap<Object, Long>();
+        private long _floor;
+
+        Region(final int maxSize, final Eviction eviction, final long ttl, final long floor)
+        {
+            _maxSize = maxSize;
+            _eviction = eviction;
+            _ttl = ttl;
+            _entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+            _floor = floor;
+        }
+
+        synchronized Object get(final Object key)
+        {
+            if (_writing.containsKey(key)) {
+                return null;
+            }
+
+            final Entry entry = _entries.get(key);
+            if (null == entry) {
+                return null;
+            }
+            else if (entry.isExpired()) {
+                _entries.remove(key);
+                return null;
+            }
+
+            entry.hits++;
+            return entry.value;
+        }
+
+        synchronized void put(final Object key, final Object value, final long stamp)
+        {
+            if (_writing.containsKey(key) || stamp < _floor) {
+                return;
+            }
+
+            final Long invalidated = _invalidated.get(key);
+            if (null != invalidated && invalidated > stamp) {
+                return;
+            }
+
+            if (null == _entries.put(key, new Entry(value, _ttl)) && _entries.size() > _maxSize) {
+                evict(key);
+            }
+        }
+
+        synchronized void startWrite(final Object key, final long now)
+        {
+            final Integer writers = _writing.get(key);
+            _writing.put(key, (null == writers ? 1 : writers + 1));
+            remove(key, now);
+        }
+
+        synchronized void finishWrite(final Object key, final long now)
+        {
+            final Integer writers = _writing.get(key);
+            if (null == writers || 1 == writers) {
+                _writing.remove(key);
+            }
+            else {
+                _writing.put(key, writers - 1);
+            }
+
+            remove(key, now);
+        }
+
+        synchronized void remove(final Object key, final long now)
+        {
+            _entries.remove(key);
+
+            // Moved to the end, as the newest
+            final Long previous = _invalidated.remove(key);
+            _invalidated.put(key, (null == previous ? now : Math.max(previous, now)));
+            if (_invalidated.size() > _maxSize * INVALIDATIONS_PER_ENTRY) {
+                final Iterator<Long> it = _invalidated.values().iterator();
+                _floor = Math.max(_floor, it.next());
+                it.remove();
+            }
+        }
+
+        synchronized void clear(final long now)
+        {
+            _entries.clear();
+            _invalidated.clear();
+            _floor = Math.max(_floor, now);
+        }
+
+        synchronized int size()
+        {
+            return _entries.size();
+        }
+
+        /**
+         * Evict one entry. Call while synchronized.
+         *
+         * @param added The key that was just added, which is never evicted.
+         */
+        private void evict(final Object added)
+        {
+            final Iterator<Map.Entry<Object, Entry>> it = _entries.entrySet().iterator();
+            if (Eviction.LeastRecentlyUsed == _eviction) {
+                it.next();
+                it.remove();
+                return;
+            }
+
+            // Prefer anything that has expired, otherwise the least used
+            Map.Entry<Object, Entry> victim = null;
+            while (it.hasNext()) {
+                final Map.Entry<Object, Entry> candidate = it.next();
+                if (candidate.getKey().equals(added)) {
+                    continue;
+                }
+                else if (candidate.getValue().isExpired()) {
+                    victim = candidate;
+                    break;
+                }
+                else if (null == victim || candidate.getValue().hits < victim.getValue().hits) {
+                    victim = candidate;
+                }
+            }
+
+            _entries.remove(victim.getKey());
+        }
+    }
+
+    /** A cached object. */
+    private static class Entry
+    {
+        final Object value;
+        final long expires;
+        long hits = 0;
+
+        Entry(final Object _value, final long ttl)
+        {
+            value = _value;
+            expires = (ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE);
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+}
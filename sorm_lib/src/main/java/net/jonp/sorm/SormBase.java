@@ -1,5 +1,6 @@
 package net.jonp.sorm;
 
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Collection;
 
@@ -24,6 +25,48 @@ public abstract class SormBase<K, T>
         return _session;
     }
 
+    /**
+     * Find the positions of a list of columns in a result set, so that its
+     * rows can be read by position instead of by label. Some drivers close a
+     * result set that has no rows, so call this once the first row is read.
+     * 
+     * @param rs The result set, positioned on a row.
+     * @param labels The labels of the columns.
+     * @param more The labels of more columns, whose positions follow those of
+     *            <code>labels</code>.
+     * @return The position of each column, in the order of the labels.
+     * @throws SQLException If a column is not in the result set.
+     */
+    protected static int[] findColumns(final ResultSet rs, final String[] labels, final String... more)
+        throws SQLException
+    {
+        final int[] columns = new int[labels.length + more.length];
+        for (int i = 0; i < labels.length; i++) {
+            columns[i] = rs.findColumn(labels[i]);
+        }
+
+        for (int i = 0; i < more.length; i++) {
+            columns[labels.length + i] = rs.findColumn(more[i]);
+        }
+
+        return columns;
+    }
+
+    /**
+     * Get a value just read from a result set by a getter that returns a
+     * primitive, or <code>null</code> if the column was SQL <code>NULL</code>.
+     * 
+     * @param value The value returned by the getter.
+     * @param rs The result set that was read.
+     * @return <code>value</code>, or <code>null</code>.
+     * @throws SQLException If there was a problem accessing the result set.
+     */
+    protected static <V> V orNull(final V value, final ResultSet rs)
+        throws SQLException
+    {
+        return (rs.wasNull() ? null : value);
+    }
+
     public void create(final T... objs)
         throws SQLException
     {
@@ -83,6 +126,24 @@ public abstract class SormBase<K, T>
         throw new UnsupportedOperationException("Unimplemented Sorm method: update");
     }
 
+    public void upsert(final T... objs)
+        throws SQLException
+    {
+        throw new UnsupportedOperationException("Unimplemented Sorm method: upsert");
+    }
+
+    public void upsert(final Collection<T> objs)
+        throws SQLException
+    {
+        throw new UnsupportedOperationException("Unimplemented Sorm method: upsert");
+    }
+
+    public void upsert(final T obj)
+        throws SQLException
+    {
+        throw new UnsupportedOperationException("Unimplemented Sorm method: upsert");
+    }
+
     public void delete(final T... objs)
         throws SQLException
     {
@@ -1,33 +1,62 @@
 package net.jonp.sorm;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.sql.DataSource;
 
 import org.apache.log4j.Logger;
 
 /**
  * Provides {@link SormSession}s.
+ * <p>
+ * A session may be kept per thread ({@link #getSession(CacheMode)}), scoped to
+ * a task ({@link #withSession(CacheMode, SessionTask)}), or managed entirely by
+ * the caller ({@link #getTransientSession(CacheMode)}). Per-thread sessions
+ * hold a connection for as long as their thread lives, so code that runs many
+ * short-lived threads (such as one per request) should scope its sessions to
+ * tasks instead, holding connections only while each task runs. Tasks may
+ * also be run in the background with {@link #submit(CacheMode, SessionTask)}.
  */
 public class SormContext
 {
     private static final Logger LOG = Logger.getLogger(SormContext.class);
 
     private final Dialect _dialect;
-    private final String _server;
-    private final String _user;
-    private final String _passwd;
+    private final ConnectionProvider _provider;
+    private final SharedCache _sharedCache = new SharedCache();
+    private final KeyAllocator _keyAllocator = new KeyAllocator();
+
+    private int _batchSize = 100;
+    private int _statementCacheSize = 64;
+    private int _fetchSize = 100;
+    private boolean _transactionalWrites = false;
+    private IdentityCache.Strength _cacheStrength = IdentityCache.Strength.Weak;
 
-    private boolean _closed = false;
+    private int _maxAsyncTasks = 4;
+    private final AsyncPermits _asyncPermits = new AsyncPermits(_maxAsyncTasks);
+    private ExecutorService _executor = null;
+    private boolean _ownExecutor = false;
 
-    private final Map<Thread, SormSession> _sessions = new HashMap<Thread, SormSession>();
+    private volatile boolean _closed = false;
+
+    // Open per-thread and task-scoped sessions, closed with the context
+    private final Set<SormSession> _sessions = Collections.newSetFromMap(new ConcurrentHashMap<SormSession, Boolean>());
     private final ThreadLocal<SormSession> _session = new ThreadLocal<SormSession>();
 
     /**
-     * Construct a new {@link SormContext}.
+     * Construct a new {@link SormContext} that opens its own connections
+     * through a {@link ConnectionPool}.
      * 
      * @param dialect The dialect to use.
      * @param server The name of the server to connect to. If the server
@@ -45,13 +74,39 @@ public class SormContext
         throws ClassNotFoundException
     {
         _dialect = dialect;
-        _server = server;
-        _user = user;
-        _passwd = passwd;
+        _provider = new ConnectionPool(dialect.getProtocol() + server, user, passwd);
 
         Class.forName(_dialect.getDriver());
     }
 
+    /**
+     * Construct a new {@link SormContext} that gets its connections from a
+     * {@link DataSource}. The driver for the dialect is not loaded; that is up
+     * to the {@link DataSource}.
+     * 
+     * @param dialect The dialect to use.
+     * @param dataSource The source of connections.
+     */
+    public SormContext(final Dialect dialect, final DataSource dataSource)
+    {
+        this(dialect, new DataSourceConnectionProvider(dataSource));
+    }
+
+    /**
+     * Construct a new {@link SormContext} that gets its connections from a
+     * {@link ConnectionProvider}. The driver for the dialect is not loaded;
+     * that is up to the provider.
+     * 
+     * @param dialect The dialect to use.
+     * @param provider The source of connections. It will be closed when this
+     *            context is closed.
+     */
+    public SormContext(final Dialect dialect, final ConnectionProvider provider)
+    {
+        _dialect = dialect;
+        _provider = provider;
+    }
+
     /**
      * Get the dialect of this context.
      * 
@@ -62,6 +117,268 @@ public class SormContext
         return _dialect;
     }
 
+    /**
+     * Get the provider of connections to the sessions of this context.
+     * 
+     * @return The connection provider.
+     */
+    public ConnectionProvider getConnectionProvider()
+    {
+        return _provider;
+    }
+
+    /**
+     * Get the second-level cache shared by the sessions of this context.
+     * Nothing is cached in it until a type is configured with
+     * {@link SharedCache#configure(Class, int, SharedCache.Eviction, long)}.
+     * 
+     * @return The shared cache.
+     */
+    public SharedCache getSharedCache()
+    {
+        return _sharedCache;
+    }
+
+    /**
+     * Get the allocator of primary keys shared by the sessions of this
+     * context. No keys are allocated by it until a type is configured with
+     * {@link KeyAllocator#configure(Class, int, KeyAllocator.Strategy)}.
+     * 
+     * @return The key allocator.
+     */
+    public KeyAllocator getKeyAllocator()
+    {
+        return _keyAllocator;
+    }
+
+    /**
+     * Get the number of rows that generated collection writes send to the
+     * database in each JDBC batch (and the number of keys each generated bulk
+     * read asks for at once), for new sessions.
+     */
+    public synchronized int getBatchSize()
+    {
+        return _batchSize;
+    }
+
+    /**
+     * Set the number of rows that generated collection writes send to the
+     * database in each JDBC batch (and the number of keys each generated bulk
+     * read asks for at once), for sessions created after this call. Each
+     * session may override this with {@link SormSession#setBatchSize(int)}.
+     * 
+     * @param batchSize The batch size; must be at least 1. Use 1 to send every
+     *            row on its own.
+     */
+    public synchronized void setBatchSize(final int batchSize)
+    {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+
+        _batchSize = batchSize;
+    }
+
+    /** Get the number of rows new sessions ask the driver to fetch at a time when streaming. */
+    public synchronized int getFetchSize()
+    {
+        return _fetchSize;
+    }
+
+    /**
+     * Set the number of rows sessions created after this call ask the driver
+     * to fetch at a time when streaming query results. Each session may
+     * override this with {@link SormSession#setFetchSize(int)}.
+     * 
+     * @param fetchSize The fetch size, or 0 to use the driver's default.
+     */
+    public synchronized void setFetchSize(final int fetchSize)
+    {
+        if (fetchSize < 0) {
+            throw new IllegalArgumentException("Fetch size must not be negative: " + fetchSize);
+        }
+
+        _fetchSize = fetchSize;
+    }
+
+    /**
+     * Test whether generated collection writes of new sessions wrap
+     * themselves in a single transaction.
+     */
+    public synchronized boolean isTransactionalWrites()
+    {
+        return _transactionalWrites;
+    }
+
+    /**
+     * Set whether generated collection writes of sessions created after this
+     * call wrap themselves in a single transaction when none is in progress.
+     * Each session may override this with
+     * {@link SormSession#setTransactionalWrites(boolean)}.
+     * 
+     * @param transactionalWrites True to wrap collection writes.
+     */
+    public synchronized void setTransactionalWrites(final boolean transactionalWrites)
+    {
+        _transactionalWrites = transactionalWrites;
+    }
+
+    /** Get the number of idle prepared statements each new session keeps. */
+    public synchronized int getStatementCacheSize()
+    {
+        return _statementCacheSize;
+    }
+
+    /**
+     * Set the number of idle prepared statements each session created after
+     * this call keeps for reuse. Keep this below any per-connection limit on
+     * open statements in your database.
+     * 
+     * @param statementCacheSize The number of statements; 0 disables the
+     *            statement cache.
+     */
+    public synchronized void setStatementCacheSize(final int statementCacheSize)
+    {
+        if (statementCacheSize < 0) {
+            throw new IllegalArgumentException("Statement cache size must not be negative: " + statementCacheSize);
+        }
+
+        _statementCacheSize = statementCacheSize;
+    }
+
+    /** Get how strongly the caches of new sessions hold their objects. */
+    public synchronized IdentityCache.Strength getCacheStrength()
+    {
+        return _cacheStrength;
+    }
+
+    /**
+     * Set how strongly the caches of sessions created after this call hold
+     * their objects. The default, {@link IdentityCache.Strength#Weak}, only
+     * keeps objects that are still in use elsewhere;
+     * {@link IdentityCache.Strength#Soft} keeps them until memory runs low.
+     * 
+     * @param cacheStrength The strength of cache references.
+     */
+    public synchronized void setCacheStrength(final IdentityCache.Strength cacheStrength)
+    {
+        if (null == cacheStrength) {
+            throw new IllegalArgumentException("Cache strength must not be null");
+        }
+
+        _cacheStrength = cacheStrength;
+    }
+
+    /**
+     * Get the maximum number of tasks from {@link #submit(CacheMode, SessionTask)}
+     * that may hold sessions at once.
+     */
+    public synchronized int getMaxAsyncTasks()
+    {
+        return _maxAsyncTasks;
+    }
+
+    /**
+     * Set the maximum number of tasks from {@link #submit(CacheMode, SessionTask)}
+     * that may hold sessions at once; any more wait for one to finish. Keep
+     * this below the size of the connection pool to leave connections for
+     * other code. Tasks already running count against the new maximum, and
+     * the pool this context created for {@link #getExecutor()} is resized to
+     * match.
+     * 
+     * @param maxAsyncTasks The maximum number of tasks; must be at least 1.
+     */
+    public synchronized void setMaxAsyncTasks(final int maxAsyncTasks)
+    {
+        if (maxAsyncTasks < 1) {
+            throw new IllegalArgumentException("Maximum async tasks must be at least 1: " + maxAsyncTasks);
+        }
+
+        _asyncPermits.resize(maxAsyncTasks - _maxAsyncTasks);
+        if (_ownExecutor) {
+            // The core size may never exceed the maximum size
+            final ThreadPoolExecutor pool = (ThreadPoolExecutor)_executor;
+            if (maxAsyncTasks > _maxAsyncTasks) {
+                pool.setMaximumPoolSize(maxAsyncTasks);
+                pool.setCorePoolSize(maxAsyncTasks);
+            }
+            else {
+                pool.setCorePoolSize(maxAsyncTasks);
+                pool.setMaximumPoolSize(maxAsyncTasks);
+            }
+        }
+
+        _maxAsyncTasks = maxAsyncTasks;
+    }
+
+    /**
+     * Get the executor that runs tasks from
+     * {@link #submit(CacheMode, SessionTask)}. Unless one has been set, a pool
+     * of {@link #getMaxAsyncTasks()} daemon threads is created the first time
+     * this is called, and shut down when this context is closed.
+     * 
+     * @return The executor.
+     */
+    public synchronized ExecutorService getExecutor()
+    {
+        if (null == _executor) {
+            _executor = Executors.newFixedThreadPool(_maxAsyncTasks, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread thread = new Thread(r, "sorm-async");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            _ownExecutor = true;
+        }
+
+        return _executor;
+    }
+
+    /**
+     * Set the executor that runs tasks from
+     * {@link #submit(CacheMode, SessionTask)}. It is not shut down when this
+     * context is closed. If this context created its own executor, that one is
+     * shut down once its tasks finish.
+     * 
+     * @param executor The executor.
+     */
+    public synchronized void setExecutor(final ExecutorService executor)
+    {
+        if (null == executor) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+
+        if (_ownExecutor) {
+            _executor.shutdown();
+        }
+
+        _executor = executor;
+        _ownExecutor = false;
+    }
+
+    /**
+     * Get the pool that provides connections to the sessions of this context.
+     * Use this to adjust the pool size, idle timeout, validation, and leak
+     * detection.
+     * 
+     * @return The connection pool, or <code>null</code> if this context gets
+     *         its connections from some other kind of
+     *         {@link ConnectionProvider}.
+     */
+    public ConnectionPool getConnectionPool()
+    {
+        if (_provider instanceof ConnectionPool) {
+            return (ConnectionPool)_provider;
+        }
+        else {
+            return null;
+        }
+    }
+
     /**
      * If there is a current {@link SormSession} for this thread, get it. If
      * not, create a new {@link SormSession} with {@link CacheMode#Immediate}.
@@ -94,7 +411,12 @@ public class SormContext
         }
 
         SormSession session = _session.get();
-        if (null != session && null != cacheMode && session.getCacheMode() != cacheMode) {
+        if (null != session && session.isClosed()) {
+            // Closed by another thread
+            _session.remove();
+            session = null;
+        }
+        else if (null != session && null != cacheMode && session.getCacheMode() != cacheMode) {
             session.close();
             session = null;
         }
@@ -104,9 +426,7 @@ public class SormContext
             session = makeSession(cacheMode);
 
             _session.set(session);
-            synchronized (_sessions) {
-                _sessions.put(Thread.currentThread(), session);
-            }
+            _sessions.add(session);
         }
 
         return session;
@@ -162,54 +482,158 @@ public class SormContext
     }
 
     /**
-     * Closes all pooled database connections. Threaded connections are not
-     * touched, as we cannot access them.
+     * Wrapper around {@link #withSession(CacheMode, SessionTask)} with
+     * {@link CacheMode#Immediate}.
      */
-    public void close()
+    public <T> T withSession(final SessionTask<T> task)
+        throws SQLException
+    {
+        return withSession(CacheMode.Immediate, task);
+    }
+
+    /**
+     * Run a task with a new session of its own, which borrows a connection
+     * when the task starts and gives it back as soon as the task finishes,
+     * whatever thread runs it. If the context is closed while the task is
+     * running, the session is closed under it.
+     * 
+     * @param cacheMode The cache mode for the session.
+     * @param task The task.
+     * @return The result of the task.
+     * @throws SQLException If there was a problem creating a new connection, or
+     *             the task threw one.
+     */
+    public <T> T withSession(final CacheMode cacheMode, final SessionTask<T> task)
+        throws SQLException
+    {
+        if (_closed) {
+            throw new IllegalStateException(getClass().getSimpleName() + " is closed");
+        }
+
+        final SormSession session = makeSession(cacheMode);
+        _sessions.add(session);
+        try {
+            return task.run(session);
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Wrapper around {@link #submit(CacheMode, SessionTask)} with
+     * {@link CacheMode#Immediate}.
+     */
+    public <T> Future<T> submit(final SessionTask<T> task)
+    {
+        return submit(CacheMode.Immediate, task);
+    }
+
+    /**
+     * Run a task in the background with {@link #withSession(CacheMode, SessionTask)},
+     * on the executor from {@link #getExecutor()}. No more than
+     * {@link #getMaxAsyncTasks()} submitted tasks hold sessions at once.
+     * <p>
+     * The session is closed when the task finishes, so objects it returns
+     * cannot load lazy links afterward.
+     * 
+     * @param cacheMode The cache mode for the session.
+     * @param task The task.
+     * @return The pending result of the task. If the task fails,
+     *         {@link Future#get()} throws an
+     *         {@link java.util.concurrent.ExecutionException} wrapping the
+     *         cause.
+     */
+    public <T> Future<T> submit(final CacheMode cacheMode, final SessionTask<T> task)
     {
+        final ExecutorService executor;
         synchronized (this) {
-            if (!_closed) {
-                _closed = true;
-                synchronized (_sessions) {
-                    LOG
-                        .info("Closing " + _sessions.size() + " per-thread sessions due to " + getClass().getSimpleName() +
-                              " close");
-                    final Iterator<SormSession> itSessions = _sessions.values().iterator();
-                    while (itSessions.hasNext()) {
-                        final SormSession session = itSessions.next();
-                        itSessions.remove();
-
-                        try {
-                            session.close();
-                        }
-                        catch (final SQLException sqle) {
-                            // Ignore it
-                        }
-                    }
+            if (_closed) {
+                throw new IllegalStateException(getClass().getSimpleName() + " is closed");
+            }
+
+            executor = getExecutor();
+        }
+
+        return executor.submit(new Callable<T>()
+        {
+            @Override
+            public T call()
+                throws Exception
+            {
+                _asyncPermits.acquire();
+                try {
+                    return withSession(cacheMode, task);
                 }
+                finally {
+                    _asyncPermits.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes all per-thread and task-scoped sessions, and the
+     * {@link ConnectionProvider}. Transient sessions that are still open give
+     * back their connections when they are closed. Tasks submitted but not yet
+     * started will fail.
+     */
+    public void close()
+    {
+        synchronized (this) {
+            if (_closed) {
+                return;
+            }
+
+            _closed = true;
+            if (_ownExecutor) {
+                _executor.shutdown();
+            }
+        }
+
+        LOG.info("Closing " + _sessions.size() + " sessions due to " + getClass().getSimpleName() + " close");
+        for (final SormSession session : _sessions) {
+            try {
+                // This calls killSession(), which removes it from the set
+                session.close();
+            }
+            catch (final SQLException sqle) {
+                // Ignore it
             }
         }
+
+        _provider.close();
     }
 
     /**
-     * Called by {@link SormSession#close()} to clear the thread-specific
-     * session when it is closed.
+     * Called by {@link SormSession#close()} to forget about a session when it
+     * is closed.
      * 
      * @param session The {@link SormSession} being closed.
      */
     void killSession(final SormSession session)
     {
+        _sessions.remove(session);
         if (_session.get() == session) {
             _session.remove();
-
-            synchronized (_sessions) {
-                _sessions.remove(Thread.currentThread());
-            }
         }
     }
 
     /**
-     * Construct a new connection to the database and return a
+     * Called by {@link SormSession#close()} to give its connection back to the
+     * {@link ConnectionProvider}.
+     * 
+     * @param connection The connection of the {@link SormSession} being closed.
+     * @throws SQLException If there was a problem releasing the connection.
+     */
+    void releaseConnection(final Connection connection)
+        throws SQLException
+    {
+        _provider.release(connection);
+    }
+
+    /**
+     * Borrow a connection to the database from the provider and return a
      * {@link SormSession} wrapped around it.
      * 
      * @param cacheMode The cache mode.
@@ -219,14 +643,36 @@ public class SormContext
     private SormSession makeSession(final CacheMode cacheMode)
         throws SQLException
     {
-        final Connection connection;
-        if (null == _user || null == _passwd) {
-            connection = DriverManager.getConnection(getDialect().getProtocol() + _server);
-        }
-        else {
-            connection = DriverManager.getConnection(getDialect().getProtocol() + _server, _user, _passwd);
-        }
+        final Connection connection = _provider.borrow();
         final SormSession session = new SormSession(this, connection, cacheMode);
         return session;
     }
+
+    /** Permits for submitted tasks, which can be resized while tasks hold them. */
+    private static class AsyncPermits
+        extends Semaphore
+    {
+        private static final long serialVersionUID = 1L;
+
+        AsyncPermits(final int permits)
+        {
+            super(permits);
+        }
+
+        /**
+         * Add or remove permits. Removing more permits than are available
+         * leaves the count negative until running tasks give theirs back.
+         * 
+         * @param delta The number of permits to add, or remove if negative.
+         */
+        void resize(final int delta)
+        {
+            if (delta > 0) {
+                release(delta);
+            }
+            else if (delta < 0) {
+                reducePermits(-delta);
+            }
+        }
+    }
 }
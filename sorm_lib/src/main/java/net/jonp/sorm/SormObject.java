@@ -5,5 +5,13 @@ package net.jonp.sorm;
  */
 public interface SormObject
 {
-    // No actual content
+    /**
+     * Make a copy of this object, so that {@link SharedCache} never hands the
+     * same instance to two sessions. Only the row is copied: links are left
+     * unloaded, groups are rebuilt, and mutable values such as dates are
+     * cloned. Fields kept by a superclass are not copied.
+     * 
+     * @return The copy.
+     */
+    public SormObject sormCopy();
 }
@@ -0,0 +1,71 @@
+package net.jonp.sorm;
+
+/**
+ * An ordered pair of objects, such as the two sides of a many-to-many mapping.
+ * 
+ * @param <L> The type of the left-hand object.
+ * @param <R> The type of the right-hand object.
+ */
+public class SormPair<L, R>
+{
+    private final L _lhs;
+    private final R _rhs;
+
+    public SormPair(final L lhs, final R rhs)
+    {
+        _lhs = lhs;
+        _rhs = rhs;
+    }
+
+    /** Get the left-hand object. */
+    public L getLhs()
+    {
+        return _lhs;
+    }
+
+    /** Get the right-hand object. */
+    public R getRhs()
+    {
+        return _rhs;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("(%s, %s)", getLhs(), getRhs());
+    }
+
+    @Override
+    public boolean equals(final Object o)
+    {
+        if (null == o) {
+            return false;
+        }
+        else if (o instanceof SormPair<?, ?>) {
+            final SormPair<?, ?> pair = (SormPair<?, ?>)o;
+            return (equal(getLhs(), pair.getLhs()) && equal(getRhs(), pair.getRhs()));
+        }
+        else {
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (null == getLhs() ? 0 : getLhs().hashCode()) * 31 + (null == getRhs() ? 0 : getRhs().hashCode());
+    }
+
+    private static boolean equal(final Object a, final Object b)
+    {
+        if (a == b) {
+            return true;
+        }
+        else if (null == a || null == b) {
+            return false;
+        }
+        else {
+            return a.equals(b);
+        }
+    }
+}
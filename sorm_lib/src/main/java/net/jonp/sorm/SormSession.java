@@ -1,30 +1,69 @@
 package net.jonp.sorm;
 
-import java.lang.ref.WeakReference;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+
+import org.apache.log4j.Logger;
 
 /**
  * Wraps a database connection and useful metadata used by Sorm.
  */
 public class SormSession
 {
+    private static final Logger LOG = Logger.getLogger(SormSession.class);
+
     private final SormContext _context;
     private final Connection _connection;
 
-    // Used for Immediate CacheMode; map of object class onto a map of
-    // identifier onto object
-    private final Map<Class<? extends SormObject>, Map<Object, WeakReference<Object>>> _weakCache =
-        new HashMap<Class<? extends SormObject>, Map<Object, WeakReference<Object>>>();
+    // Used for Immediate and Delayed CacheModes
+    private final IdentityCache _cache;
+
+    private final StatementCache _statements;
 
-    // TODO: Two strong caches with definite ordering will be needed for Delayed
-    // CacheMode (one for in-use objects, and one for deleted objects)
+    // The number of statements borrowed and not yet released; and the time on
+    // the clock of the shared cache when the first of them was borrowed,
+    // which is before anything they load
+    private int _borrowed = 0;
+    private long _loadStamp;
+
+    // Used for Delayed CacheMode; the queue of writes waiting for a flush, in
+    // order, with cancelled writes left in place but skipped; the latest
+    // create/update/delete queued for each object (by identity); and the
+    // latest map queued for each pair of objects
+    private final LinkedList<DelayedWrite> _delayed = new LinkedList<DelayedWrite>();
+    private final Map<Object, DelayedWrite> _delayedObjects = new IdentityHashMap<Object, DelayedWrite>();
+    private final Map<DelayedMapping, DelayedWrite> _delayedMaps = new HashMap<DelayedMapping, DelayedWrite>();
+    private Thread _flushing = null;
 
     private final CacheMode _cacheMode;
 
+    private int _batchSize;
+    private int _fetchSize;
+    private boolean _transactionalWrites;
+
+    // Whether a transaction was started with begin(); the objects cached
+    // since then, which are added to the shared cache if it is committed and
+    // evicted if it is rolled back; the objects written since then, which
+    // are kept out of the shared cache until it ends; and, for each savepoint,
+    // how many objects had been cached when it was set; and the time on the
+    // clock of the shared cache when it started, before anything it loaded
+    private boolean _transaction = false;
+    private long _transactionStamp;
+    private final List<SormPair<Class<? extends SormObject>, Object>> _transactionCached =
+        new ArrayList<SormPair<Class<? extends SormObject>, Object>>();
+    private final List<SormPair<Class<? extends SormObject>, Object>> _transactionWritten =
+        new ArrayList<SormPair<Class<? extends SormObject>, Object>>();
+    private final Map<Savepoint, Integer> _savepoints = new IdentityHashMap<Savepoint, Integer>();
+
     private boolean _closed = false;
 
     protected SormSession(final SormContext context, final Connection connection, final CacheMode cacheMode)
@@ -32,11 +71,11 @@ public class SormSession
         _context = context;
         _connection = connection;
         _cacheMode = cacheMode;
-
-        // TODO: CacheMode.Delayed is not yet supported
-        if (CacheMode.Delayed == _cacheMode) {
-            throw new UnsupportedOperationException("Delayed CacheMode is not yet implemented.");
-        }
+        _batchSize = context.getBatchSize();
+        _fetchSize = context.getFetchSize();
+        _transactionalWrites = context.isTransactionalWrites();
+        _cache = new IdentityCache(context.getCacheStrength());
+        _statements = new StatementCache(connection, context.getStatementCacheSize());
     }
 
     /** Get the {@link SormContext} that spawned this {@link SormSession}. */
@@ -67,6 +106,393 @@ public class SormSession
         return _cacheMode;
     }
 
+    /**
+     * Get a {@link PreparedStatement} for some SQL on this session's
+     * connection, reusing an idle one if this session has prepared the same SQL
+     * before. Give it back with {@link #releaseStatement(PreparedStatement)}
+     * instead of closing it.
+     * 
+     * @param sql The SQL text.
+     * @return The statement, which belongs to the caller until it is released.
+     * @throws SQLException If there was a problem preparing the statement.
+     * @throws IllegalStateException If the {@link SormSession} is closed.
+     */
+    public PreparedStatement prepareStatement(final String sql)
+        throws SQLException
+    {
+        if (isClosed()) {
+            throw new IllegalStateException(getClass().getSimpleName() + " is closed.");
+        }
+
+        final PreparedStatement ps = _statements.borrow(sql);
+        borrowed();
+        return ps;
+    }
+
+    /**
+     * Get a {@link PreparedStatement} like {@link #prepareStatement(String)},
+     * which may return the keys generated by its inserts. Statements that
+     * return keys are cached apart from those that do not.
+     * 
+     * @param sql The SQL text.
+     * @param autoGeneratedKeys {@link java.sql.Statement#RETURN_GENERATED_KEYS}
+     *            or {@link java.sql.Statement#NO_GENERATED_KEYS}.
+     * @return The statement, which belongs to the caller until it is released.
+     * @throws SQLException If there was a problem preparing the statement.
+     * @throws IllegalStateException If the {@link SormSession} is closed.
+     */
+    public PreparedStatement prepareStatement(final String sql, final int autoGeneratedKeys)
+        throws SQLException
+    {
+        if (isClosed()) {
+            throw new IllegalStateException(getClass().getSimpleName() + " is closed.");
+        }
+
+        final PreparedStatement ps = _statements.borrow(sql, autoGeneratedKeys);
+        borrowed();
+        return ps;
+    }
+
+    /**
+     * Give back a statement from {@link #prepareStatement(String)}, so it may
+     * be reused. Close any {@link java.sql.ResultSet} from it first. Its
+     * parameters are cleared; if there are already too many idle statements,
+     * or this session is closed, it is closed instead.
+     * 
+     * @param ps The statement.
+     * @throws SQLException If there was a problem closing the statement.
+     */
+    public void releaseStatement(final PreparedStatement ps)
+        throws SQLException
+    {
+        if (_borrowed > 0) {
+            _borrowed--;
+        }
+
+        if (isClosed()) {
+            ps.close();
+        }
+        else {
+            _statements.release(ps);
+        }
+    }
+
+    /**
+     * Count a borrowed statement, taking the time on the clock of the shared
+     * cache if no other statement is out, so objects loaded while any
+     * statement is out are not shared if a write evicted them in the
+     * meantime.
+     */
+    private void borrowed()
+    {
+        if (0 == _borrowed++) {
+            _loadStamp = getContext().getSharedCache().stamp();
+        }
+    }
+
+    /**
+     * Get the number of rows that generated collection writes send to the
+     * database in each JDBC batch, which is also the number of keys that a
+     * generated bulk read asks for in each query. Defaults to
+     * {@link SormContext#getBatchSize()}.
+     */
+    public int getBatchSize()
+    {
+        return _batchSize;
+    }
+
+    /**
+     * Set the number of rows that generated collection writes send to the
+     * database in each JDBC batch, which is also the number of keys that a
+     * generated bulk read asks for in each query.
+     * 
+     * @param batchSize The batch size; must be at least 1. Use 1 to send every
+     *            row on its own.
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+
+        _batchSize = batchSize;
+    }
+
+    /**
+     * Get the number of rows that generated streaming queries ask the driver
+     * to fetch at a time. Defaults to {@link SormContext#getFetchSize()}.
+     */
+    public int getFetchSize()
+    {
+        return _fetchSize;
+    }
+
+    /**
+     * Set the number of rows that generated streaming queries ask the driver
+     * to fetch at a time. Some drivers (such as PostgreSQL's) only stream
+     * when auto-commit is off.
+     * 
+     * @param fetchSize The fetch size, or 0 to use the driver's default.
+     */
+    public void setFetchSize(final int fetchSize)
+    {
+        if (fetchSize < 0) {
+            throw new IllegalArgumentException("Fetch size must not be negative: " + fetchSize);
+        }
+
+        _fetchSize = fetchSize;
+    }
+
+    /**
+     * Test whether generated collection writes (create, update and delete of
+     * a collection of objects) wrap themselves in a single transaction when
+     * none is in progress. Defaults to
+     * {@link SormContext#isTransactionalWrites()}.
+     */
+    public boolean isTransactionalWrites()
+    {
+        return _transactionalWrites;
+    }
+
+    /**
+     * Set whether generated collection writes (create, update and delete of a
+     * collection of objects) wrap themselves in a single transaction with
+     * {@link #runInTransaction(SessionTask)} when none is in progress, so the
+     * whole collection is committed at once instead of row by row.
+     * 
+     * @param transactionalWrites True to wrap collection writes.
+     */
+    public void setTransactionalWrites(final boolean transactionalWrites)
+    {
+        _transactionalWrites = transactionalWrites;
+    }
+
+    /**
+     * Test whether a transaction is in progress, either from {@link #begin()}
+     * or because auto-commit was turned off on the connection.
+     * 
+     * @return True if statements are not committed as they run.
+     * @throws SQLException If there was a problem checking the connection.
+     */
+    public boolean isInTransaction()
+        throws SQLException
+    {
+        return !getConnection().getAutoCommit();
+    }
+
+    /**
+     * Start a transaction, by turning off auto-commit until {@link #commit()}
+     * or {@link #rollback()}.
+     * 
+     * @throws SQLException If there was a problem accessing the connection.
+     * @throws IllegalStateException If the {@link SormSession} is closed, or a
+     *             transaction is already in progress.
+     */
+    public synchronized void begin()
+        throws SQLException
+    {
+        if (isClosed()) {
+            throw new IllegalStateException(getClass().getSimpleName() + " is closed.");
+        }
+        else if (isInTransaction()) {
+            throw new IllegalStateException("A transaction is already in progress");
+        }
+
+        getConnection().setAutoCommit(false);
+        _transaction = true;
+        _transactionStamp = getContext().getSharedCache().stamp();
+    }
+
+    /**
+     * Commit the transaction in progress and go back to auto-commit. Objects
+     * this session cached during a transaction started with {@link #begin()}
+     * are added to the cache shared with other sessions.
+     * 
+     * @throws SQLException If there was a problem committing. The transaction
+     *             is still in progress, and should be rolled back.
+     * @throws IllegalStateException If no transaction is in progress.
+     */
+    public synchronized void commit()
+        throws SQLException
+    {
+        if (!isInTransaction()) {
+            throw new IllegalStateException("No transaction is in progress");
+        }
+
+        getConnection().commit();
+
+        final SharedCache shared = getContext().getSharedCache();
+        if (_transaction) {
+            finishWrites();
+            for (final SormPair<Class<? extends SormObject>, Object> cached : _transactionCached) {
+                shared.put(cached.getLhs(), cached.getRhs(), _cache.get(cached.getLhs(), cached.getRhs()), _transactionStamp);
+            }
+        }
+
+        endTransaction();
+    }
+
+    /**
+     * Roll back the transaction in progress and go back to auto-commit.
+     * Objects this session cached during a transaction started with
+     * {@link #begin()} are evicted from its cache, since they may not exist
+     * any more, and never reach the cache shared with other sessions; objects
+     * themselves are not changed back.
+     * 
+     * @throws SQLException If there was a problem rolling back.
+     * @throws IllegalStateException If no transaction is in progress.
+     */
+    public synchronized void rollback()
+        throws SQLException
+    {
+        if (!isInTransaction()) {
+            throw new IllegalStateException("No transaction is in progress");
+        }
+
+        try {
+            getConnection().rollback();
+        }
+        finally {
+            finishWrites();
+            for (final SormPair<Class<? extends SormObject>, Object> cached : _transactionCached) {
+                _cache.remove(cached.getLhs(), cached.getRhs());
+            }
+
+            endTransaction();
+        }
+    }
+
+    /**
+     * Mark a point in the transaction in progress that {@link #rollback(Savepoint)}
+     * can go back to.
+     * 
+     * @return The savepoint.
+     * @throws SQLException If there was a problem setting the savepoint, or
+     *             the driver does not support savepoints.
+     * @throws IllegalStateException If no transaction is in progress.
+     */
+    public synchronized Savepoint setSavepoint()
+        throws SQLException
+    {
+        if (!isInTransaction()) {
+            throw new IllegalStateException("No transaction is in progress");
+        }
+
+        final Savepoint savepoint = getConnection().setSavepoint();
+        _savepoints.put(savepoint, _transactionCached.size());
+        return savepoint;
+    }
+
+    /**
+     * Undo everything done in the transaction in progress since a savepoint,
+     * which stays valid. Objects this session cached since the savepoint are
+     * evicted from its cache, and will not reach the cache shared with other
+     * sessions when the transaction is committed; objects themselves are not
+     * changed back.
+     * 
+     * @param savepoint The savepoint, from {@link #setSavepoint()}.
+     * @throws SQLException If there was a problem rolling back.
+     */
+    public synchronized void rollback(final Savepoint savepoint)
+        throws SQLException
+    {
+        getConnection().rollback(savepoint);
+
+        final Integer mark = _savepoints.get(savepoint);
+        if (null == mark) {
+            return;
+        }
+
+        while (_transactionCached.size() > mark) {
+            final SormPair<Class<? extends SormObject>, Object> cached =
+                _transactionCached.remove(_transactionCached.size() - 1);
+            _cache.remove(cached.getLhs(), cached.getRhs());
+        }
+
+        // Savepoints set after this one are gone
+        final Iterator<Integer> it = _savepoints.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() > mark) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget a savepoint that is no longer needed.
+     * 
+     * @param savepoint The savepoint, from {@link #setSavepoint()}.
+     * @throws SQLException If there was a problem releasing the savepoint.
+     */
+    public synchronized void releaseSavepoint(final Savepoint savepoint)
+        throws SQLException
+    {
+        getConnection().releaseSavepoint(savepoint);
+        _savepoints.remove(savepoint);
+    }
+
+    /**
+     * Run a task in a transaction. If no transaction is in progress, one is
+     * started, committed when the task returns, and rolled back if it throws
+     * anything. If a transaction is already in progress, the task simply
+     * becomes part of it.
+     * 
+     * @param task The task, which is given this session.
+     * @return The result of the task.
+     * @throws SQLException If the task threw one, or there was a problem
+     *             committing or rolling back.
+     */
+    public <T> T runInTransaction(final SessionTask<T> task)
+        throws SQLException
+    {
+        if (isInTransaction()) {
+            return task.run(this);
+        }
+
+        begin();
+        boolean committed = false;
+        try {
+            final T result = task.run(this);
+            commit();
+            committed = true;
+            return result;
+        }
+        finally {
+            if (!committed) {
+                try {
+                    rollback();
+                }
+                catch (final SQLException sqle) {
+                    LOG.debug("Error rolling back failed transaction", sqle);
+                }
+            }
+        }
+    }
+
+    /** Go back to auto-commit after a transaction. */
+    private void endTransaction()
+        throws SQLException
+    {
+        _transaction = false;
+        _transactionCached.clear();
+        _savepoints.clear();
+        getConnection().setAutoCommit(true);
+    }
+
+    /**
+     * Let the cache shared with other sessions take the objects written in
+     * the transaction that is ending again.
+     */
+    private void finishWrites()
+    {
+        final SharedCache shared = getContext().getSharedCache();
+        for (final SormPair<Class<? extends SormObject>, Object> written : _transactionWritten) {
+            shared.finishWrite(written.getLhs(), written.getRhs());
+        }
+
+        _transactionWritten.clear();
+    }
+
     /** Test whether this {@link SormSession} is closed. */
     public boolean isClosed()
     {
@@ -76,20 +502,274 @@ public class SormSession
     /**
      * Close this {@link SormSession}. If it is already closed, does nothing. If
      * it is a per-thread session in the {@link SormContext}, it is disposed.
+     * Any delayed writes are flushed first. A transaction started with
+     * {@link #begin()} and still in progress is rolled back. The connection is
+     * returned to the {@link SormContext}'s pool rather than closed.
      */
     public void close()
         throws SQLException
     {
         if (!isClosed()) {
-            getContext().killSession(this);
-            getConnection().close();
-            _weakCache.clear();
-            _closed = true;
+            try {
+                flush();
+            }
+            finally {
+                if (_transaction) {
+                    LOG.warn("Rolling back transaction left open by a closed session");
+                    try {
+                        rollback();
+                    }
+                    catch (final SQLException sqle) {
+                        LOG.debug("Error rolling back transaction", sqle);
+                    }
+                }
+
+                getContext().killSession(this);
+                _statements.close();
+                getContext().releaseConnection(getConnection());
+                _cache.clear();
+                _closed = true;
+            }
         }
     }
 
     /**
-     * Add an object to the cache.
+     * Test whether writes made through this session should be queued rather
+     * than sent to the database. Generated code calls this to decide whether to
+     * use one of the <code>delay*()</code> functions.
+     * 
+     * @return True if this session is in {@link CacheMode#Delayed} and this
+     *         thread is not in the middle of a {@link #flush()}.
+     */
+    public boolean isDelayingWrites()
+    {
+        return (CacheMode.Delayed == getCacheMode() && _flushing != Thread.currentThread());
+    }
+
+    /**
+     * Queue the creation of an object until the next {@link #flush()}. The
+     * object will not have an identifier until then. If the object is deleted
+     * before the flush, neither the create nor the delete will be written.
+     * 
+     * @param obj The object to create.
+     * @param writer Writes a run of queued creates for the type of object.
+     * @throws IllegalStateException If the {@link SormSession} is closed.
+     */
+    public synchronized <T> void delayCreate(final T obj, final DelayedWriter<T> writer)
+    {
+        checkDelayed();
+
+        final DelayedWrite previous = _delayedObjects.get(obj);
+        if (null != previous && DelayedKind.Delete != previous.kind) {
+            // Already queued for a write, which will write the latest state
+            return;
+        }
+
+        _delayedObjects.put(obj, queue(DelayedKind.Create, obj, writer));
+    }
+
+    /**
+     * Queue an update of an object until the next {@link #flush()}. Several
+     * updates of the same object are written once, and an update of an object
+     * whose creation or upsert is queued is folded into it.
+     * 
+     * @param obj The object to update.
+     * @param writer Writes a run of queued updates for the type of object.
+     * @throws IllegalStateException If the {@link SormSession} is closed.
+     */
+    public synchronized <T> void delayUpdate(final T obj, final DelayedWriter<T> writer)
+    {
+        checkDelayed();
+
+        final DelayedWrite previous = _delayedObjects.get(obj);
+        if (null != previous && DelayedKind.Delete != previous.kind) {
+            // The queued create, update or upsert will write the latest state
+            return;
+        }
+
+        _delayedObjects.put(obj, queue(DelayedKind.Update, obj, writer));
+    }
+
+    /**
+     * Queue an upsert of an object until the next {@link #flush()}. A queued
+     * update of the object is replaced by the upsert, so the object is still
+     * inserted if its row is missing; a queued create or upsert already writes
+     * the latest state.
+     * 
+     * @param obj The object to upsert.
+     * @param writer Writes a run of queued upserts for the type of object.
+     * @throws IllegalStateException If the {@link SormSession} is closed.
+     */
+    public synchronized <T> void delayUpsert(final T obj, final DelayedWriter<T> writer)
+    {
+        checkDelayed();
+
+        final DelayedWrite previous = _delayedObjects.get(obj);
+        if (null != previous) {
+            if (DelayedKind.Create == previous.kind || DelayedKind.Upsert == previous.kind) {
+                return;
+            }
+
+            if (DelayedKind.Update == previous.kind) {
+                previous.cancelled = true;
+            }
+        }
+
+        _delayedObjects.put(obj, queue(DelayedKind.Upsert, obj, writer));
+    }
+
+    /**
+     * Queue the deletion of an object until the next {@link #flush()}. If the
+     * creation of the object is still queued, the create (and any mappings
+     * queued for the object) are dropped and nothing is written. A queued
+     * update of the object is dropped in favor of the delete.
+     * 
+     * @param obj The object to delete.
+     * @param writer Writes a run of queued deletes for the type of object.
+     * @throws IllegalStateException If the {@link SormSession} is closed.
+     */
+    public synchronized <T> void delayDelete(final T obj, final DelayedWriter<T> writer)
+    {
+        checkDelayed();
+
+        final DelayedWrite previous = _delayedObjects.get(obj);
+        if (null != previous) {
+            if (DelayedKind.Delete == previous.kind) {
+                return;
+            }
+
+            previous.cancelled = true;
+            if (DelayedKind.Create == previous.kind) {
+                // Never made it to the database, so never needs to leave it
+                _delayedObjects.remove(obj);
+                cancelMappings(obj);
+                return;
+            }
+        }
+
+        _delayedObjects.put(obj, queue(DelayedKind.Delete, obj, writer));
+    }
+
+    /**
+     * Queue the addition of a mapping between two objects until the next
+     * {@link #flush()}. Mapping the same objects again before the flush queues
+     * nothing more, so the mapping is written once.
+     * 
+     * @param pair The objects to map.
+     * @param writer Writes a run of queued mappings for the linked field.
+     * @throws IllegalStateException If the {@link SormSession} is closed.
+     */
+    public synchronized <L, R> void delayMap(final SormPair<L, R> pair, final DelayedWriter<SormPair<L, R>> writer)
+    {
+        checkDelayed();
+
+        final DelayedMapping mapping = new DelayedMapping(writer, pair);
+        if (_delayedMaps.containsKey(mapping)) {
+            // Already queued
+            return;
+        }
+
+        _delayedMaps.put(mapping, queue(DelayedKind.Map, pair, writer));
+    }
+
+    /**
+     * Queue the removal of a mapping between two objects until the next
+     * {@link #flush()}. If the same mapping was added since the last flush,
+     * both the addition and the removal are dropped.
+     * 
+     * @param pair The objects to unmap.
+     * @param mapWriter The writer that was (or would have been) used to queue
+     *            the mapping of these objects.
+     * @param writer Writes a run of queued unmappings for the linked field.
+     * @throws IllegalStateException If the {@link SormSession} is closed.
+     */
+    public synchronized <L, R> void delayUnmap(final SormPair<L, R> pair, final DelayedWriter<SormPair<L, R>> mapWriter,
+                                               final DelayedWriter<SormPair<L, R>> writer)
+    {
+        checkDelayed();
+
+        final DelayedWrite previous = _delayedMaps.remove(new DelayedMapping(mapWriter, pair));
+        if (null != previous) {
+            previous.cancelled = true;
+            return;
+        }
+
+        queue(DelayedKind.Unmap, pair, writer);
+    }
+
+    /**
+     * Write all queued writes to the database, in the order they were queued.
+     * Consecutive writes of the same kind (for example, a run of updates of
+     * the same type of object) are handed to their {@link DelayedWriter}
+     * together so they can be batched. The writes are made with
+     * {@link #runInTransaction(SessionTask)}, so they are committed together
+     * unless a transaction is already in progress, which they become part of.
+     * <p>
+     * Does nothing unless the {@link SormSession} is in
+     * {@link CacheMode#Delayed}. If a write fails, the queue is left as it was.
+     * 
+     * @throws SQLException If there was a problem writing to the database.
+     * @throws IllegalStateException If the {@link SormSession} is closed.
+     */
+    public synchronized void flush()
+        throws SQLException
+    {
+        if (isClosed()) {
+            throw new IllegalStateException(getClass().getSimpleName() + " is closed.");
+        }
+
+        if (_delayed.isEmpty()) {
+            return;
+        }
+
+        LOG.debug("Flushing " + _delayed.size() + " delayed writes");
+
+        _flushing = Thread.currentThread();
+        try {
+            runInTransaction(new SessionTask<Void>()
+            {
+                @Override
+                public Void run(final SormSession session)
+                    throws SQLException
+                {
+                    final List<Object> run = new ArrayList<Object>();
+                    DelayedWriter<Object> runWriter = null;
+                    for (final DelayedWrite write : _delayed) {
+                        if (write.cancelled) {
+                            continue;
+                        }
+
+                        if (write.writer != runWriter && !run.isEmpty()) {
+                            runWriter.write(session, run);
+                            run.clear();
+                        }
+
+                        runWriter = write.writer;
+                        run.add(write.item);
+                    }
+
+                    if (!run.isEmpty()) {
+                        runWriter.write(session, run);
+                    }
+
+                    return null;
+                }
+            });
+
+            _delayed.clear();
+            _delayedObjects.clear();
+            _delayedMaps.clear();
+        }
+        finally {
+            _flushing = null;
+        }
+    }
+
+    /**
+     * Add an object to the cache. It is added to the cache shared with other
+     * sessions once it is committed: straight away in auto-commit, or when a
+     * transaction started with {@link #begin()} is committed. Objects cached
+     * while auto-commit was turned off some other way are not shared.
      * 
      * @param type The type of object (so there is no worry over colliding
      *            keys).
@@ -114,23 +794,19 @@ public class SormSession
             return;
         }
 
-        Map<Object, WeakReference<Object>> typemap;
-        synchronized (_weakCache) {
-            typemap = _weakCache.get(type);
+        _cache.put(type, key, value);
 
-            if (null == typemap) {
-                typemap = new WeakHashMap<Object, WeakReference<Object>>();
-                _weakCache.put(type, typemap);
-            }
+        if (_transaction) {
+            _transactionCached.add(new SormPair<Class<? extends SormObject>, Object>(type, key));
         }
-
-        synchronized (typemap) {
-            typemap.put(key, new WeakReference<Object>(value));
+        else if (isAutoCommit()) {
+            getContext().getSharedCache().put(type, key, value, _loadStamp);
         }
     }
 
     /**
-     * Get a cached object.
+     * Get a cached object, looking in this session's cache first and then in
+     * the cache shared with the other sessions of the {@link SormContext}.
      * 
      * @param type The type of object.
      * @param key The key of the object.
@@ -149,25 +825,22 @@ public class SormSession
             return null;
         }
 
-        final Map<Object, WeakReference<Object>> typemap;
-        synchronized (_weakCache) {
-            typemap = _weakCache.get(type);
-        }
-
-        if (null == typemap) {
-            return null;
-        }
-
-        final WeakReference<Object> ref = typemap.get(key);
-        if (null == ref) {
-            return null;
+        Object value = _cache.get(type, key);
+        if (null == value) {
+            // Fall back on the cache shared with other sessions, and keep what
+            // we find there so the same object is returned next time
+            value = getContext().getSharedCache().get(type, key);
+            if (null != value) {
+                _cache.put(type, key, value);
+            }
         }
 
-        return cast(type, ref.get());
+        return cast(type, value);
     }
 
     /**
-     * Remove an item from the cache.
+     * Remove an item from the cache, and from the cache shared with other
+     * sessions.
      * 
      * @param type The type of item to remove.
      * @param key The key of the item to remove.
@@ -179,18 +852,129 @@ public class SormSession
             throw new IllegalStateException(getClass().getSimpleName() + " is closed.");
         }
 
+        // Other sessions may have cached it even if this one does not cache
+        evictShared(type, key);
+
         if (CacheMode.None == getCacheMode()) {
             // No caching in this mode
             return;
         }
 
-        final Map<Object, WeakReference<Object>> typemap;
-        synchronized (_weakCache) {
-            typemap = _weakCache.get(type);
+        _cache.remove(type, key);
+    }
+
+    /**
+     * Tell the cache shared with other sessions that an object has been
+     * written, so they do not keep using an old copy. Generated update code
+     * calls this; the copy in this session's cache is left alone, since it is
+     * the object that was written. In a transaction started with
+     * {@link #begin()}, the object is kept out of the shared cache until the
+     * transaction ends.
+     * 
+     * @param type The type of item that was written.
+     * @param key The key of the item that was written.
+     * @throws IllegalStateException If the {@link SormSession} is closed.
+     */
+    public void cacheInvalidate(final Class<? extends SormObject> type, final Object key)
+    {
+        if (isClosed()) {
+            throw new IllegalStateException(getClass().getSimpleName() + " is closed.");
+        }
+
+        evictShared(type, key);
+    }
+
+    /**
+     * Evict an object that has been written from the cache shared with other
+     * sessions, keeping it out until the transaction in progress (if any)
+     * ends.
+     * 
+     * @param type The type of object.
+     * @param key The key of the object.
+     */
+    private void evictShared(final Class<? extends SormObject> type, final Object key)
+    {
+        final SharedCache shared = getContext().getSharedCache();
+        if (_transaction && null != key) {
+            shared.startWrite(type, key);
+            _transactionWritten.add(new SormPair<Class<? extends SormObject>, Object>(type, key));
+        }
+        else {
+            shared.remove(type, key);
+        }
+    }
+
+    /**
+     * Test whether the connection is in auto-commit, so everything written so
+     * far has been committed.
+     * 
+     * @return True if in auto-commit; false if not, or if it cannot be told.
+     */
+    private boolean isAutoCommit()
+    {
+        try {
+            return getConnection().getAutoCommit();
+        }
+        catch (final SQLException sqle) {
+            LOG.debug("Error checking auto-commit", sqle);
+            return false;
+        }
+    }
+
+    /**
+     * Make sure delayed writes may be queued right now.
+     * 
+     * @throws IllegalStateException If the {@link SormSession} is closed, or
+     *             not delaying writes.
+     */
+    private void checkDelayed()
+    {
+        if (isClosed()) {
+            throw new IllegalStateException(getClass().getSimpleName() + " is closed.");
+        }
+
+        if (!isDelayingWrites()) {
+            throw new IllegalStateException(getClass().getSimpleName() + " is not delaying writes.");
+        }
+    }
+
+    /**
+     * Add a write to the end of the delayed write queue.
+     * 
+     * @param kind The kind of write.
+     * @param item The object or pair to write.
+     * @param writer The writer.
+     * @return The new entry in the queue.
+     */
+    private DelayedWrite queue(final DelayedKind kind, final Object item, final DelayedWriter<?> writer)
+    {
+        final DelayedWrite write = new DelayedWrite(kind, item, cast(writer));
+        _delayed.add(write);
+        return write;
+    }
+
+    /**
+     * Cancel all queued map and unmap writes that involve an object.
+     * 
+     * @param obj The object.
+     */
+    private void cancelMappings(final Object obj)
+    {
+        for (final DelayedWrite write : _delayed) {
+            if (DelayedKind.Map == write.kind || DelayedKind.Unmap == write.kind) {
+                final SormPair<?, ?> pair = (SormPair<?, ?>)write.item;
+                if (pair.getLhs() == obj || pair.getRhs() == obj) {
+                    write.cancelled = true;
+                }
+            }
         }
 
-        if (null != typemap) {
-            typemap.remove(key);
+        final Iterator<DelayedMapping> it = _delayedMaps.keySet().iterator();
+        while (it.hasNext()) {
+            final DelayedMapping mapping = it.next();
+            if (mapping.lhs == obj || mapping.rhs == obj) {
+                it.remove();
+            }
         }
     }
 
@@ -199,4 +983,75 @@ public class SormSession
     {
         return (T)o;
     }
+
+    @SuppressWarnings("unchecked")
+    private static DelayedWriter<Object> cast(final DelayedWriter<?> writer)
+    {
+        return (DelayedWriter<Object>)writer;
+    }
+
+    /** The kinds of delayed writes. */
+    private enum DelayedKind
+    {
+        Create,
+        Update,
+        Upsert,
+        Delete,
+        Map,
+        Unmap,
+        //
+        ;
+    }
+
+    /** A queued write. */
+    private static class DelayedWrite
+    {
+        final DelayedKind kind;
+        final Object item;
+        final DelayedWriter<Object> writer;
+        boolean cancelled = false;
+
+        DelayedWrite(final DelayedKind _kind, final Object _item, final DelayedWriter<Object> _writer)
+        {
+            kind = _kind;
+            item = _item;
+            writer = _writer;
+        }
+    }
+
+    /**
+     * Identifies a queued mapping by its map writer and the identities (not the
+     * equality) of the mapped objects.
+     */
+    private static class DelayedMapping
+    {
+        final DelayedWriter<?> writer;
+        final Object lhs;
+        final Object rhs;
+
+        DelayedMapping(final DelayedWriter<?> _writer, final SormPair<?, ?> pair)
+        {
+            writer = _writer;
+            lhs = pair.getLhs();
+            rhs = pair.getRhs();
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (o instanceof DelayedMapping) {
+                final DelayedMapping mapping = (DelayedMapping)o;
+                return (writer == mapping.writer && lhs == mapping.lhs && rhs == mapping.rhs);
+            }
+            else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (System.identityHashCode(writer) * 31 + System.identityHashCode(lhs)) * 31 + System.identityHashCode(rhs);
+        }
+    }
 }
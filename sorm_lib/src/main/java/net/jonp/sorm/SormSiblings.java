@@ -0,0 +1,55 @@
+package net.jonp.sorm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A group of objects that were read together by one {@link SormSession}. When
+ * a lazy link of one of them is first used, the same link is loaded for every
+ * member of the group that has not loaded it yet, with one query instead of
+ * one per object.
+ * <p>
+ * A group refers to its session and to all of its members, so none of them
+ * can be collected while any member is still in use. Lazy links can only be
+ * loaded while the session is open.
+ *
+ * @param <T> The type of the members.
+ */
+public class SormSiblings<T>
+{
+    private final SormSession _session;
+    private final Collection<T> _members = new ArrayList<T>();
+
+    /**
+     * Construct a new, empty {@link SormSiblings}.
+     *
+     * @param session The session that read the members, and will load their
+     *            lazy links.
+     */
+    public SormSiblings(final SormSession session)
+    {
+        _session = session;
+    }
+
+    /** Get the session that will load lazy links of the members. */
+    public SormSession getSession()
+    {
+        return _session;
+    }
+
+    /**
+     * Add a member to the group.
+     *
+     * @param member The new member.
+     */
+    public synchronized void add(final T member)
+    {
+        _members.add(member);
+    }
+
+    /** Get a copy of the members of the group. */
+    public synchronized Collection<T> getMembers()
+    {
+        return new ArrayList<T>(_members);
+    }
+}
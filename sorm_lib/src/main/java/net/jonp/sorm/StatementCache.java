@@ -0,0 +1,184 @@
+package net.jonp.sorm;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A cache of idle {@link PreparedStatement}s on a single connection, keyed by
+ * SQL text and whether they return generated keys, for {@link SormSession}. Statements are borrowed and released
+ * rather than closed, and the least recently released statements are closed
+ * once there are too many idle ones.
+ * <p>
+ * A borrowed statement belongs to its borrower until it is released, so code
+ * that needs the same SQL twice at once (such as a read that recurses into
+ * another read of the same type) simply gets a second statement.
+ */
+class StatementCache
+{
+    private static final Logger LOG = Logger.getLogger(StatementCache.class);
+
+    private final Connection _connection;
+    private final int _maxSize;
+
+    // Idle statements, least recently released first
+    private final LinkedHashMap<Key, PreparedStatement> _idle = new LinkedHashMap<Key, PreparedStatement>();
+    private final Map<PreparedStatement, Key> _borrowed = new IdentityHashMap<PreparedStatement, Key>();
+
+    /**
+     * Construct a new {@link StatementCache}.
+     *
+     * @param connection The connection on which to prepare statements.
+     * @param maxSize The maximum number of idle statements to keep; 0 to close
+     *            every statement when it is released.
+     */
+    StatementCache(final Connection connection, final int maxSize)
+    {
+        _connection = connection;
+        _maxSize = maxSize;
+    }
+
+    /**
+     * Borrow a statement for some SQL, preparing a new one if none is idle.
+     *
+     * @param sql The SQL text.
+     * @return The statement.
+     * @throws SQLException If there was a problem preparing the statement.
+     */
+    PreparedStatement borrow(final String sql)
+        throws SQLException
+    {
+        return borrow(sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * Borrow a statement for some SQL, preparing a new one if none is idle.
+     *
+     * @param sql The SQL text.
+     * @param autoGeneratedKeys {@link Statement#RETURN_GENERATED_KEYS} or
+     *            {@link Statement#NO_GENERATED_KEYS}.
+     * @return The statement.
+     * @throws SQLException If there was a problem preparing the statement.
+     */
+    synchronized PreparedStatement borrow(final String sql, final int autoGeneratedKeys)
+        throws SQLException
+    {
+        final Key key = new Key(sql, Statement.RETURN_GENERATED_KEYS == autoGeneratedKeys);
+        PreparedStatement ps = _idle.remove(key);
+        if (null == ps) {
+            if (key.returnKeys) {
+                ps = _connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            }
+            else {
+                ps = _connection.prepareStatement(sql);
+            }
+        }
+
+        _borrowed.put(ps, key);
+        return ps;
+    }
+
+    /**
+     * Release a borrowed statement back to the cache. Its parameters and batch
+     * are cleared. If it was not borrowed from this cache, it is closed.
+     *
+     * @param ps The statement.
+     * @throws SQLException If there was a problem closing the statement.
+     */
+    synchronized void release(final PreparedStatement ps)
+        throws SQLException
+    {
+        final Key key = _borrowed.remove(ps);
+        if (null == key || _idle.containsKey(key) || 0 == _maxSize) {
+            ps.close();
+            return;
+        }
+
+        try {
+            ps.clearParameters();
+            ps.clearBatch();
+        }
+        catch (final SQLException sqle) {
+            LOG.debug("Closing statement that could not be reset", sqle);
+            ps.close();
+            return;
+        }
+
+        _idle.put(key, ps);
+        if (_idle.size() > _maxSize) {
+            final Iterator<PreparedStatement> it = _idle.values().iterator();
+            final PreparedStatement eldest = it.next();
+            it.remove();
+            eldest.close();
+        }
+    }
+
+    /** Get the number of idle statements in the cache. */
+    synchronized int size()
+    {
+        return _idle.size();
+    }
+
+    /**
+     * Close every idle statement, and forget about any borrowed ones (their
+     * borrowers will close them when they release them).
+     */
+    void close()
+    {
+        final Collection<PreparedStatement> idle;
+        synchronized (this) {
+            idle = new ArrayList<PreparedStatement>(_idle.values());
+            _idle.clear();
+            _borrowed.clear();
+        }
+
+        for (final PreparedStatement ps : idle) {
+            try {
+                ps.close();
+            }
+            catch (final SQLException sqle) {
+                LOG.debug("Error closing cached statement", sqle);
+            }
+        }
+    }
+
+    /** The SQL text of a statement, and whether it returns generated keys. */
+    private static class Key
+    {
+        final String sql;
+        final boolean returnKeys;
+
+        Key(final String _sql, final boolean _returnKeys)
+        {
+            sql = _sql;
+            returnKeys = _returnKeys;
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (o instanceof Key) {
+                final Key other = (Key)o;
+                return sql.equals(other.sql) && returnKeys == other.returnKeys;
+            }
+            else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return sql.hashCode() * 2 + (returnKeys ? 1 : 0);
+        }
+    }
+}
@@ -4,8 +4,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.List;
+import java.util.Collections;
 
 
 /**
@@ -71,10 +70,15 @@ public class PersonLib
     {
         final Collection<Person> people = orm.read(keys);
 
+        final Collection<Person> unlinked = new ArrayList<Person>(people.size());
         for (final Person person : people) {
-            link(orm, person);
+            if (!person.isLinked()) {
+                unlinked.add(person);
+            }
         }
 
+        link(orm, unlinked);
+
         return people;
     }
 
@@ -90,48 +94,28 @@ public class PersonLib
     public static void link(final Person.Orm orm, final Person person)
         throws SQLException
     {
-        if (person.isLinked()) {
-            return;
-        }
-
-        // Read spouse, mother, and father at the same time, if we need to read
-        // any
-        final List<Integer> ids = new ArrayList<Integer>(3);
-
-        final Integer spouse = person.getSpouse();
-        if (null != spouse) {
-            ids.add(spouse);
-        }
-
-        final Integer mother = person.getMother();
-        if (null != mother) {
-            ids.add(mother);
+        if (!person.isLinked()) {
+            link(orm, Collections.singleton(person));
         }
+    }
 
-        final Integer father = person.getFather();
-        if (null != father) {
-            ids.add(father);
-        }
+    /**
+     * Link a number of people at once, with
+     * {@link net.jonp.sorm.test.Person.Orm#link(Collection)}, and mark them as
+     * linked.
+     * 
+     * @param orm The Orm object to use for database queries.
+     * @param people The people to link.
+     * @throws SQLException If there was a problem.
+     */
+    private static void link(final Person.Orm orm, final Collection<Person> people)
+        throws SQLException
+    {
+        orm.link(people);
 
-        if (!ids.isEmpty()) {
-            final Collection<Person> people = orm.read(ids);
-            for (final Person p : people) {
-                if (p.getId().equals(spouse)) {
-                    person.setSpouseObject(p);
-                }
-                else if (p.getId().equals(mother)) {
-                    person.setMotherObject(p);
-                }
-                else if (p.getId().equals(father)) {
-                    person.setFatherObject(p);
-                }
-            }
+        for (final Person person : people) {
+            person.setLinked(true);
         }
-
-        person.setChildren(new HashSet<Person>(orm.readMappedChildren(person)));
-        person.setFriends(new HashSet<Person>(orm.readMappedFriends(person)));
-
-        person.setLinked(true);
     }
 
     public static void makeFriends(final Person.Orm orm, final Person a, final Person b)
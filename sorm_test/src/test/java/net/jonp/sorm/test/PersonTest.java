@@ -4,21 +4,39 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.jonp.sorm.CacheMode;
+import net.jonp.sorm.ConnectionPool;
+import net.jonp.sorm.ConnectionProvider;
 import net.jonp.sorm.Dialect;
+import net.jonp.sorm.KeyAllocator;
+import net.jonp.sorm.SessionTask;
+import net.jonp.sorm.SharedCache;
 import net.jonp.sorm.SormContext;
 import net.jonp.sorm.SormIterable;
 import net.jonp.sorm.SormIterator;
+import net.jonp.sorm.SormPair;
 import net.jonp.sorm.SormSession;
 
 import org.junit.AfterClass;
@@ -82,11 +100,8 @@ public class PersonTest
         final SormSession session = context.getSession(CacheMode.Immediate);
         final Person person = testSingleInsertImpl(session);
 
-        // XXX: By holding onto a strong reference to the Person in the
-        // cache, this should prevent the garbage collector from clearing it
-        // out
-        // However, it is still possible, since the key in the weak hash map
-        // is a boxed Integer, and may be cleared anyway
+        // By holding onto a strong reference to the Person, this prevents the
+        // garbage collector from clearing it out of the cache
         assertNotNull(session.cacheGet(Person.class, person.getId()));
     }
 
@@ -332,6 +347,1386 @@ public class PersonTest
         }
     }
 
+    @Test
+    public void testPooledTransientSessions()
+        throws SQLException
+    {
+        final SormSession first = context.getTransientSession();
+        final Connection connection = first.getConnection();
+        first.close();
+
+        final int open = context.getConnectionPool().getOpenCount();
+
+        // The connection should have gone back to the pool, not been closed
+        final SormSession second = context.getTransientSession();
+        try {
+            assertSame(connection, second.getConnection());
+            assertEquals(open, context.getConnectionPool().getOpenCount());
+
+            final Person person = buildSimpleObjects(1)[0];
+            Person.Orm.create(second, person);
+            assertEquals(person, Person.Orm.read(second, person.getId()));
+        }
+        finally {
+            second.close();
+        }
+    }
+
+    @Test
+    public void testConnectionProvider()
+        throws SQLException
+    {
+        // Wrap the pool of the real context to make sure sessions of the new
+        // context go through the provider
+        final ConnectionPool pool = context.getConnectionPool();
+        final int[] borrowed = new int[1];
+        final SormContext wrapped = new SormContext(context.getDialect(), new ConnectionProvider()
+        {
+            @Override
+            public Connection borrow()
+                throws SQLException
+            {
+                borrowed[0]++;
+                return pool.borrow();
+            }
+
+            @Override
+            public void release(final Connection connection)
+            {
+                pool.release(connection);
+            }
+
+            @Override
+            public void close()
+            {
+                // The pool belongs to the real context
+            }
+        });
+
+        try {
+            final SormSession session = wrapped.getTransientSession();
+            try {
+                final Person person = buildSimpleObjects(1)[0];
+                Person.Orm.create(session, person);
+                assertEquals(person, Person.Orm.read(session, person.getId()));
+            }
+            finally {
+                session.close();
+            }
+        }
+        finally {
+            wrapped.close();
+        }
+
+        assertEquals(1, borrowed[0]);
+    }
+
+    @Test
+    public void testWithSession()
+        throws Exception
+    {
+        final SormSession[] used = new SormSession[2];
+        final Person person = context.withSession(CacheMode.None, new SessionTask<Person>()
+        {
+            @Override
+            public Person run(final SormSession session)
+                throws SQLException
+            {
+                used[0] = session;
+                final Person created = buildSimpleObjects(1)[0];
+                Person.Orm.create(session, created);
+                return created;
+            }
+        });
+
+        // The session only lasted as long as the task
+        assertTrue(used[0].isClosed());
+
+        // Tasks are not tied to the thread that runs them
+        final Person[] read = new Person[1];
+        final SQLException[] error = new SQLException[1];
+        final Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    read[0] = context.withSession(new SessionTask<Person>()
+                    {
+                        @Override
+                        public Person run(final SormSession session)
+                            throws SQLException
+                        {
+                            used[1] = session;
+                            return Person.Orm.read(session, person.getId());
+                        }
+                    });
+                }
+                catch (final SQLException sqle) {
+                    error[0] = sqle;
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+
+        if (null != error[0]) {
+            throw error[0];
+        }
+
+        assertEquals(person, read[0]);
+        assertTrue(used[0] != used[1]);
+        assertTrue(used[1].isClosed());
+    }
+
+    @Test
+    public void testAsyncOrm()
+        throws Exception
+    {
+        final Person.AsyncOrm orm = new Person.AsyncOrm(context, CacheMode.None);
+        final Person[] people = buildSimpleObjects(4);
+        orm.create(Arrays.asList(people)).get();
+
+        // Independent reads run side by side
+        final List<Future<Person>> reads = new ArrayList<Future<Person>>();
+        for (final Person person : people) {
+            reads.add(orm.read(person.getId()));
+        }
+
+        for (int i = 0; i < people.length; i++) {
+            assertEquals(people[i], reads.get(i).get());
+        }
+
+        assertTrue(orm.getByNameLike(people[0].getName()).get().contains(people[0]));
+
+        // No more than the maximum number of tasks hold sessions at once
+        final int maxAsyncTasks = context.getMaxAsyncTasks();
+        context.setMaxAsyncTasks(2);
+        try {
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger peak = new AtomicInteger();
+            final List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 6; i++) {
+                tasks.add(context.submit(new SessionTask<Void>()
+                {
+                    @Override
+                    public Void run(final SormSession session)
+                        throws SQLException
+                    {
+                        final int now = running.incrementAndGet();
+                        synchronized (peak) {
+                            peak.set(Math.max(peak.get(), now));
+                        }
+
+                        try {
+                            Thread.sleep(20);
+                        }
+                        catch (final InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+
+                        running.decrementAndGet();
+                        return null;
+                    }
+                }));
+            }
+
+            for (final Future<Void> task : tasks) {
+                task.get();
+            }
+
+            assertTrue(peak.get() <= 2);
+        }
+        finally {
+            context.setMaxAsyncTasks(maxAsyncTasks);
+        }
+
+        // Failures come back through the future
+        final Future<Void> failed = context.submit(new SessionTask<Void>()
+        {
+            @Override
+            public Void run(final SormSession session)
+                throws SQLException
+            {
+                throw new SQLException("Expected failure");
+            }
+        });
+
+        try {
+            failed.get();
+            fail("Task did not fail");
+        }
+        catch (final ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof SQLException);
+        }
+    }
+
+    @Test
+    public void testResizeAsyncTasks()
+        throws Exception
+    {
+        final int maxAsyncTasks = context.getMaxAsyncTasks();
+        context.getExecutor();
+        try {
+            // The pool grows with the maximum, so all of these run at once
+            context.setMaxAsyncTasks(6);
+            final CountDownLatch all = new CountDownLatch(6);
+            final List<Future<Boolean>> together = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 6; i++) {
+                together.add(context.submit(new SessionTask<Boolean>()
+                {
+                    @Override
+                    public Boolean run(final SormSession session)
+                        throws SQLException
+                    {
+                        all.countDown();
+                        try {
+                            return all.await(5, TimeUnit.SECONDS);
+                        }
+                        catch (final InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                    }
+                }));
+            }
+
+            for (final Future<Boolean> task : together) {
+                assertTrue(task.get());
+            }
+
+            // A task running under the old maximum counts against the new one
+            context.setMaxAsyncTasks(1);
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger peak = new AtomicInteger();
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final Future<Void> blocker = context.submit(new SessionTask<Void>()
+            {
+                @Override
+                public Void run(final SormSession session)
+                    throws SQLException
+                {
+                    running.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (final InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    running.decrementAndGet();
+                    return null;
+                }
+            });
+
+            started.await();
+            context.setMaxAsyncTasks(2);
+            final List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 3; i++) {
+                tasks.add(context.submit(new SessionTask<Void>()
+                {
+                    @Override
+                    public Void run(final SormSession session)
+                        throws SQLException
+                    {
+                        final int now = running.incrementAndGet();
+                        synchronized (peak) {
+                            peak.set(Math.max(peak.get(), now));
+                        }
+
+                        try {
+                            Thread.sleep(50);
+                        }
+                        catch (final InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+
+                        running.decrementAndGet();
+                        return null;
+                    }
+                }));
+            }
+
+            for (final Future<Void> task : tasks) {
+                task.get();
+            }
+
+            release.countDown();
+            blocker.get();
+            assertEquals(2, peak.get());
+        }
+        finally {
+            context.setMaxAsyncTasks(maxAsyncTasks);
+        }
+    }
+
+    @Test
+    public void testTransactions()
+        throws SQLException
+    {
+        final SormSession reader = context.getSession(CacheMode.None);
+        final SormSession session = context.getTransientSession(CacheMode.Immediate);
+        try {
+            // Rolled back, and forgotten by the cache
+            session.begin();
+            assertTrue(session.isInTransaction());
+            final Person dropped = buildSimpleObjects(1)[0];
+            Person.Orm.create(session, dropped);
+            session.rollback();
+            assertTrue(!session.isInTransaction());
+            assertNull(session.cacheGet(Person.class, dropped.getId()));
+            assertNull(Person.Orm.read(reader, dropped.getId()));
+
+            session.begin();
+            final Person kept = buildSimpleObjects(1)[0];
+            Person.Orm.create(session, kept);
+            session.commit();
+            assertEquals(kept, Person.Orm.read(reader, kept.getId()));
+
+            if (session.getConnection().getMetaData().supportsSavepoints()) {
+                session.begin();
+                final Person before = buildSimpleObjects(1)[0];
+                Person.Orm.create(session, before);
+                final Savepoint savepoint = session.setSavepoint();
+                final Person after = buildSimpleObjects(1)[0];
+                Person.Orm.create(session, after);
+                session.rollback(savepoint);
+                session.commit();
+
+                assertEquals(before, Person.Orm.read(reader, before.getId()));
+                assertNull(Person.Orm.read(reader, after.getId()));
+            }
+
+            // A failed task is rolled back
+            final Person[] failed = new Person[1];
+            try {
+                session.runInTransaction(new SessionTask<Void>()
+                {
+                    @Override
+                    public Void run(final SormSession txSession)
+                        throws SQLException
+                    {
+                        failed[0] = buildSimpleObjects(1)[0];
+                        Person.Orm.create(txSession, failed[0]);
+                        throw new SQLException("Expected failure");
+                    }
+                });
+                fail("Task did not fail");
+            }
+            catch (final SQLException sqle) {
+                assertEquals("Expected failure", sqle.getMessage());
+            }
+            assertTrue(!session.isInTransaction());
+            assertNull(Person.Orm.read(reader, failed[0].getId()));
+
+            // A collection write that fails part way leaves nothing behind
+            session.setTransactionalWrites(true);
+            final Person[] people = buildSimpleObjects(2);
+            people[1].setName(null);
+            try {
+                Person.Orm.create(session, people);
+                fail("Created a person with no name");
+            }
+            catch (final SQLException sqle) {
+                // Expected
+            }
+            assertTrue(!session.isInTransaction());
+            assertNull(Person.Orm.read(reader, people[0].getId()));
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testBatchedWrites()
+        throws SQLException
+    {
+        final SormSession session = context.getSession(CacheMode.None);
+        final int batchSize = session.getBatchSize();
+        try {
+            // Leave a partial batch at the end
+            session.setBatchSize(7);
+
+            final Person[] people = buildSimpleObjects(20);
+            Person.Orm.create(session, people);
+            final Integer[] keys = getKeys(people);
+            assertArrayEquals(people, Person.Orm.read(session, keys).toArray(new Person[people.length]));
+
+            for (final Person person : people) {
+                person.setName(person.getName() + " (batched)");
+            }
+
+            Person.Orm.update(session, people);
+            assertArrayEquals(people, Person.Orm.read(session, keys).toArray(new Person[people.length]));
+
+            Person.Orm.delete(session, people);
+            assertTrue(Person.Orm.read(session, keys).isEmpty());
+        }
+        finally {
+            session.setBatchSize(batchSize);
+        }
+    }
+
+    @Test
+    public void testReadMany()
+        throws SQLException
+    {
+        final SormSession session = context.getTransientSession(CacheMode.Immediate);
+        try {
+            final Person[] people = buildSimpleObjects(10);
+            Person.Orm.create(session, people);
+
+            // Evict most of them, so the rest have to come from the database
+            // in several chunks, the last one partial
+            for (int i = 0; i < people.length; i += 3) {
+                session.cacheDel(Person.class, people[i].getId());
+            }
+            session.setBatchSize(3);
+
+            final Collection<Integer> keys = new ArrayList<Integer>(Arrays.asList(getKeys(people)));
+            keys.add(-1);
+
+            final Collection<Person> test = Person.Orm.read(session, keys);
+            assertArrayEquals(people, test.toArray(new Person[test.size()]));
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testBatchedLink()
+        throws SQLException
+    {
+        final SormSession session = context.getSession(CacheMode.Immediate);
+        final Person[] people = populate(new Person.Orm(session), 16);
+        Person.Orm.update(session, people);
+
+        final SormSession other = context.getTransientSession(CacheMode.Immediate);
+        try {
+            // Small chunks, so each mapped collection takes several queries
+            other.setBatchSize(3);
+
+            final Collection<Person> test = Person.Orm.read(other, getKeys(people));
+            Person.Orm.link(other, test);
+
+            final Person[] linked = test.toArray(new Person[test.size()]);
+            assertArrayEquals(people, linked);
+
+            for (int i = 0; i < linked.length; i++) {
+                assertLinked(people, people[i].getSpouse(), linked[i].getSpouseObject());
+                assertLinked(people, people[i].getMother(), linked[i].getMotherObject());
+                assertLinked(people, people[i].getFather(), linked[i].getFatherObject());
+                assertCollectionsMatch(people[i].getFriends(), linked[i].getFriends());
+
+                final Collection<Person> children = new ArrayList<Person>();
+                for (final Person child : people) {
+                    if (people[i].getId().equals(child.getMother()) || people[i].getId().equals(child.getFather())) {
+                        children.add(child);
+                    }
+                }
+                assertCollectionsMatch(children, linked[i].getChildren());
+            }
+        }
+        finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testLazyLinks()
+        throws SQLException
+    {
+        final SormSession session = context.getSession(CacheMode.Immediate);
+        final Person[] people = populate(new Person.Orm(session), 16);
+        Person.Orm.update(session, people);
+
+        final SormSession other = context.getTransientSession(CacheMode.Immediate);
+        try {
+            final Collection<Person> test = Person.Orm.read(other, getKeys(people));
+            final Person[] lazy = test.toArray(new Person[test.size()]);
+            assertArrayEquals(people, lazy);
+
+            // Using one lazy link loads it for every sibling at once, so the
+            // rest must not need the database
+            assertLinked(people, people[3].getMother(), lazy[3].getMotherObject());
+            assertNotNull(lazy[3].getFatherObject());
+            lazy[0].getChildren();
+            other.getConnection().close();
+
+            for (int i = 0; i < lazy.length; i++) {
+                assertLinked(people, people[i].getMother(), lazy[i].getMotherObject());
+                assertLinked(people, people[i].getFather(), lazy[i].getFatherObject());
+
+                final Collection<Person> children = new ArrayList<Person>();
+                for (final Person child : people) {
+                    if (people[i].getId().equals(child.getMother()) || people[i].getId().equals(child.getFather())) {
+                        children.add(child);
+                    }
+                }
+                assertCollectionsMatch(children, lazy[i].getChildren());
+            }
+        }
+        finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testSetReadMapped()
+        throws SQLException
+    {
+        final SormSession session = context.getSession(CacheMode.Immediate);
+        final Person[] people = populate(new Person.Orm(session), 16);
+        Person.Orm.update(session, people);
+
+        final int batchSize = session.getBatchSize();
+        session.setBatchSize(5);
+        try {
+            final Map<Integer, Collection<Person>> friends = Person.Orm.readMappedFriends(session, Arrays.asList(people));
+            final Map<Integer, Collection<Person>> children = Person.Orm.readMappedChildren(session, Arrays.asList(people));
+            assertEquals(people.length, friends.size());
+            assertEquals(people.length, children.size());
+
+            for (final Person person : people) {
+                assertCollectionsMatch(Person.Orm.readMappedFriends(session, person), friends.get(person.getId()));
+                assertCollectionsMatch(Person.Orm.readMappedChildren(session, person), children.get(person.getId()));
+            }
+        }
+        finally {
+            session.setBatchSize(batchSize);
+        }
+    }
+
+    @Test
+    public void testBatchedMapUnmap()
+        throws SQLException
+    {
+        final SormSession session = context.getSession(CacheMode.Immediate);
+        final Person[] people = buildSimpleObjects(8);
+        Person.Orm.create(session, people);
+
+        final int batchSize = session.getBatchSize();
+        session.setBatchSize(3);
+        try {
+            // One person befriends everyone else at once
+            final Collection<Person> others = new ArrayList<Person>(Arrays.asList(people).subList(1, people.length));
+            Person.Orm.mapFriends(session, people[0], others);
+            assertCollectionsMatch(others, Person.Orm.readMappedFriends(session, people[0]));
+            for (final Person other : others) {
+                assertCollectionsMatch(Arrays.asList(people[0]), Person.Orm.readMappedFriends(session, other));
+            }
+
+            // Break up with half of them by pairs
+            final List<SormPair<Person, Person>> pairs = new ArrayList<SormPair<Person, Person>>();
+            final Collection<Person> remaining = new ArrayList<Person>();
+            for (int i = 1; i < people.length; i++) {
+                if (i % 2 == 0) {
+                    pairs.add(new SormPair<Person, Person>(people[0], people[i]));
+                }
+                else {
+                    remaining.add(people[i]);
+                }
+            }
+
+            Person.Orm.unmapFriends(session, pairs);
+            assertCollectionsMatch(remaining, Person.Orm.readMappedFriends(session, people[0]));
+
+            // Nothing to do is not an error
+            Person.Orm.mapFriends(session, people[0], new ArrayList<Person>());
+        }
+        finally {
+            session.setBatchSize(batchSize);
+        }
+    }
+
+    @Test
+    public void testIdentityCache()
+        throws SQLException
+    {
+        final SormSession session = context.getTransientSession(CacheMode.Immediate);
+        try {
+            final Person person = buildSimpleObjects(1)[0];
+            Person.Orm.create(session, person);
+
+            // The cache must not depend on the caller keeping the boxed key
+            // alive
+            final int id = person.getId();
+            System.gc();
+            assertSame(person, session.cacheGet(Person.class, new Integer(id)));
+
+            // Unknown objects have no key; that should not be an error
+            session.cacheAdd(Person.class, null, person);
+            assertNull(session.cacheGet(Person.class, null));
+            session.cacheDel(Person.class, null);
+
+            session.cacheDel(Person.class, new Integer(id));
+            assertNull(session.cacheGet(Person.class, id));
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testSharedCache()
+        throws SQLException
+    {
+        final SharedCache shared = context.getSharedCache();
+        shared.configure(Person.class, 2, SharedCache.Eviction.LeastRecentlyUsed, 0);
+        try {
+            final Person[] people = buildSimpleObjects(3);
+            final SormSession writer = context.getTransientSession(CacheMode.Immediate);
+            try {
+                Person.Orm.create(writer, people);
+            }
+            finally {
+                writer.close();
+            }
+
+            // Only the two most recent fit
+            assertEquals(2, shared.size(Person.class));
+            assertNull(shared.get(Person.class, people[0].getId()));
+
+            final SormSession reader = context.getTransientSession(CacheMode.Immediate);
+            try {
+                // Served from the shared cache, without reading the database,
+                // as a copy that belongs to the reader alone
+                final Person copy = Person.Orm.read(reader, people[2].getId());
+                assertEquals(people[2], copy);
+                assertTrue(people[2] != copy);
+                assertSame(copy, Person.Orm.read(reader, people[2].getId()));
+
+                // Changes are not seen by other sessions until written, even
+                // those made in place
+                final int height = copy.getDescription().getHeight();
+                final long dob = copy.getDob().getTime();
+                copy.setName("Unwritten");
+                copy.getDescription().setHeight(height + 1);
+                copy.getDob().setTime(dob + 86400000L);
+                final Person shown = (Person)shared.get(Person.class, people[2].getId());
+                assertEquals(people[2].getName(), shown.getName());
+                assertEquals(height, shown.getDescription().getHeight());
+                assertEquals(dob, shown.getDob().getTime());
+                assertEquals(height, people[2].getDescription().getHeight());
+
+                // Writing from any session evicts from the shared cache
+                final SormSession other = context.getTransientSession(CacheMode.None);
+                try {
+                    people[2].setName("Changed");
+                    Person.Orm.update(other, people[2]);
+                    assertNull(shared.get(Person.class, people[2].getId()));
+
+                    Person.Orm.delete(other, people[1]);
+                    assertNull(shared.get(Person.class, people[1].getId()));
+
+                    // A copy loaded before a write is not cached after it
+                    final long stamp = shared.stamp();
+                    final Person stale = Person.Orm.read(other, people[2].getId());
+                    people[2].setName("Changed again");
+                    Person.Orm.update(other, people[2]);
+                    shared.put(Person.class, people[2].getId(), stale, stamp);
+                    assertNull(shared.get(Person.class, people[2].getId()));
+
+                    final long fresh = shared.stamp();
+                    shared.put(Person.class, people[2].getId(), Person.Orm.read(other, people[2].getId()), fresh);
+                    assertEquals("Changed again", ((Person)shared.get(Person.class, people[2].getId())).getName());
+                }
+                finally {
+                    other.close();
+                }
+            }
+            finally {
+                reader.close();
+            }
+
+            // Objects are shared once committed, and never if rolled back
+            final SormSession tx = context.getTransientSession(CacheMode.Immediate);
+            try {
+                final Person[] created = buildSimpleObjects(2);
+                tx.begin();
+                Person.Orm.create(tx, created[0]);
+                assertNull(shared.get(Person.class, created[0].getId()));
+                tx.commit();
+                assertEquals(created[0], shared.get(Person.class, created[0].getId()));
+
+                tx.begin();
+                Person.Orm.create(tx, created[1]);
+                tx.rollback();
+                assertNull(shared.get(Person.class, created[1].getId()));
+
+                // Nor if rolled back to a savepoint set before they were cached
+                if (tx.getConnection().getMetaData().supportsSavepoints()) {
+                    final Person undone = buildSimpleObjects(1)[0];
+                    tx.begin();
+                    final Savepoint savepoint = tx.setSavepoint();
+                    Person.Orm.create(tx, undone);
+                    tx.rollback(savepoint);
+                    assertNull(tx.cacheGet(Person.class, undone.getId()));
+                    tx.commit();
+
+                    final SormSession other = context.getTransientSession(CacheMode.Immediate);
+                    try {
+                        assertNull(other.cacheGet(Person.class, undone.getId()));
+                    }
+                    finally {
+                        other.close();
+                    }
+                }
+
+                // Nothing may be cached while a transaction is writing it,
+                // such as a copy read by another session before the commit
+                tx.begin();
+                created[0].setName("Written");
+                Person.Orm.update(tx, created[0]);
+                shared.put(Person.class, created[0].getId(), people[0]);
+                assertNull(shared.get(Person.class, created[0].getId()));
+                tx.commit();
+                assertNull(shared.get(Person.class, created[0].getId()));
+            }
+            finally {
+                tx.close();
+            }
+        }
+        finally {
+            shared.disable(Person.class);
+        }
+    }
+
+    @Test
+    public void testSharedCacheLazyLinks()
+        throws SQLException
+    {
+        final SharedCache shared = context.getSharedCache();
+        shared.configure(Person.class, 10, SharedCache.Eviction.LeastRecentlyUsed, 0);
+        try {
+            final Person[] people = buildSimpleObjects(2);
+            final SormSession writer = context.getSession(CacheMode.None);
+            Person.Orm.create(writer, people);
+            people[1].setMother(people[0].getId());
+            Person.Orm.update(writer, people[1]);
+
+            // Read and cached by a session that is then closed
+            final SormSession first = context.getTransientSession(CacheMode.Immediate);
+            try {
+                Person.Orm.read(first, people[1].getId());
+            }
+            finally {
+                first.close();
+            }
+
+            // The lazy link is loaded by the session that gets the object
+            final SormSession second = context.getTransientSession(CacheMode.Immediate);
+            try {
+                final Person child = Person.Orm.read(second, people[1].getId());
+                assertEquals(people[0], child.getMotherObject());
+            }
+            finally {
+                second.close();
+            }
+        }
+        finally {
+            shared.disable(Person.class);
+        }
+    }
+
+    @Test
+    public void testStatementCache()
+        throws SQLException
+    {
+        final SormSession session = context.getTransientSession(CacheMode.None);
+        try {
+            final String sql = "select id from person where id = ?";
+            final PreparedStatement first = session.prepareStatement(sql);
+
+            // Still borrowed, so the same SQL needs another statement
+            final PreparedStatement second = session.prepareStatement(sql);
+            assertTrue(first != second);
+
+            session.releaseStatement(first);
+            session.releaseStatement(second);
+            assertSame(first, session.prepareStatement(sql));
+            session.releaseStatement(first);
+
+            // Generated code goes through the cache as well
+            final Person person = buildSimpleObjects(1)[0];
+            Person.Orm.create(session, person);
+            assertEquals(person, Person.Orm.read(session, person.getId()));
+            assertEquals(person, Person.Orm.read(session, person.getId()));
+
+            // Including the statements that run before the last one of a query
+            final String prelude = "insert into object (type) values ('person')";
+            final PreparedStatement cached = session.prepareStatement(prelude);
+            session.releaseStatement(cached);
+            Person.Orm.create(session, buildSimpleObjects(1));
+            assertSame(cached, session.prepareStatement(prelude));
+            session.releaseStatement(cached);
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testStreamingQuery()
+        throws SQLException
+    {
+        final SormSession session = context.getTransientSession(CacheMode.None);
+        try {
+            session.setFetchSize(3);
+
+            final Person[] people = buildSimpleObjects(10);
+            for (int i = 0; i < people.length; i++) {
+                people[i].setName("Streamed " + i);
+            }
+            Person.Orm.create(session, people);
+
+            final Collection<Person> test = new ArrayList<Person>();
+            for (final Person person : Person.Orm.getByNameLikeIterable(session, "Streamed %")) {
+                test.add(person);
+            }
+
+            // Reading to the end releases the statement without a close()
+            assertArrayEquals(people, test.toArray(new Person[test.size()]));
+
+            // Stopping early needs a close()
+            final SormIterator<Person> it = Person.Orm.getByNameLikeIterable(session, "Streamed %").iterator();
+            try {
+                assertEquals(people[0], it.next());
+            }
+            finally {
+                it.close();
+            }
+
+            // Rows that have been passed over are not held by the siblings of
+            // later rows, so a long stream does not fill the heap
+            final SormIterator<Person> all = Person.Orm.getByNameLikeIterable(session, "Streamed %").iterator();
+            try {
+                final WeakReference<Person> first = new WeakReference<Person>(all.next());
+                for (int i = 1; i < 7; i++) {
+                    all.next();
+                }
+
+                for (int i = 0; i < 10 && null != first.get(); i++) {
+                    System.gc();
+                }
+                assertNull(first.get());
+            }
+            finally {
+                all.close();
+            }
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testFullRowQuery()
+        throws SQLException
+    {
+        final SormSession session = context.getTransientSession(CacheMode.Immediate);
+        try {
+            final Person[] people = buildSimpleObjects(4);
+            for (int i = 0; i < people.length; i++) {
+                people[i].setName("Full row " + i);
+            }
+            Person.Orm.create(session, people);
+
+            // Objects come straight from the query; cached ones are reused
+            session.cacheDel(Person.class, people[1].getId());
+            final Person[] test = Person.Orm.getByNameLike(session, "Full row %").toArray(new Person[people.length]);
+            assertArrayEquals(people, test);
+            assertSame(people[0], test[0]);
+            assertTrue(people[1] != test[1]);
+            assertSame(test[1], session.cacheGet(Person.class, people[1].getId()));
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testDelayedWrites()
+        throws SQLException
+    {
+        final SormSession reader = context.getSession(CacheMode.None);
+        final Person existing = buildSimpleObjects(1)[0];
+        Person.Orm.create(reader, existing);
+
+        final SormSession session = context.getTransientSession(CacheMode.Delayed);
+        try {
+            final Person[] people = buildSimpleObjects(3);
+            Person.Orm.create(session, people);
+            for (final Person person : people) {
+                // Nothing has been written yet
+                assertNull(person.getId());
+            }
+
+            // Created and deleted before the flush; never written
+            Person.Orm.delete(session, people[2]);
+
+            existing.setName("Renamed");
+            Person.Orm.update(session, existing);
+            assertEquals(existing.getId(), Person.Orm.read(reader, existing.getId()).getId());
+            assertTrue(!"Renamed".equals(Person.Orm.read(reader, existing.getId()).getName()));
+
+            people[0].setFriends(new HashSet<Person>());
+            people[1].setFriends(new HashSet<Person>());
+            people[0].getFriends().add(people[1]);
+            people[1].getFriends().add(people[0]);
+            Person.Orm.mapFriends(session, people[0], people[1]);
+
+            // Mapped again before the flush; written once
+            Person.Orm.mapFriends(session, people[0], people[1]);
+
+            session.flush();
+
+            assertNotNull(people[0].getId());
+            assertNotNull(people[1].getId());
+            assertNull(people[2].getId());
+
+            assertEquals(people[0], Person.Orm.read(reader, people[0].getId()));
+            assertEquals(people[1], Person.Orm.read(reader, people[1].getId()));
+            assertEquals("Renamed", Person.Orm.read(reader, existing.getId()).getName());
+            assertCollectionsMatch(people[0].getFriends(), Person.Orm.readMappedFriends(reader, people[0]));
+            assertEquals(1, Person.Orm.readMappedFriends(reader, people[0]).size());
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testGeneratedKeys()
+        throws SQLException
+    {
+        final SormSession session = context.getSession(CacheMode.None);
+        final Person owner = buildSimpleObjects(1)[0];
+        Person.Orm.create(session, owner);
+
+        final Pet[] pets = buildPets(5, owner);
+        Pet.Orm.create(session, pets);
+        assertPetsCreated(session, pets);
+
+        final Pet pet = buildPets(1, owner)[0];
+        Pet.Orm.create(session, pet);
+        assertPetsCreated(session, pet);
+
+        // A driver that cannot return generated keys falls back to the pk
+        // query
+        final ConnectionPool pool = context.getConnectionPool();
+        final Dialect dialect = context.getDialect();
+        final SormContext noKeys =
+            new SormContext(new Dialect(dialect.getName(), dialect.getDriver(), dialect.getProtocol()), new ConnectionProvider()
+            {
+                @Override
+                public Connection borrow()
+                    throws SQLException
+                {
+                    return pool.borrow();
+                }
+
+                @Override
+                public void release(final Connection connection)
+                {
+                    pool.release(connection);
+                }
+
+                @Override
+                public void close()
+                {
+                    // The pool belongs to the real context
+                }
+            });
+
+        try {
+            final SormSession fallback = noKeys.getTransientSession();
+            try {
+                final Pet[] more = buildPets(3, owner);
+                Pet.Orm.create(fallback, more);
+                assertPetsCreated(fallback, more);
+            }
+            finally {
+                fallback.close();
+            }
+        }
+        finally {
+            noKeys.close();
+        }
+    }
+
+    @Test
+    public void testKeyAllocator()
+        throws SQLException
+    {
+        final KeyAllocator allocator = context.getKeyAllocator();
+        allocator.configure(Hobby.class, 10, KeyAllocator.Strategy.HiLo);
+        try {
+            final SormSession session = context.getSession(CacheMode.None);
+            final Hobby[] hobbies = buildHobbies(25);
+            Hobby.Orm.create(session, hobbies);
+
+            // Three blocks, reserved one after another, so the keys run on
+            assertEquals(0, hobbies[0].getId() % 10);
+            for (int i = 1; i < hobbies.length; i++) {
+                assertEquals(hobbies[i - 1].getId() + 1, (int)hobbies[i].getId());
+            }
+            assertEquals(5, allocator.remaining(Hobby.class));
+
+            // The rest of the block is shared with other sessions
+            final SormSession other = context.getTransientSession(CacheMode.None);
+            try {
+                final Hobby hobby = buildHobbies(1)[0];
+                Hobby.Orm.create(other, hobby);
+                assertEquals(hobbies[hobbies.length - 1].getId() + 1, (int)hobby.getId());
+                assertEquals(4, allocator.remaining(Hobby.class));
+            }
+            finally {
+                other.close();
+            }
+
+            for (final Hobby hobby : hobbies) {
+                assertEquals(hobby.getName(), Hobby.Orm.read(session, hobby.getId()).getName());
+            }
+        }
+        finally {
+            allocator.disable(Hobby.class);
+        }
+
+        // Without the allocator, each key comes from the database
+        final SormSession session = context.getSession(CacheMode.None);
+        final Hobby hobby = buildHobbies(1)[0];
+        Hobby.Orm.create(session, hobby);
+        assertEquals(hobby.getName(), Hobby.Orm.read(session, hobby.getId()).getName());
+    }
+
+    @Test
+    public void testFailedBatch()
+        throws SQLException
+    {
+        final SharedCache shared = context.getSharedCache();
+        shared.configure(Hobby.class, 10, SharedCache.Eviction.LeastRecentlyUsed, 0);
+        final SormSession session = context.getTransientSession(CacheMode.Immediate);
+        try {
+            session.setTransactionalWrites(false);
+
+            // The second hobby breaks the NOT NULL constraint on its name
+            final Hobby[] hobbies = buildHobbies(2);
+            hobbies[1].setName(null);
+            try {
+                Hobby.Orm.create(session, hobbies);
+                fail("Created a hobby without a name");
+            }
+            catch (final SQLException sqle) {
+                // Expected
+            }
+
+            for (final Hobby hobby : hobbies) {
+                assertNull(session.cacheGet(Hobby.class, hobby.getId()));
+                assertNull(shared.get(Hobby.class, hobby.getId()));
+            }
+
+            // The first person is updated in a batch of its own, which is
+            // committed before the second fails, so it must not stay cached
+            shared.configure(Person.class, 10, SharedCache.Eviction.LeastRecentlyUsed, 0);
+            final Person[] people = buildSimpleObjects(2);
+            Person.Orm.create(session, people);
+            assertEquals(people[0], shared.get(Person.class, people[0].getId()));
+
+            session.setBatchSize(1);
+            people[0].setName("Updated");
+            people[1].setName(null);
+            try {
+                Person.Orm.update(session, people);
+                fail("Updated a person without a name");
+            }
+            catch (final SQLException sqle) {
+                // Expected
+            }
+
+            assertNull(shared.get(Person.class, people[0].getId()));
+        }
+        finally {
+            session.close();
+            shared.disable(Hobby.class);
+            shared.disable(Person.class);
+        }
+    }
+
+    @Test
+    public void testDirtyTracking()
+        throws SQLException
+    {
+        final SormSession session = context.getSession(CacheMode.None);
+        final Person[] owners = buildSimpleObjects(2);
+        Person.Orm.create(session, owners);
+
+        final Pet[] pets = buildPets(3, owners[0]);
+        Pet.Orm.create(session, pets);
+
+        // Change the rows behind the backs of the first two pets
+        final Pet first = Pet.Orm.read(session, pets[0].getId());
+        first.setOwner(owners[1].getId());
+        final Pet second = Pet.Orm.read(session, pets[1].getId());
+        second.setName("Renamed elsewhere");
+        Pet.Orm.update(session, first, second);
+
+        // Only the changed column of the first pet is written, the second is
+        // not written at all, and every column of the third is written
+        pets[0].setName("Renamed");
+        pets[2].setName("Moved");
+        pets[2].setOwner(owners[1].getId());
+        Pet.Orm.update(session, pets);
+
+        Pet test = Pet.Orm.read(session, pets[0].getId());
+        assertEquals("Renamed", test.getName());
+        assertEquals(owners[1].getId(), test.getOwner());
+
+        test = Pet.Orm.read(session, pets[1].getId());
+        assertEquals("Renamed elsewhere", test.getName());
+        assertEquals(owners[0].getId(), test.getOwner());
+
+        test = Pet.Orm.read(session, pets[2].getId());
+        assertEquals("Moved", test.getName());
+        assertEquals(owners[1].getId(), test.getOwner());
+
+        // Written objects are clean again
+        first.setOwner(owners[0].getId());
+        Pet.Orm.update(session, first, first);
+        Pet.Orm.update(session, pets[0]);
+
+        test = Pet.Orm.read(session, pets[0].getId());
+        assertEquals("Renamed", test.getName());
+        assertEquals(owners[0].getId(), test.getOwner());
+    }
+
+    @Test
+    public void testUpsert()
+        throws SQLException
+    {
+        final SormSession session = context.getSession(CacheMode.None);
+        final Person owner = buildSimpleObjects(1)[0];
+        Person.Orm.create(session, owner);
+
+        final Pet[] pets = buildPets(5, owner);
+        Pet.Orm.create(session, pets);
+
+        // Two of the rows are gone, but their objects keep their keys
+        Pet.Orm.delete(session, pets[3], pets[4]);
+        assertTrue(Pet.Orm.read(session, pets[3].getId(), pets[4].getId()).isEmpty());
+
+        for (final Pet pet : pets) {
+            pet.setName(pet.getName() + " (upserted)");
+        }
+
+        Pet.Orm.upsert(session, pets);
+        assertPetsCreated(session, pets);
+
+        final Pet pet = buildPets(1, owner)[0];
+        try {
+            Pet.Orm.upsert(session, pet);
+            fail("Upserted a pet without a key");
+        }
+        catch (final IllegalArgumentException iae) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDelayedUpsert()
+        throws SQLException
+    {
+        final SormSession session = context.getSession(CacheMode.None);
+        final Person owner = buildSimpleObjects(1)[0];
+        Person.Orm.create(session, owner);
+
+        final Pet pet = buildPets(1, owner)[0];
+        Pet.Orm.create(session, pet);
+        Pet.Orm.delete(session, pet);
+
+        // The upsert replaces the queued update, so the missing row is inserted
+        final SormSession delayed = context.getTransientSession(CacheMode.Delayed);
+        try {
+            pet.setName(pet.getName() + " (upserted)");
+            Pet.Orm.update(delayed, pet);
+            Pet.Orm.upsert(delayed, pet);
+            delayed.flush();
+        }
+        finally {
+            delayed.close();
+        }
+
+        assertPetsCreated(session, pet);
+    }
+
+    @Test
+    public void testProjection()
+        throws SQLException
+    {
+        final SormSession session = context.getSession(CacheMode.None);
+        final Person[] people = buildSimpleObjects(3);
+        Person.Orm.create(session, people);
+        final Integer[] keys = getKeys(people);
+
+        final Collection<Person> summaries = Person.Orm.readSummary(session, keys);
+        assertEquals(people.length, summaries.size());
+        int i = 0;
+        for (final Person summary : summaries) {
+            assertTrue(summary.isPartiallyLoaded());
+            assertEquals(people[i].getId(), summary.getId());
+            assertEquals(people[i].getName(), summary.getName());
+            assertEquals(people[i].getGender(), summary.getGender());
+            assertNull(summary.getDob());
+            assertNull(summary.getDescription());
+            i++;
+        }
+
+        try {
+            Person.Orm.update(session, summaries);
+            fail("Updated a partially loaded person");
+        }
+        catch (final IllegalArgumentException iae) {
+            // Expected
+        }
+
+        // Columns in a different order from the fields
+        final Person[] reordered = Person.Orm.readReordered(session, keys).toArray(new Person[people.length]);
+        for (i = 0; i < people.length; i++) {
+            assertEquals(people[i].getId(), reordered[i].getId());
+            assertEquals(people[i].getName(), reordered[i].getName());
+            assertEquals(people[i].getGender(), reordered[i].getGender());
+        }
+
+        assertTrue(!Person.Orm.read(session, keys[0]).isPartiallyLoaded());
+
+        // Cached objects are returned whole
+        final SormSession caching = context.getTransientSession(CacheMode.Immediate);
+        try {
+            final Person whole = Person.Orm.read(caching, keys[0]);
+            assertSame(whole, Person.Orm.readSummary(caching, keys[0]).iterator().next());
+        }
+        finally {
+            caching.close();
+        }
+
+        // A projection built from the table; with dirty-tracking, only the
+        // fields set since the read are written
+        final Pet[] pets = buildPets(2, people[0]);
+        Pet.Orm.create(session, pets);
+        final Pet[] names = Pet.Orm.readNames(session, pets[0].getId(), pets[1].getId()).toArray(new Pet[2]);
+        assertTrue(names[0].isPartiallyLoaded());
+        assertEquals(pets[0].getName(), names[0].getName());
+        assertNull(names[0].getOwner());
+
+        names[1].setName("Renamed");
+        Pet.Orm.update(session, names);
+        final Pet test = Pet.Orm.read(session, pets[1].getId());
+        assertEquals("Renamed", test.getName());
+        assertEquals(people[0].getId(), test.getOwner());
+    }
+
+    @Test
+    public void testPrimitiveFields()
+        throws SQLException
+    {
+        final SormSession session = context.getSession(CacheMode.None);
+        final Hobby[] hobbies = buildHobbies(3);
+        Hobby.Orm.create(session, hobbies);
+
+        final int[] keys = new int[hobbies.length];
+        for (int i = 0; i < hobbies.length; i++) {
+            keys[i] = hobbies[i].getId();
+        }
+
+        int i = 0;
+        for (final Hobby hobby : Hobby.Orm.read(session, keys)) {
+            assertEquals(hobbies[i].getId(), hobby.getId());
+            assertEquals(hobbies[i].getOutdoor(), hobby.getOutdoor());
+            i++;
+        }
+        assertEquals(hobbies.length, i);
+
+        final SormIterator<Hobby> it = Hobby.Orm.matches(session, keys).iterator();
+        try {
+            assertTrue(it.next().getOutdoor());
+            assertTrue(!it.next().getOutdoor());
+        }
+        finally {
+            it.close();
+        }
+
+        // A NULL column read with a getter that returns a primitive is null
+        final Person owner = buildSimpleObjects(1)[0];
+        Person.Orm.create(session, owner);
+        final Pet pet = buildPets(1, owner)[0];
+        pet.setOwner(null);
+        Pet.Orm.create(session, pet);
+        assertNull(Pet.Orm.read(session, pet.getId()).getOwner());
+    }
+
+    /**
+     * Build hobbies. Does not insert them into the database.
+     * 
+     * @param count The number of hobbies to build.
+     * @return The hobbies that were built.
+     */
+    private Hobby[] buildHobbies(final int count)
+    {
+        final Hobby[] hobbies = new Hobby[count];
+        for (int i = 0; i < count; i++) {
+            hobbies[i] = new Hobby();
+            hobbies[i].setName("Hobby " + i);
+            hobbies[i].setOutdoor(0 == i % 2);
+        }
+
+        return hobbies;
+    }
+
+    /**
+     * Build pets. Does not insert them into the database.
+     * 
+     * @param count The number of pets to build.
+     * @param owner The owner of every pet.
+     * @return The pets that were built.
+     */
+    private Pet[] buildPets(final int count, final Person owner)
+    {
+        final Pet[] pets = new Pet[count];
+        for (int i = 0; i < count; i++) {
+            pets[i] = new Pet();
+            pets[i].setName("Pet " + i);
+            pets[i].setOwner(owner.getId());
+        }
+
+        return pets;
+    }
+
+    /**
+     * Assert that pets were given distinct keys when they were created, and
+     * that each can be read back with its key.
+     * 
+     * @param session The session to read with.
+     * @param pets The pets that were created.
+     * @throws SQLException If there was a problem reading.
+     */
+    private void assertPetsCreated(final SormSession session, final Pet... pets)
+        throws SQLException
+    {
+        final Collection<Integer> keys = new HashSet<Integer>();
+        for (final Pet pet : pets) {
+            assertNotNull(pet.getId());
+            assertTrue(keys.add(pet.getId()));
+
+            final Pet test = Pet.Orm.read(session, pet.getId());
+            assertEquals(pet.getName(), test.getName());
+            assertEquals(pet.getOwner(), test.getOwner());
+        }
+    }
+
     /**
      * Build objects with no inter-object relationships. Does not insert them
      * into the database.
@@ -479,6 +1874,23 @@ public class PersonTest
         return keys;
     }
 
+    /** Assert that a linked object is the person with the given key, if any. */
+    private static void assertLinked(final Person[] people, final Integer key, final Person linked)
+    {
+        if (null == key) {
+            assertNull(linked);
+        }
+        else {
+            assertNotNull(linked);
+            assertEquals(key, linked.getId());
+            for (final Person person : people) {
+                if (key.equals(person.getId())) {
+                    assertEquals(person, linked);
+                }
+            }
+        }
+    }
+
     private static <T> void assertCollectionsMatch(final Collection<T> lhs, final Collection<T> rhs)
     {
         if (null != lhs && null != rhs) {
@@ -40,3 +40,21 @@ CREATE TABLE friendmap (
 
 CREATE INDEX friendmap_person_id1_idx ON friendmap (person_id1);
 CREATE INDEX friendmap_person_id2_idx ON friendmap (person_id2);
+
+
+CREATE TABLE pet (
+  id INTEGER AUTO_INCREMENT PRIMARY KEY,
+  name VARCHAR(255) NOT NULL,
+  owner INTEGER,
+
+  FOREIGN KEY (owner) REFERENCES person (id) ON DELETE SET NULL ON UPDATE CASCADE
+);
+
+
+CREATE SEQUENCE hobby_id_seq;
+
+CREATE TABLE hobby (
+  id INTEGER PRIMARY KEY,
+  name VARCHAR(255) NOT NULL,
+  outdoor BOOLEAN NOT NULL
+);
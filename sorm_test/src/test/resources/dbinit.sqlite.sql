@@ -28,3 +28,21 @@ CREATE TABLE friendmap (
 
 CREATE INDEX friendmap_person_id1_idx ON friendmap (person_id1);
 CREATE INDEX friendmap_person_id2_idx ON friendmap (person_id2);
+
+
+CREATE TABLE pet (
+  id INTEGER PRIMARY KEY ASC AUTOINCREMENT,
+  name TEXT NOT NULL,
+  owner INTEGER REFERENCES person (id) ON DELETE SET NULL ON UPDATE CASCADE
+);
+
+
+CREATE TABLE hobby_seq (
+  id INTEGER PRIMARY KEY ASC AUTOINCREMENT
+);
+
+CREATE TABLE hobby (
+  id INTEGER PRIMARY KEY,
+  name TEXT NOT NULL,
+  outdoor BOOLEAN NOT NULL
+);